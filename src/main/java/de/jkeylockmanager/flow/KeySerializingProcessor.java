@@ -0,0 +1,446 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.flow;
+
+import de.jkeylockmanager.contract.Contract;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * {@link Flow.Processor} that processes the elements of one key one after another and the elements of different keys
+ * in parallel.
+ *
+ * The key of an element is extracted by a function. The handler of the processor is run asynchronously by an
+ * executor. Elements of the same key are handled in the order of arrival and never concurrently, without blocking a
+ * thread of the executor while waiting. The results are passed on downstream in the order of completion, so the order
+ * is kept per key only.
+ *
+ * Backpressure is propagated upstream: the processor requests only as many elements as fit into its buffer, which
+ * holds the elements from their arrival until their results are taken downstream. The bound per key limits the backlog
+ * of a key: while a key has more than the given number of elements waiting or in progress, no further elements are
+ * requested from upstream. The elements of the other keys, that are buffered already, are handled meanwhile. As the
+ * keys of the requested elements are unknown, a key can exceed its bound by the elements requested before - the buffer
+ * bounds the total number of elements nevertheless.
+ *
+ * The processor supports one subscriber. An exception of the handler or the key function cancels the upstream
+ * subscription and is passed on downstream.
+ *
+ * @param <T>
+ *            the type of the elements
+ * @param <R>
+ *            the type of the results
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class KeySerializingProcessor<T, R> implements Flow.Processor<T, R> {
+
+
+	private final ReentrantLock monitor = new ReentrantLock();
+	private final Map<Object, KeyQueue<T>> key2queue = new HashMap<>();
+	private final ArrayDeque<R> results = new ArrayDeque<>();
+	private final Function<? super T, ?> keyFunction;
+	private final Function<? super T, ? extends R> handler;
+	private final Executor executor;
+	private final int maxElementsPerKey;
+	private final int bufferSize;
+
+	/**
+	 * number of keys with more than maxElementsPerKey elements waiting or in progress
+	 */
+	private int overloadedKeys = 0;
+
+	private Flow.Subscription upstream;
+	private Flow.Subscriber<? super R> downstream;
+	private boolean subscribed = false;
+	private long outstanding = 0;
+	private int buffered = 0;
+	private long demand = 0;
+	private boolean upstreamDone = false;
+	private Throwable failure;
+	private boolean terminated = false;
+	private boolean cancelled = false;
+	private boolean emitting = false;
+	private boolean missed = false;
+
+
+	/**
+	 * Creates a new instance of {@link KeySerializingProcessor} with the given settings.
+	 *
+	 * @param keyFunction
+	 *            the function extracting the key of an element - must not be null and must not return null
+	 * @param handler
+	 *            the handler of the elements - must not be null and must not return null
+	 * @param executor
+	 *            the executor running the handler - must not be null
+	 * @param maxElementsPerKey
+	 *            the number of elements of one key waiting or in progress, above which no further elements are
+	 *            requested - must be greater than 0
+	 * @param bufferSize
+	 *            the maximum number of elements from their arrival until their results are taken downstream - must be
+	 *            greater than 0
+	 */
+	public KeySerializingProcessor(final Function<? super T, ?> keyFunction,
+			final Function<? super T, ? extends R> handler, final Executor executor, final int maxElementsPerKey,
+			final int bufferSize) {
+		Contract.isNotNull(keyFunction, "keyFunction != null");
+		Contract.isNotNull(handler, "handler != null");
+		Contract.isNotNull(executor, "executor != null");
+		Contract.isTrue(maxElementsPerKey > 0, "maxElementsPerKey > 0");
+		Contract.isTrue(bufferSize > 0, "bufferSize > 0");
+
+		this.keyFunction = keyFunction;
+		this.handler = handler;
+		this.executor = executor;
+		this.maxElementsPerKey = maxElementsPerKey;
+		this.bufferSize = bufferSize;
+	}
+
+
+	@Override
+	public void onComplete() {
+		monitor.lock();
+		try {
+			upstreamDone = true;
+		} finally {
+			monitor.unlock();
+		}
+		drain();
+	}
+
+	@Override
+	public void onError(final Throwable throwable) {
+		Contract.isNotNull(throwable, "throwable != null");
+
+		fail(throwable);
+	}
+
+	@Override
+	public void onNext(final T element) {
+		Contract.isNotNull(element, "element != null");
+
+		final Object key;
+		try {
+			key = keyFunction.apply(element);
+			Contract.isNotNull(key, "key != null");
+		} catch (final RuntimeException | Error e) {
+			fail(e);
+			return;
+		}
+		KeyQueue<T> started = null;
+		boolean violation = false;
+		monitor.lock();
+		try {
+			if (upstreamDone) {
+				return;
+			}
+			violation = outstanding == 0;
+			if (!violation) {
+				outstanding--;
+				buffered++;
+				KeyQueue<T> queue = key2queue.get(key);
+				if (queue == null) {
+					queue = new KeyQueue<>(key);
+					key2queue.put(key, queue);
+					started = queue;
+				} else {
+					queue.waiting.add(element);
+				}
+				changePending(queue, 1);
+			}
+		} finally {
+			monitor.unlock();
+		}
+		if (violation) {
+			fail(new IllegalStateException("more elements received than requested"));
+		} else if (started != null) {
+			schedule(started, element);
+		}
+	}
+
+	@Override
+	public void onSubscribe(final Flow.Subscription subscription) {
+		Contract.isNotNull(subscription, "subscription != null");
+
+		monitor.lock();
+		try {
+			if (upstream != null) {
+				subscription.cancel();
+				return;
+			}
+			upstream = subscription;
+		} finally {
+			monitor.unlock();
+		}
+		drain();
+	}
+
+	@Override
+	public void subscribe(final Flow.Subscriber<? super R> subscriber) {
+		Contract.isNotNull(subscriber, "subscriber != null");
+
+		final boolean accepted;
+		monitor.lock();
+		try {
+			accepted = downstream == null;
+			if (accepted) {
+				downstream = subscriber;
+			}
+		} finally {
+			monitor.unlock();
+		}
+		if (!accepted) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(final long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("only one subscriber is supported"));
+			return;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(final long n) {
+				if (n <= 0) {
+					fail(new IllegalArgumentException("non-positive request: " + n));
+					return;
+				}
+				monitor.lock();
+				try {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				} finally {
+					monitor.unlock();
+				}
+				drain();
+			}
+
+			@Override
+			public void cancel() {
+				final Flow.Subscription subscription;
+				monitor.lock();
+				try {
+					cancelled = true;
+					results.clear();
+					subscription = upstream;
+				} finally {
+					monitor.unlock();
+				}
+				if (subscription != null) {
+					subscription.cancel();
+				}
+			}
+		});
+		monitor.lock();
+		try {
+			subscribed = true;
+		} finally {
+			monitor.unlock();
+		}
+		drain();
+	}
+
+
+	/**
+	 * Must be called while holding the monitor.
+	 */
+	private void changePending(final KeyQueue<T> queue, final int delta) {
+		assert monitor.isHeldByCurrentThread() : "contract broken: monitor.isHeldByCurrentThread()";
+		final boolean overloaded = queue.pending > maxElementsPerKey;
+		queue.pending += delta;
+		if (overloaded != queue.pending > maxElementsPerKey) {
+			overloadedKeys += overloaded ? -1 : 1;
+		}
+	}
+
+	/**
+	 * Passes results, completion and errors on downstream and requests elements from upstream. Only one thread emits
+	 * at a time - others leave a note for it.
+	 */
+	private void drain() {
+		monitor.lock();
+		try {
+			if (emitting) {
+				missed = true;
+				return;
+			}
+			emitting = true;
+		} finally {
+			monitor.unlock();
+		}
+		while (true) {
+			R next = null;
+			Throwable error = null;
+			boolean complete = false;
+			long request = 0;
+			final Flow.Subscription subscription;
+			final Flow.Subscriber<? super R> subscriber;
+			monitor.lock();
+			try {
+				subscription = upstream;
+				subscriber = downstream;
+				if (cancelled || terminated || !subscribed) {
+					emitting = false;
+					return;
+				}
+				if (failure != null) {
+					error = failure;
+					terminated = true;
+				} else if (demand > 0 && !results.isEmpty()) {
+					next = results.poll();
+					demand--;
+					buffered--;
+				} else if (upstreamDone && buffered == 0) {
+					complete = true;
+					terminated = true;
+				} else {
+					request = requestableElements();
+					outstanding += request;
+					if (request == 0) {
+						if (!missed) {
+							emitting = false;
+							return;
+						}
+						missed = false;
+					}
+				}
+			} finally {
+				monitor.unlock();
+			}
+			if (error != null) {
+				subscriber.onError(error);
+				return;
+			}
+			if (complete) {
+				subscriber.onComplete();
+				return;
+			}
+			if (next != null) {
+				subscriber.onNext(next);
+			}
+			if (request > 0) {
+				subscription.request(request);
+			}
+		}
+	}
+
+	private void fail(final Throwable throwable) {
+		final Flow.Subscription subscription;
+		monitor.lock();
+		try {
+			if (failure == null) {
+				failure = throwable;
+			}
+			upstreamDone = true;
+			subscription = upstream;
+		} finally {
+			monitor.unlock();
+		}
+		if (subscription != null) {
+			subscription.cancel();
+		}
+		drain();
+	}
+
+	private void handle(final KeyQueue<T> queue, final T element) {
+		final R result;
+		try {
+			result = handler.apply(element);
+			Contract.isNotNull(result, "result != null");
+		} catch (final RuntimeException | Error e) {
+			fail(e);
+			return;
+		}
+		final T next;
+		monitor.lock();
+		try {
+			results.add(result);
+			changePending(queue, -1);
+			next = queue.waiting.poll();
+			if (next == null) {
+				key2queue.remove(queue.key);
+			}
+		} finally {
+			monitor.unlock();
+		}
+		if (next != null) {
+			schedule(queue, next);
+		}
+		drain();
+	}
+
+	/**
+	 * Must be called while holding the monitor.
+	 *
+	 * @return the number of elements, that can be requested from upstream without exceeding the bounds
+	 */
+	private long requestableElements() {
+		assert monitor.isHeldByCurrentThread() : "contract broken: monitor.isHeldByCurrentThread()";
+		if (upstream == null || upstreamDone || overloadedKeys > 0) {
+			return 0;
+		}
+		return Math.max(bufferSize - buffered - outstanding, 0);
+	}
+
+	/**
+	 * Each element is handled in a task of its own, so that keys with many elements do not starve other keys.
+	 */
+	private void schedule(final KeyQueue<T> queue, final T element) {
+		try {
+			executor.execute(() -> handle(queue, element));
+		} catch (final RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of keys with elements waiting or in progress
+	 */
+	int activeKeysCount() {
+		monitor.lock();
+		try {
+			return key2queue.size();
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * The elements of one key. The first pending element is in progress, the others are waiting.
+	 */
+	private static final class KeyQueue<T> {
+
+		private final Object key;
+		private final ArrayDeque<T> waiting = new ArrayDeque<>();
+		private int pending = 0;
+
+		private KeyQueue(final Object key) {
+			this.key = key;
+		}
+	}
+}
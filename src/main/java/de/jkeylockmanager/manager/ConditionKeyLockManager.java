@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager;
+
+/**
+ * {@link KeyLockManager}, that offers a {@link KeyCondition} per key to the
+ * threads holding the lock of the key.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+public interface ConditionKeyLockManager extends KeyLockManager {
+
+	/**
+	 * Returns the condition of the given key. The current thread must hold the
+	 * lock of the key, i.e. call this method within a locked unit of work. The
+	 * lock of the key is kept, while threads are waiting for its condition.
+	 * 
+	 * @param key
+	 *            the key, whose lock is held by the current thread - must not
+	 *            be null
+	 * 
+	 * @return the condition of the key
+	 * 
+	 * @see KeyCondition
+	 */
+	KeyCondition getCondition(Object key);
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerRejectedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+
+/**
+ * {@link KeyLockManager}, that can hand out the lock of a key as a {@link KeyLock} handle in addition to the callback
+ * methods.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+public interface HandleKeyLockManager extends KeyLockManager {
+
+	/**
+	 * Acquires the lock for the given key and returns a handle, that releases
+	 * the lock when it is closed. Unlike the callback methods, the unit of work
+	 * is the code between this call and closing the handle.
+	 * 
+	 * @param key
+	 *            the key used to block concurrent access - must not be null
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for a
+	 *             lock
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded, while waiting
+	 *             for a lock
+	 * @throws KeyLockManagerRejectedException
+	 *             if the implementation bounds the number of waiting threads
+	 *             and the bound is reached
+	 * 
+	 * @return the handle to close in order to release the lock
+	 * 
+	 * @see KeyLock
+	 */
+	KeyLock acquire(Object key);
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager;
+
+import java.util.concurrent.TimeUnit;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+
+/**
+ * Condition of a key returned by {@link ConditionKeyLockManager#getCondition(Object)}. It lets a thread, that holds the lock of
+ * the key, wait for a state change made by another thread under the lock of the same key:
+ * 
+ * <pre>
+ * manager.executeLocked(orderId, () -&gt; {
+ *     final KeyCondition paid = manager.getCondition(orderId);
+ *     while (!isPaid(orderId)) {
+ *         if (!paid.await(1, TimeUnit.MINUTES)) {
+ *             throw new IllegalStateException(&quot;order not paid in time&quot;);
+ *         }
+ *     }
+ *     // unit of work
+ * });
+ * </pre>
+ * 
+ * All methods must be called by the thread holding the lock of the key. Waiting threads may wake up without being
+ * signalled, so the awaited state has to be checked in a loop.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+public interface KeyCondition {
+
+	/**
+	 * Releases the lock of the key and waits until the condition is signalled or the waiting time elapses. The lock is
+	 * acquired again before the method returns or throws, regardless of the timeout of the manager.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the unit of the timeout - must not be null
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting
+	 * 
+	 * @return false, if the waiting time elapsed before the condition was signalled
+	 */
+	boolean await(long timeout, TimeUnit unit);
+
+	/**
+	 * Wakes up one thread waiting for the condition.
+	 */
+	void signal();
+
+	/**
+	 * Wakes up all threads waiting for the condition.
+	 */
+	void signalAll();
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager;
+
+/**
+ * Handle for the lock of a key acquired by {@link HandleKeyLockManager#acquire(Object)}. Closing the handle releases the
+ * lock, so it fits a try-with-resources statement:
+ * 
+ * <pre>
+ * try (KeyLock lock = manager.acquire(key)) {
+ *     // unit of work
+ * }
+ * </pre>
+ * 
+ * A handle must be closed by the thread that acquired it. Closing a handle more than once has no further effect.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+public interface KeyLock extends AutoCloseable {
+
+	/**
+	 * Releases the lock of the key.
+	 */
+	@Override
+	void close();
+
+}
@@ -16,7 +16,9 @@
 
 package de.jkeylockmanager.manager;
 
+import de.jkeylockmanager.contract.Contract;
 import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerRejectedException;
 import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
 
 /**
@@ -28,11 +30,25 @@ import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
  * All implementations have to be reentrant and interruptible and must have a
  * defined timeout mechanism.
  * 
+ * The default implementations of
+ * {@link #executeLockedChecked(Object, CheckedLockCallback)},
+ * {@link #executeLockedBoolean(Object, BooleanLockCallback)},
+ * {@link #executeLockedInt(Object, IntLockCallback)} and
+ * {@link #executeLockedLong(Object, LongLockCallback)} wrap the callback and
+ * allocate a holder for its result on every call. Of the implementations in
+ * this library only the striped implementation executes them without
+ * allocation - the decorators pass them on to their delegate.
+ * 
  * @author Marc-Olaf Jaschke
  * 
  */
 public interface KeyLockManager {
 
+	/**
+	 * Priority used by the methods without a priority parameter.
+	 */
+	int DEFAULT_PRIORITY = 0;
+
 	/**
 	 * Executes the given callback with protection against concurrent access for
 	 * the given key.
@@ -50,6 +66,9 @@ public interface KeyLockManager {
 	 * @throws KeyLockManagerTimeoutException
 	 *             if the instance wide waiting time is exceeded, while waiting
 	 *             for a lock
+	 * @throws KeyLockManagerRejectedException
+	 *             if the implementation bounds the number of waiting threads
+	 *             and the bound is reached
 	 */
 	void executeLocked(Object key, LockCallback callback);
 
@@ -71,9 +90,272 @@ public interface KeyLockManager {
 	 * @throws KeyLockManagerTimeoutException
 	 *             if the instance wide waiting time is exceeded, while waiting
 	 *             for lock
+	 * @throws KeyLockManagerRejectedException
+	 *             if the implementation bounds the number of waiting threads
+	 *             and the bound is reached
 	 * 
 	 * @return result of the computation done in the callback
 	 */
 	<R> R executeLocked(Object key, ReturnValueLockCallback<R> callback);
 
+	/**
+	 * Executes the given callback with protection against concurrent access for
+	 * the given key. Implementations may let the thread that holds the lock
+	 * for the key execute the callbacks of waiting threads in one batch, so
+	 * the callback is not necessarily executed by the current thread. Use it
+	 * for short callbacks on hot keys, that neither depend on the executing
+	 * thread nor lock other keys.
+	 * 
+	 * Implementations without support for combining behave like
+	 * {@link #executeLocked(Object, LockCallback)}.
+	 * 
+	 * @param key
+	 *            the key used to block concurrent access - must not be null
+	 * @param callback
+	 *            the template to protect against concurrent access - must not
+	 *            be null
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for
+	 *             the execution of the callback
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded, while waiting
+	 *             for the execution of the callback
+	 * @throws KeyLockManagerRejectedException
+	 *             if the implementation bounds the number of waiting threads
+	 *             and the bound is reached
+	 * 
+	 * @see #executeLocked(Object, LockCallback)
+	 */
+	default void executeCombined(final Object key, final LockCallback callback) {
+		executeLocked(key, callback);
+	}
+
+	/**
+	 * Executes the given callback with protection against concurrent access for
+	 * the given key and return the result of the computation done in the
+	 * callback. The callback is not necessarily executed by the current
+	 * thread.
+	 * 
+	 * Implementations without support for combining behave like
+	 * {@link #executeLocked(Object, ReturnValueLockCallback)}.
+	 * 
+	 * @param key
+	 *            the key to block concurrent access - must not be null
+	 * @param callback
+	 *            the template to protect against concurrent access - must not
+	 *            be null
+	 * 
+	 * @see #executeCombined(Object, LockCallback)
+	 * 
+	 * @return result of the computation done in the callback
+	 */
+	default <R> R executeCombined(final Object key, final ReturnValueLockCallback<R> callback) {
+		return executeLocked(key, callback);
+	}
+
+	/**
+	 * Executes the given callback while at most the given number of threads
+	 * are in a limited unit of work for the given key. Other threads that work
+	 * on the same key concurrently have to wait until one of them leaves the
+	 * limited unit. The current thread uses only one permit in nested calls.
+	 * 
+	 * Implementations without support for permits behave like
+	 * {@link #executeLocked(Object, LockCallback)}, which satisfies every
+	 * bound with a single permit.
+	 * 
+	 * @param key
+	 *            the key used to limit concurrent access - must not be null
+	 * @param permits
+	 *            the maximum number of threads in the limited unit for the
+	 *            key - must be greater than 0
+	 * @param callback
+	 *            the template to protect against concurrent access - must not
+	 *            be null
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for a
+	 *             permit
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded, while waiting
+	 *             for a permit
+	 * 
+	 * @see #executeLocked(Object, LockCallback)
+	 */
+	default void executeLimited(final Object key, final int permits, final LockCallback callback) {
+		Contract.isTrue(permits > 0, "permits > 0");
+		executeLocked(key, callback);
+	}
+
+	/**
+	 * Executes the given callback while at most the given number of threads
+	 * are in a limited unit of work for the given key and return the result of
+	 * the computation done in the callback.
+	 * 
+	 * Implementations without support for permits behave like
+	 * {@link #executeLocked(Object, ReturnValueLockCallback)}, which satisfies
+	 * every bound with a single permit.
+	 * 
+	 * @param key
+	 *            the key used to limit concurrent access - must not be null
+	 * @param permits
+	 *            the maximum number of threads in the limited unit for the
+	 *            key - must be greater than 0
+	 * @param callback
+	 *            the template to protect against concurrent access - must not
+	 *            be null
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for a
+	 *             permit
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded, while waiting
+	 *             for a permit
+	 * 
+	 * @see #executeLimited(Object, int, LockCallback)
+	 * 
+	 * @return result of the computation done in the callback
+	 */
+	default <R> R executeLimited(final Object key, final int permits, final ReturnValueLockCallback<R> callback) {
+		Contract.isTrue(permits > 0, "permits > 0");
+		return executeLocked(key, callback);
+	}
+
+	/**
+	 * Executes the given callback with protection against concurrent access for
+	 * the given key and return the result of the computation done in the
+	 * callback. Checked exceptions thrown by the callback are passed on to the
+	 * caller after the lock has been released.
+	 * 
+	 * @param key
+	 *            the key to block concurrent access - must not be null
+	 * @param callback
+	 *            the template to protect against concurrent access - must not
+	 *            be null
+	 * 
+	 * @throws E
+	 *             if the callback throws it
+	 * 
+	 * @see #executeLocked(Object, ReturnValueLockCallback)
+	 * 
+	 * @return result of the computation done in the callback
+	 */
+	@SuppressWarnings("unchecked")
+	default <R, E extends Exception> R executeLockedChecked(final Object key, final CheckedLockCallback<R, E> callback)
+			throws E {
+		Contract.isNotNull(callback, "callback != null");
+		final Exception[] failure = new Exception[1];
+		final R result = executeLocked(key, () -> {
+			try {
+				return callback.doInLock();
+			} catch (final RuntimeException e) {
+				throw e;
+			} catch (final Exception e) {
+				failure[0] = e;
+				return null;
+			}
+		});
+		if (failure[0] != null) {
+			throw (E) failure[0];
+		}
+		return result;
+	}
+
+	/**
+	 * Executes the given callback with protection against concurrent access for
+	 * the given key and return the boolean result of the computation done in
+	 * the callback without boxing.
+	 * 
+	 * @see #executeLocked(Object, ReturnValueLockCallback)
+	 */
+	default boolean executeLockedBoolean(final Object key, final BooleanLockCallback callback) {
+		Contract.isNotNull(callback, "callback != null");
+		final boolean[] result = new boolean[1];
+		executeLocked(key, () -> {
+			result[0] = callback.doInLock();
+		});
+		return result[0];
+	}
+
+	/**
+	 * Executes the given callback with protection against concurrent access for
+	 * the given key and return the int result of the computation done in the
+	 * callback without boxing.
+	 * 
+	 * @see #executeLocked(Object, ReturnValueLockCallback)
+	 */
+	default int executeLockedInt(final Object key, final IntLockCallback callback) {
+		Contract.isNotNull(callback, "callback != null");
+		final int[] result = new int[1];
+		executeLocked(key, () -> {
+			result[0] = callback.doInLock();
+		});
+		return result[0];
+	}
+
+	/**
+	 * Executes the given callback with protection against concurrent access for
+	 * the given key and return the long result of the computation done in the
+	 * callback without boxing.
+	 * 
+	 * @see #executeLocked(Object, ReturnValueLockCallback)
+	 */
+	default long executeLockedLong(final Object key, final LongLockCallback callback) {
+		Contract.isNotNull(callback, "callback != null");
+		final long[] result = new long[1];
+		executeLocked(key, () -> {
+			result[0] = callback.doInLock();
+		});
+		return result[0];
+	}
+
+	/**
+	 * Executes the given callback with protection against concurrent access for
+	 * the given key. If several threads are waiting for the same key, threads
+	 * with a higher priority should enter the locked unit first.
+	 * 
+	 * Implementations without support for priorities ignore the priority and
+	 * behave like {@link #executeLocked(Object, LockCallback)}.
+	 * 
+	 * @param key
+	 *            the key used to block concurrent access - must not be null
+	 * @param priority
+	 *            the priority of the current thread while waiting for the lock
+	 *            - higher values are preferred
+	 * @param callback
+	 *            the template to protect against concurrent access - must not
+	 *            be null
+	 * 
+	 * @see #executeLocked(Object, LockCallback)
+	 */
+	default void executeLocked(final Object key, final int priority, final LockCallback callback) {
+		executeLocked(key, callback);
+	}
+
+	/**
+	 * Executes the given callback with protection against concurrent access for
+	 * the given key and return the result of the computation done in the
+	 * callback. If several threads are waiting for the same key, threads with a
+	 * higher priority should enter the locked unit first.
+	 * 
+	 * Implementations without support for priorities ignore the priority and
+	 * behave like {@link #executeLocked(Object, ReturnValueLockCallback)}.
+	 * 
+	 * @param key
+	 *            the key to block concurrent access - must not be null
+	 * @param priority
+	 *            the priority of the current thread while waiting for the lock
+	 *            - higher values are preferred
+	 * @param callback
+	 *            the template to protect against concurrent access - must not
+	 *            be null
+	 * 
+	 * @see #executeLocked(Object, ReturnValueLockCallback)
+	 * 
+	 * @return result of the computation done in the callback
+	 */
+	default <R> R executeLocked(final Object key, final int priority, final ReturnValueLockCallback<R> callback) {
+		return executeLocked(key, callback);
+	}
+
 }
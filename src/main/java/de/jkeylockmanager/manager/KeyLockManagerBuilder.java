@@ -0,0 +1,294 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.exception.KeyLockManagerRejectedException;
+import de.jkeylockmanager.manager.implementation.cohort.CohortKeyLockManager;
+import de.jkeylockmanager.manager.implementation.cohort.NodeMapper;
+import de.jkeylockmanager.manager.implementation.compact.CompactKeyLockManager;
+import de.jkeylockmanager.manager.implementation.lockstripe.StripedKeyLockManager;
+import de.jkeylockmanager.manager.implementation.priority.PriorityKeyLockManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Builder for a {@link KeyLockManager} tuned for a use case. Instances are created by
+ * {@link KeyLockManagers#builder()}.
+ *
+ * The implementation is selected by {@link #implementation(Implementation)}. The timeout applies to all
+ * implementations, the node mapper only to {@link Implementation#COHORT}. All other settings apply to
+ * {@link Implementation#STRIPED} only. {@link #build()} rejects a setting, that does not apply to the selected
+ * implementation, instead of ignoring it.
+ *
+ * A builder is not thread safe. It can be used to build several instances with the same settings.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class KeyLockManagerBuilder {
+
+	/**
+	 * The implementations selectable by the builder.
+	 */
+	public enum Implementation {
+
+		/**
+		 * The best available multi purpose implementation.
+		 */
+		STRIPED,
+
+		/**
+		 * Needs as little memory per active key as possible.
+		 */
+		COMPACT,
+
+		/**
+		 * Hands over the lock of a key to the waiting thread with the highest priority.
+		 */
+		PRIORITY,
+
+		/**
+		 * Prefers to hand over the lock of a key to a waiting thread on the node of the releasing thread.
+		 */
+		COHORT
+	}
+
+
+	private Implementation implementation = Implementation.STRIPED;
+	private long lockTimeout = KeyLockManagers.DEFAULT_LOCK_TIMEOUT;
+	private TimeUnit lockTimeoutUnit = TimeUnit.HOURS;
+	private int numberOfStripes = 16;
+	private int maxWaitersPerKey = StripedKeyLockManager.UNBOUNDED_WAITERS;
+	private int maxWaitersPerManager = StripedKeyLockManager.UNBOUNDED_WAITERS;
+	private int maxIdleKeys = StripedKeyLockManager.NO_IDLE_KEYS;
+	private long idleRetention = 0;
+	private TimeUnit idleRetentionUnit = TimeUnit.NANOSECONDS;
+	private int expectedKeys = 16;
+	private boolean preallocateLocks = false;
+	private boolean fair = false;
+	private WaitStrategy waitStrategy = WaitStrategy.BLOCK;
+	private boolean metrics = true;
+	private NodeMapper nodeMapper = NodeMapper.SINGLE_NODE;
+	private boolean stripedSettings = false;
+	private boolean cohortSettings = false;
+
+
+	/**
+	 * Creates a new builder with default settings, that build the same manager as {@link KeyLockManagers#newLock()}.
+	 */
+	KeyLockManagerBuilder() {
+	}
+
+
+	/**
+	 * @return a new {@link KeyLockManager} with the settings of this builder
+	 */
+	public KeyLockManager build() {
+		Contract.isTrue(implementation == Implementation.STRIPED || !stripedSettings,
+				"striped settings only for implementation STRIPED");
+		Contract.isTrue(implementation == Implementation.COHORT || !cohortSettings,
+				"node mapper only for implementation COHORT");
+
+		switch (implementation) {
+		case COMPACT:
+			return new CompactKeyLockManager(lockTimeout, lockTimeoutUnit);
+		case PRIORITY:
+			return new PriorityKeyLockManager(lockTimeout, lockTimeoutUnit);
+		case COHORT:
+			return new CohortKeyLockManager(lockTimeout, lockTimeoutUnit, nodeMapper);
+		default:
+			return new StripedKeyLockManager(lockTimeout, lockTimeoutUnit, numberOfStripes, maxWaitersPerKey,
+					maxWaitersPerManager, maxIdleKeys, idleRetention, idleRetentionUnit, expectedKeys,
+					preallocateLocks ? expectedKeys : StripedKeyLockManager.NO_LOCK_POOL, fair, waitStrategy, metrics);
+		}
+	}
+
+	/**
+	 * Sizes the internal structures for the expected number of concurrently used keys.
+	 *
+	 * @param expectedKeys
+	 *            the expected number of concurrently used keys - must not be negative
+	 * @param preallocateLocks
+	 *            true, if a pool of locks for the expected number of keys is created in advance
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder expectedKeys(final int expectedKeys, final boolean preallocateLocks) {
+		Contract.isTrue(expectedKeys >= 0, "expectedKeys >= 0");
+
+		this.expectedKeys = expectedKeys;
+		this.preallocateLocks = preallocateLocks;
+		this.stripedSettings = true;
+		return this;
+	}
+
+	/**
+	 * @param fair
+	 *            true, if the lock of a key is granted to the longest waiting thread - false by default
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder fair(final boolean fair) {
+		this.fair = fair;
+		this.stripedSettings = true;
+		return this;
+	}
+
+	/**
+	 * Retains the locks of idle keys for a period and up to a number of keys.
+	 *
+	 * @param maxIdleKeys
+	 *            the maximum number of idle keys, whose locks are retained - must not be negative
+	 * @param idleRetention
+	 *            the time the lock of an idle key is retained at most - must not be negative
+	 * @param idleRetentionUnit
+	 *            the unit for idleRetention - must not be null
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder idleKeys(final int maxIdleKeys, final long idleRetention,
+			final TimeUnit idleRetentionUnit) {
+		Contract.isTrue(maxIdleKeys >= 0, "maxIdleKeys >= 0");
+		Contract.isTrue(idleRetention >= 0, "idleRetention >= 0");
+		Contract.isNotNull(idleRetentionUnit, "idleRetentionUnit != null");
+
+		this.maxIdleKeys = maxIdleKeys;
+		this.idleRetention = idleRetention;
+		this.idleRetentionUnit = idleRetentionUnit;
+		this.stripedSettings = true;
+		return this;
+	}
+
+	/**
+	 * @param implementation
+	 *            the implementation to build - must not be null - {@link Implementation#STRIPED} by default
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder implementation(final Implementation implementation) {
+		Contract.isNotNull(implementation, "implementation != null");
+
+		this.implementation = implementation;
+		return this;
+	}
+
+	/**
+	 * Bounds the number of threads waiting for a lock. Threads beyond the bounds are rejected immediately with a
+	 * {@link KeyLockManagerRejectedException}.
+	 *
+	 * @param maxWaitersPerKey
+	 *            the maximum number of threads waiting for the lock of one key - must not be negative
+	 * @param maxWaitersPerManager
+	 *            the maximum number of threads waiting for any lock of the manager - must not be negative
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder maxWaiters(final int maxWaitersPerKey, final int maxWaitersPerManager) {
+		Contract.isTrue(maxWaitersPerKey >= 0, "maxWaitersPerKey >= 0");
+		Contract.isTrue(maxWaitersPerManager >= 0, "maxWaitersPerManager >= 0");
+
+		this.maxWaitersPerKey = maxWaitersPerKey;
+		this.maxWaitersPerManager = maxWaitersPerManager;
+		this.stripedSettings = true;
+		return this;
+	}
+
+	/**
+	 * @param metrics
+	 *            true, if waiting threads are registered for snapshots and flight recorder events are emitted - true
+	 *            by default
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder metrics(final boolean metrics) {
+		this.metrics = metrics;
+		this.stripedSettings = true;
+		return this;
+	}
+
+	/**
+	 * @param nodeMapper
+	 *            maps the threads to their nodes - must not be null - {@link NodeMapper#SINGLE_NODE} by default
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder nodeMapper(final NodeMapper nodeMapper) {
+		Contract.isNotNull(nodeMapper, "nodeMapper != null");
+
+		this.nodeMapper = nodeMapper;
+		this.cohortSettings = true;
+		return this;
+	}
+
+	/**
+	 * @param numberOfStripes
+	 *            the number of stripes used for locking - must be greater than 0 - 16 by default
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder stripes(final int numberOfStripes) {
+		Contract.isTrue(numberOfStripes > 0, "numberOfStripes > 0");
+
+		this.numberOfStripes = numberOfStripes;
+		this.stripedSettings = true;
+		return this;
+	}
+
+	/**
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0 - one hour by
+	 *            default
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder timeout(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		Contract.isTrue(lockTimeout > 0, "lockTimeout > 0");
+		Contract.isNotNull(lockTimeoutUnit, "lockTimeoutUnit != null");
+
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+		return this;
+	}
+
+	/**
+	 * @param waitStrategy
+	 *            the way threads wait for the lock of a key - must not be null - {@link WaitStrategy#BLOCK} by default
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder waitStrategy(final WaitStrategy waitStrategy) {
+		Contract.isNotNull(waitStrategy, "waitStrategy != null");
+
+		this.waitStrategy = waitStrategy;
+		this.stripedSettings = true;
+		return this;
+	}
+
+	/**
+	 * Lets threads wait for a lock without a timeout.
+	 *
+	 * @return this builder
+	 */
+	public KeyLockManagerBuilder withoutTimeout() {
+		return timeout(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+}
@@ -16,7 +16,13 @@
 
 package de.jkeylockmanager.manager;
 
+import de.jkeylockmanager.manager.exception.KeyLockManagerDeadlockException;
+import de.jkeylockmanager.manager.implementation.cohort.CohortKeyLockManager;
+import de.jkeylockmanager.manager.implementation.cohort.NodeMapper;
+import de.jkeylockmanager.manager.implementation.compact.CompactKeyLockManager;
+import de.jkeylockmanager.manager.implementation.deadlock.DeadlockDetectingKeyLockManager;
 import de.jkeylockmanager.manager.implementation.lockstripe.StripedKeyLockManager;
+import de.jkeylockmanager.manager.implementation.priority.PriorityKeyLockManager;
 
 import java.util.concurrent.TimeUnit;
 
@@ -35,6 +41,16 @@ public final class KeyLockManagers {
 	public static final int DEFAULT_LOCK_TIMEOUT = 1; // 1 h
 
 
+	/**
+	 * Returns a new builder for a {@link KeyLockManager}, that allows to select the implementation and to tune it for
+	 * a use case.
+	 *
+	 * @return the newly created builder
+	 */
+	public static KeyLockManagerBuilder builder() {
+		return new KeyLockManagerBuilder();
+	}
+
 	/**
 	 * Returns a new {@link KeyLockManager} with default settings. The best available multi purpose implementation is
 	 * used.
@@ -60,6 +76,97 @@ public final class KeyLockManagers {
 		return new StripedKeyLockManager(lockTimeout, lockTimeoutUnit);
 	}
 
+	/**
+	 * Returns a new {@link KeyLockManager} with the given timeout settings, that prefers to hand over the lock of a key
+	 * to a waiting thread on the node of the releasing thread. Use it on machines with several sockets for hot keys.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 * @param nodeMapper
+	 *            maps the threads to their nodes - must not be null
+	 *
+	 * @return the newly created lock
+	 */
+	public static KeyLockManager newCohortLock(final long lockTimeout, final TimeUnit lockTimeoutUnit,
+			final NodeMapper nodeMapper) {
+		return new CohortKeyLockManager(lockTimeout, lockTimeoutUnit, nodeMapper);
+	}
+
+	/**
+	 * Returns a new {@link KeyLockManager} with the given timeout settings, that needs as little memory per active key
+	 * as possible. Use it for very large sets of concurrently locked keys.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 *
+	 * @return the newly created lock
+	 */
+	public static KeyLockManager newCompactLock(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		return new CompactKeyLockManager(lockTimeout, lockTimeoutUnit);
+	}
+
+	/**
+	 * Returns a new {@link KeyLockManager} with the given timeout settings, whose internal structures are sized in
+	 * advance for the given load. The first requests after start do without resizing the key table and, if requested,
+	 * without creating locks. The best available multi purpose implementation is used.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 * @param expectedKeys
+	 *            the expected number of concurrently used keys - must not be negative
+	 * @param concurrencyLevel
+	 *            the expected number of threads using the lock concurrently - must be greater than 0
+	 * @param preallocateLocks
+	 *            true, if a pool of locks for the expected number of keys is created in advance
+	 *
+	 * @return the newly created lock
+	 */
+	public static KeyLockManager newPresizedLock(final long lockTimeout, final TimeUnit lockTimeoutUnit,
+			final int expectedKeys, final int concurrencyLevel, final boolean preallocateLocks) {
+		return new StripedKeyLockManager(lockTimeout, lockTimeoutUnit, concurrencyLevel,
+				StripedKeyLockManager.UNBOUNDED_WAITERS, StripedKeyLockManager.UNBOUNDED_WAITERS,
+				StripedKeyLockManager.NO_IDLE_KEYS, 0, TimeUnit.NANOSECONDS, expectedKeys,
+				preallocateLocks ? expectedKeys : StripedKeyLockManager.NO_LOCK_POOL);
+	}
+
+	/**
+	 * Returns a new {@link KeyLockManager} with the given timeout settings, that hands over the lock of a key to the
+	 * waiting thread with the highest priority.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 *
+	 * @return the newly created lock
+	 *
+	 * @see KeyLockManager#executeLocked(Object, int, LockCallback)
+	 */
+	public static KeyLockManager newPriorityLock(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		return new PriorityKeyLockManager(lockTimeout, lockTimeoutUnit);
+	}
+
+	/**
+	 * Returns a {@link HandleKeyLockManager} and {@link ConditionKeyLockManager}, that detects deadlocks between threads locking keys of the given manager in
+	 * inconsistent order. A thread, that would close a cycle of waiting threads, fails immediately with a
+	 * {@link KeyLockManagerDeadlockException} instead of waiting for the timeout.
+	 *
+	 * @param delegate
+	 *            the manager doing the locking - must not be null
+	 *
+	 * @return the newly created lock
+	 */
+	public static <M extends HandleKeyLockManager & ConditionKeyLockManager> DeadlockDetectingKeyLockManager withDeadlockDetection(
+			final M delegate) {
+		return new DeadlockDetectingKeyLockManager(delegate);
+	}
+
 
 
 	/**
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager;
+
+/**
+ * Defines how a thread waits for a lock, that is held by another thread.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public enum WaitStrategy {
+
+	/**
+	 * The thread is parked until the lock is handed over to it.
+	 */
+	BLOCK,
+
+	/**
+	 * The thread yields and retries to get the lock a bounded number of times,
+	 * before it is parked. Avoids parking and unparking threads for locks,
+	 * that are held for a very short time, at the cost of processor time.
+	 */
+	SPIN_THEN_BLOCK
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.exception;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Use this exception, if a thread would wait for a lock in a cycle of threads
+ * waiting for each other.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+public class KeyLockManagerDeadlockException extends KeyLockManagerException {
+
+	private static final long serialVersionUID = -2365104683931485211L;
+
+	private final transient List<Object> keys;
+
+	public KeyLockManagerDeadlockException(final List<?> keys) {
+		super(String.format("deadlock detected - the threads wait for each other for the keys %s", keys));
+		this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+	}
+
+	/**
+	 * @return the keys of the cycle - starting with the key the current thread
+	 *         tried to lock, each following key is the one the owner of the
+	 *         previous key waits for, and the last key is owned by the current
+	 *         thread
+	 */
+	public List<Object> getKeys() {
+		return keys;
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.exception;
+
+/**
+ * Use this exception, if a key is locked, whose lease was still held when the
+ * journal of the leases was written last, for example before a crash, and the
+ * recovered lease has not been released yet.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+public class KeyLockManagerRecoveredLeaseException extends KeyLockManagerException {
+
+	private static final long serialVersionUID = 6310582146829153772L;
+
+	private final String key;
+
+	public KeyLockManagerRecoveredLeaseException(final String key) {
+		super(String.format("the recovered lease for the key %s has not been released", key));
+		this.key = key;
+	}
+
+	/**
+	 * @return the key of the recovered lease as written to the journal
+	 */
+	public String getKey() {
+		return key;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.exception;
+
+/**
+ * Use this exception, if a thread is rejected without waiting, because too many
+ * threads are already waiting for a lock.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+public class KeyLockManagerRejectedException extends KeyLockManagerException {
+
+	private static final long serialVersionUID = 4283079612291531785L;
+
+	private final int maxWaiters;
+
+	public KeyLockManagerRejectedException(final int maxWaiters) {
+		super(String.format("rejected, because %d threads are already waiting for lock", maxWaiters));
+		this.maxWaiters = maxWaiters;
+	}
+
+	public int getMaxWaiters() {
+		return maxWaiters;
+	}
+}
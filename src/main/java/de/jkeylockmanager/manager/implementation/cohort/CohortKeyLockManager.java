@@ -0,0 +1,174 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.cohort;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link KeyLockManager} with cohort locks.
+ *
+ * Threads are mapped to nodes by a {@link NodeMapper}. The lock of a key is a cohort lock: a local lock per node and a
+ * global lock between the nodes. If several threads are waiting for the lock of the same key, the lock is preferably
+ * handed over to a thread on the node of the releasing thread, without touching the global lock, so the data protected
+ * by the lock stays in the caches of that node. The number of consecutive handovers within a node is bounded, after
+ * that the global lock is passed on to the node waiting longest for it.
+ *
+ * All resources used by one key are freed immediately, if there is no longer a thread in the locked block for this key.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class CohortKeyLockManager implements KeyLockManager {
+
+
+	/**
+	 * Default maximum number of consecutive handovers within a node
+	 */
+	private static final int DEFAULT_MAX_LOCAL_HANDOVERS = 64;
+
+
+	private final ConcurrentHashMap<Object, CohortLock> key2lock = new ConcurrentHashMap<>();
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+	private final NodeMapper nodeMapper;
+	private final int maxLocalHandovers;
+
+
+	/**
+	 * Creates a new instance of {@link CohortKeyLockManager} with a default maximum number of consecutive handovers
+	 * within a node
+	 *
+	 * see #CohortKeyLockManager(long, java.util.concurrent.TimeUnit, NodeMapper, int)
+	 *
+	 */
+	public CohortKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit, final NodeMapper nodeMapper) {
+		this(lockTimeout, lockTimeoutUnit, nodeMapper, DEFAULT_MAX_LOCAL_HANDOVERS);
+	}
+
+	/**
+	 * Creates a new instance of {@link CohortKeyLockManager} with the given settings.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 * @param nodeMapper
+	 *            maps the threads to their nodes - must not be null
+	 * @param maxLocalHandovers
+	 *            the maximum number of consecutive handovers within a node - must not be negative - 0 passes on the
+	 *            global lock at each release
+	 */
+	public CohortKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit, final NodeMapper nodeMapper,
+			final int maxLocalHandovers) {
+		Contract.isNotNull(lockTimeoutUnit, "lockTimeoutUnit != null");
+		Contract.isTrue(lockTimeout > 0, "lockTimeout > 0");
+		Contract.isNotNull(nodeMapper, "nodeMapper != null");
+		Contract.isTrue(maxLocalHandovers >= 0, "maxLocalHandovers >= 0");
+
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+		this.nodeMapper = nodeMapper;
+		this.maxLocalHandovers = maxLocalHandovers;
+	}
+
+
+	@Override
+	public void executeLocked(final Object key, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeLockedInternal(key, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	@Override
+	public <R> R executeLocked(final Object key, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeLockedInternal(key, callback);
+	}
+
+
+	private <R> R executeLockedInternal(final Object key, final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert callback != null : "contract broken: callback != null";
+
+		final CohortLock lock = getKeyLock(key);
+		try {
+			final int node = nodeMapper.nodeOf(Thread.currentThread());
+			lock.tryLock(node);
+			try {
+				return callback.doInLock();
+			} finally {
+				lock.unlock(node);
+			}
+		} finally {
+			freeKeyLock(key);
+		}
+	}
+
+	private void freeKeyLock(final Object key) {
+		assert key != null : "contract broken: key != null";
+		key2lock.computeIfPresent(key, (k, lock) -> {
+			lock.decrementUses();
+			return lock.isUsed() ? lock : null;
+		});
+	}
+
+	private CohortLock getKeyLock(final Object key) {
+		assert key != null : "contract broken: key != null";
+		return key2lock.compute(key, (k, previousLock) -> {
+			final CohortLock result = previousLock == null
+					? new CohortLock(lockTimeout, lockTimeoutUnit, maxLocalHandovers)
+					: previousLock;
+			result.incrementUses();
+			return result;
+		});
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of currently active key locks
+	 *
+	 */
+	int activeKeyLocksCount() {
+		return key2lock.size();
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of threads currently waiting in the queues of the key locks
+	 */
+	int waitingThreadsCount() {
+		int result = 0;
+		for (final CohortLock lock : key2lock.values()) {
+			result += lock.getQueueLength();
+		}
+		return result;
+	}
+}
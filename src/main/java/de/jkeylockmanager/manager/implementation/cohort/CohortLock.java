@@ -0,0 +1,324 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.cohort;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+
+/**
+ * 
+ * Special lock implementation for internal use in this package only.
+ * 
+ * {@link CohortLock} is a reentrant cohort lock: a global lock and one local
+ * lock per node. A thread first acquires the local lock of its node and then
+ * the global lock, unless a thread of the same node handed both over to it.
+ * On release, the local lock is handed over to the longest waiting thread of
+ * the node together with the global lock, so threads of other nodes do not
+ * touch the lock at all. After the given number of consecutive handovers
+ * within a node, or if no thread of the node is waiting, the global lock is
+ * released to the node waiting longest for it, so threads on other nodes
+ * cannot starve.
+ * 
+ * The global lock is a fair {@link Semaphore}, as it is acquired and released
+ * by different threads of a node. Each local lock has its own monitor, so
+ * threads of different nodes do not contend on one monitor.
+ * 
+ * {@link CohortLock} adds a counter for counting its uses. The counting
+ * functionality is not thread safe and so it is essential to use the following
+ * methods only inside of a compute function of the map holding the lock:
+ * 
+ * {@link #decrementUses()}, {@link #incrementUses()}, {@link #isUsed()}
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+final class CohortLock {
+
+	private final Semaphore global = new Semaphore(1, true);
+	private final ConcurrentHashMap<Integer, Cohort> node2cohort = new ConcurrentHashMap<>();
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+	private final int maxLocalHandovers;
+	private long uses = 0;
+
+	/**
+	 * Creates a new instance of {@link CohortLock} with a usage counter set to
+	 * zero.
+	 * 
+	 * @param lockTimeout
+	 *            - the time to wait for a lock before an Exception is thrown -
+	 *            must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            - the unit for lockTimeout - must not be null
+	 * @param maxLocalHandovers
+	 *            - the maximum number of consecutive handovers within a node -
+	 *            must not be negative
+	 */
+	CohortLock(final long lockTimeout, final TimeUnit lockTimeoutUnit, final int maxLocalHandovers) {
+		assert lockTimeout > 0 : "contract broken: lockTimeout > 0";
+		assert lockTimeoutUnit != null : "contract broken: lockTimeoutUnit != null";
+		assert maxLocalHandovers >= 0 : "contract broken: maxLocalHandovers >= 0";
+
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+		this.maxLocalHandovers = maxLocalHandovers;
+	}
+
+	/**
+	 * Decrements the usage counter. See class commentary for thread safety!
+	 */
+	void decrementUses() {
+		uses--;
+	}
+
+	/**
+	 * @return the number of threads waiting for a local lock or for the global
+	 *         lock
+	 */
+	int getQueueLength() {
+		int result = global.getQueueLength();
+		for (final Cohort cohort : node2cohort.values()) {
+			result += cohort.getQueueLength();
+		}
+		return result;
+	}
+
+	/**
+	 * Increments the usage counter. See class commentary for thread safety!
+	 */
+	void incrementUses() {
+		uses++;
+	}
+
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @return true, if the usage counter is not zero
+	 */
+	boolean isUsed() {
+		return uses != 0;
+	}
+
+	/**
+	 * Acquires the lock. If the lock is held by another thread, the current
+	 * thread waits until the lock is handed over to it or the global lock
+	 * becomes free.
+	 * 
+	 * @param node
+	 *            - the node of the current thread
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for
+	 *             the lock
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded
+	 */
+	void tryLock(final int node) {
+		if (Thread.interrupted()) {
+			throw new KeyLockManagerInterruptedException();
+		}
+		final Cohort cohort = node2cohort.computeIfAbsent(node, n -> new Cohort());
+		final long nanos = cohort.lock(lockTimeoutUnit.toNanos(lockTimeout));
+		if (nanos < 0) {
+			return;
+		}
+		final boolean acquired;
+		try {
+			acquired = global.tryAcquire(nanos, TimeUnit.NANOSECONDS);
+		} catch (final InterruptedException e) {
+			cohort.unlock(false);
+			throw new KeyLockManagerInterruptedException();
+		}
+		if (!acquired) {
+			cohort.unlock(false);
+			throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
+		}
+		cohort.ownGlobal();
+	}
+
+	/**
+	 * Releases the lock and hands it over to the next waiting thread.
+	 * 
+	 * @param node
+	 *            - the node of the current thread
+	 * 
+	 * @throws IllegalMonitorStateException
+	 *             if the current thread does not hold this lock
+	 */
+	void unlock(final int node) {
+		final Cohort cohort = node2cohort.get(node);
+		if (cohort == null) {
+			throw new IllegalMonitorStateException();
+		}
+		if (cohort.unlock(true)) {
+			global.release();
+		}
+	}
+
+	/**
+	 * The local lock of one node.
+	 */
+	private final class Cohort {
+
+		private final ReentrantLock monitor = new ReentrantLock();
+		private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+		private Thread owner;
+		private int holds = 0;
+		private boolean globalOwned = false;
+		private int localHandovers = 0;
+
+		private int getQueueLength() {
+			monitor.lock();
+			try {
+				return waiters.size();
+			} finally {
+				monitor.unlock();
+			}
+		}
+
+		/**
+		 * Acquires the local lock.
+		 * 
+		 * @return -1, if the global lock is owned by the cohort already, else
+		 *         the remaining nanoseconds to wait for the global lock
+		 */
+		private long lock(final long timeoutNanos) {
+			final Thread current = Thread.currentThread();
+			monitor.lock();
+			try {
+				if (owner == current) {
+					holds++;
+					return -1;
+				}
+				if (owner == null) {
+					owner = current;
+					holds = 1;
+					return timeoutNanos;
+				}
+				final Waiter waiter = new Waiter(current, monitor.newCondition());
+				waiters.add(waiter);
+				long nanos = timeoutNanos;
+				try {
+					while (!waiter.granted) {
+						if (nanos <= 0) {
+							throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
+						}
+						nanos = waiter.condition.awaitNanos(nanos);
+					}
+				} catch (final InterruptedException e) {
+					if (waiter.granted) {
+						if (release()) {
+							global.release();
+						}
+					}
+					throw new KeyLockManagerInterruptedException();
+				} finally {
+					if (!waiter.granted) {
+						waiters.remove(waiter);
+					}
+				}
+				return globalOwned ? -1 : Math.max(nanos, 0);
+			} finally {
+				monitor.unlock();
+			}
+		}
+
+		private void ownGlobal() {
+			monitor.lock();
+			try {
+				assert owner == Thread.currentThread() : "contract broken: owner == Thread.currentThread()";
+				globalOwned = true;
+				localHandovers = 0;
+			} finally {
+				monitor.unlock();
+			}
+		}
+
+		/**
+		 * Hands the local lock over to the longest waiting thread of the node -
+		 * together with the global lock, if the cohort owns it and the
+		 * handovers within the node are not exhausted.
+		 * 
+		 * @return true, if the global lock has to be released by the caller
+		 */
+		private boolean release() {
+			assert monitor.isHeldByCurrentThread() : "contract broken: monitor.isHeldByCurrentThread()";
+			final Waiter next = waiters.poll();
+			final boolean releaseGlobal = globalOwned && (next == null || localHandovers >= maxLocalHandovers);
+			if (releaseGlobal) {
+				globalOwned = false;
+				localHandovers = 0;
+			} else if (globalOwned) {
+				localHandovers++;
+			}
+			if (next == null) {
+				owner = null;
+				holds = 0;
+			} else {
+				owner = next.thread;
+				holds = 1;
+				next.granted = true;
+				next.condition.signal();
+			}
+			return releaseGlobal;
+		}
+
+		/**
+		 * Releases the local lock.
+		 * 
+		 * @param complete
+		 *            - false, if the current thread failed to acquire the global
+		 *            lock and gives up the local lock
+		 * 
+		 * @return true, if the global lock has to be released by the caller
+		 */
+		private boolean unlock(final boolean complete) {
+			final Thread current = Thread.currentThread();
+			monitor.lock();
+			try {
+				if (owner != current) {
+					throw new IllegalMonitorStateException();
+				}
+				if (complete && --holds != 0) {
+					return false;
+				}
+				return release();
+			} finally {
+				monitor.unlock();
+			}
+		}
+	}
+
+	private static final class Waiter {
+
+		private final Thread thread;
+		private final Condition condition;
+		private boolean granted = false;
+
+		private Waiter(final Thread thread, final Condition condition) {
+			this.thread = thread;
+			this.condition = condition;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.cohort;
+
+/**
+ * Maps a thread to the node it runs on, for example the socket or the group of
+ * cores sharing a cache. Threads on the same node form a cohort, that prefers
+ * to hand over a lock within itself.
+ *
+ * The mapping is pluggable, because Java does not expose the processor of a
+ * thread. A typical mapping uses one thread pool per node, whose threads are
+ * pinned by the operating system and recognized by their name or by a thread
+ * local set at start.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+@FunctionalInterface
+public interface NodeMapper {
+
+	/**
+	 * Maps all threads to the same node.
+	 */
+	NodeMapper SINGLE_NODE = thread -> 0;
+
+	/**
+	 * @param thread
+	 *            the thread to map - never null
+	 *
+	 * @return the node of the given thread
+	 */
+	int nodeOf(Thread thread);
+
+}
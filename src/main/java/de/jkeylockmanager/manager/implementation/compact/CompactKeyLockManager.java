@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.compact;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link KeyLockManager} for very large sets of active keys.
+ *
+ * An active key costs a map node and one compact lock object with four fields. There is no separate lock or queue
+ * object per key: threads wait in the object monitor of the lock, which the JVM inflates only if the key is contended.
+ *
+ * All resources used by one key are freed immediately, if there is no longer a thread in the locked block for this key.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class CompactKeyLockManager implements KeyLockManager {
+
+
+	private final ConcurrentHashMap<Object, CompactLock> key2lock = new ConcurrentHashMap<>();
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+
+
+	/**
+	 * Creates a new instance of {@link CompactKeyLockManager} with the given settings.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 */
+	public CompactKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		Contract.isNotNull(lockTimeoutUnit, "lockTimeoutUnit != null");
+		Contract.isTrue(lockTimeout > 0, "lockTimeout > 0");
+
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+	}
+
+
+	@Override
+	public void executeLocked(final Object key, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeLockedInternal(key, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	@Override
+	public <R> R executeLocked(final Object key, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeLockedInternal(key, callback);
+	}
+
+
+	private <R> R executeLockedInternal(final Object key, final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert callback != null : "contract broken: callback != null";
+
+		final CompactLock lock = getKeyLock(key);
+		try {
+			lock.tryLock(lockTimeout, lockTimeoutUnit);
+			try {
+				return callback.doInLock();
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			freeKeyLock(key);
+		}
+	}
+
+	private void freeKeyLock(final Object key) {
+		assert key != null : "contract broken: key != null";
+		key2lock.computeIfPresent(key, (k, lock) -> {
+			lock.decrementUses();
+			return lock.isUsed() ? lock : null;
+		});
+	}
+
+	private CompactLock getKeyLock(final Object key) {
+		assert key != null : "contract broken: key != null";
+		return key2lock.compute(key, (k, previousLock) -> {
+			final CompactLock result = previousLock == null ? new CompactLock() : previousLock;
+			result.incrementUses();
+			return result;
+		});
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of currently active key locks
+	 *
+	 */
+	int activeKeyLocksCount() {
+		return key2lock.size();
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of threads currently waiting in the queues of the key locks
+	 */
+	int waitingThreadsCount() {
+		int result = 0;
+		for (final CompactLock lock : key2lock.values()) {
+			result += lock.getQueueLength();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.compact;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+
+/**
+ * 
+ * Special lock implementation for internal use in this package only.
+ * 
+ * {@link CompactLock} is a reentrant lock with a small memory footprint. An
+ * uncontended lock is acquired by setting its owner. Threads wait in the
+ * object monitor of the lock, which the JVM inflates only under contention.
+ * 
+ * {@link CompactLock} adds a counter for counting its uses. The counting
+ * functionality is not thread safe and so it is essential to use the following
+ * methods only inside of a compute function of the map holding the lock:
+ * 
+ * {@link #decrementUses()}, {@link #incrementUses()}, {@link #isUsed()}
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+final class CompactLock {
+
+	private static final AtomicReferenceFieldUpdater<CompactLock, Thread> OWNER = AtomicReferenceFieldUpdater
+			.newUpdater(CompactLock.class, Thread.class, "owner");
+
+	private volatile Thread owner;
+	private volatile int waiters = 0;
+	private int holds = 0;
+	private int uses = 0;
+
+	/**
+	 * Decrements the usage counter. See class commentary for thread safety!
+	 */
+	void decrementUses() {
+		uses--;
+	}
+
+	/**
+	 * @return the number of threads waiting for this lock
+	 */
+	int getQueueLength() {
+		return waiters;
+	}
+
+	/**
+	 * Increments the usage counter. See class commentary for thread safety!
+	 */
+	void incrementUses() {
+		uses++;
+	}
+
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @return true, if the usage counter is not zero
+	 */
+	boolean isUsed() {
+		return uses != 0;
+	}
+
+	/**
+	 * Acquires the lock within the given time.
+	 * 
+	 * @param lockTimeout
+	 *            - the time to wait for the lock
+	 * @param lockTimeoutUnit
+	 *            - the unit for lockTimeout
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for
+	 *             the lock
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the waiting time is exceeded
+	 */
+	void tryLock(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		if (Thread.interrupted()) {
+			throw new KeyLockManagerInterruptedException();
+		}
+		final Thread current = Thread.currentThread();
+		if (owner == current) {
+			holds++;
+			return;
+		}
+		if (OWNER.compareAndSet(this, null, current)) {
+			holds = 1;
+			return;
+		}
+		final long start = System.nanoTime();
+		final long timeoutNanos = lockTimeoutUnit.toNanos(lockTimeout);
+		synchronized (this) {
+			// waiters must be visible before the owner is checked again - see unlock
+			waiters++;
+			try {
+				while (!OWNER.compareAndSet(this, null, current)) {
+					final long remaining = timeoutNanos - (System.nanoTime() - start);
+					if (remaining <= 0) {
+						throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
+					}
+					wait(remaining / 1000000, (int) (remaining % 1000000));
+				}
+				holds = 1;
+			} catch (final InterruptedException e) {
+				throw new KeyLockManagerInterruptedException();
+			} finally {
+				waiters--;
+			}
+		}
+	}
+
+	/**
+	 * Releases the lock and wakes up one waiting thread.
+	 * 
+	 * @throws IllegalMonitorStateException
+	 *             if the current thread does not hold this lock
+	 */
+	void unlock() {
+		if (owner != Thread.currentThread()) {
+			throw new IllegalMonitorStateException();
+		}
+		if (--holds > 0) {
+			return;
+		}
+		owner = null;
+		if (waiters > 0) {
+			synchronized (this) {
+				notify();
+			}
+		}
+	}
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.deadlock;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.BooleanLockCallback;
+import de.jkeylockmanager.manager.CheckedLockCallback;
+import de.jkeylockmanager.manager.ConditionKeyLockManager;
+import de.jkeylockmanager.manager.HandleKeyLockManager;
+import de.jkeylockmanager.manager.IntLockCallback;
+import de.jkeylockmanager.manager.KeyCondition;
+import de.jkeylockmanager.manager.KeyLock;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.LongLockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+import de.jkeylockmanager.manager.exception.KeyLockManagerDeadlockException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Decorator of a {@link HandleKeyLockManager} and {@link ConditionKeyLockManager}, that detects deadlocks between threads locking keys in inconsistent order.
+ *
+ * The decorator maintains a wait-for graph: the owner of each locked key and the key each thread waits for. Before a
+ * thread starts waiting, it follows the graph from the key it waits for. If the graph leads back to the thread, it
+ * fails immediately with a {@link KeyLockManagerDeadlockException} naming the keys of the cycle, instead of waiting
+ * for the timeout. The other threads of the cycle are not affected.
+ *
+ * The graph is guarded by one lock, that is taken three times per locked execution. So the decorator is meant for
+ * development, tests and the diagnosis of deadlocks rather than for highly contended production use.
+ *
+ * Limited executions of the delegate are passed through without detection, as they have no single owner. A thread
+ * awaiting a {@link KeyCondition} gives up the ownership of the key in the graph until it has reacquired the lock. Its
+ * reacquisition is not checked for cycles, as a {@link KeyLockManagerDeadlockException} can not be thrown there without
+ * leaving the unit of work.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class DeadlockDetectingKeyLockManager implements HandleKeyLockManager, ConditionKeyLockManager {
+
+
+	private final ReentrantLock graphLock = new ReentrantLock();
+	private final Map<Object, Owner> key2owner = new HashMap<>();
+	private final Map<Thread, Object> thread2waitedKey = new HashMap<>();
+	private final HandleKeyLockManager delegate;
+	private final ConditionKeyLockManager conditions;
+
+
+	/**
+	 * Creates a new instance of {@link DeadlockDetectingKeyLockManager}.
+	 *
+	 * @param delegate
+	 *            the manager doing the locking - must not be null
+	 */
+	public <M extends HandleKeyLockManager & ConditionKeyLockManager> DeadlockDetectingKeyLockManager(final M delegate) {
+		Contract.isNotNull(delegate, "delegate != null");
+
+		this.delegate = delegate;
+		this.conditions = delegate;
+	}
+
+
+	@Override
+	public KeyLock acquire(final Object key) {
+		Contract.isNotNull(key, "key != null");
+
+		beginWait(key);
+		final KeyLock lock;
+		try {
+			lock = delegate.acquire(key);
+		} catch (final RuntimeException | Error e) {
+			endWait();
+			throw e;
+		}
+		own(key);
+		return new Handle(key, lock);
+	}
+
+	@Override
+	public void executeLimited(final Object key, final int permits, final LockCallback callback) {
+		delegate.executeLimited(key, permits, callback);
+	}
+
+	@Override
+	public <R> R executeLimited(final Object key, final int permits, final ReturnValueLockCallback<R> callback) {
+		return delegate.executeLimited(key, permits, callback);
+	}
+
+	@Override
+	public void executeLocked(final Object key, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeDetected(key, c -> delegate.executeLocked(key, c), () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	@Override
+	public <R> R executeLocked(final Object key, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeDetected(key, c -> delegate.executeLocked(key, c), callback);
+	}
+
+	@Override
+	public void executeLocked(final Object key, final int priority, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeDetected(key, c -> delegate.executeLocked(key, priority, c), () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	@Override
+	public <R> R executeLocked(final Object key, final int priority, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeDetected(key, c -> delegate.executeLocked(key, priority, c), callback);
+	}
+
+	@Override
+	public boolean executeLockedBoolean(final Object key, final BooleanLockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		beginWait(key);
+		try {
+			return delegate.executeLockedBoolean(key, () -> {
+				own(key);
+				try {
+					return callback.doInLock();
+				} finally {
+					disown(key);
+				}
+			});
+		} catch (final RuntimeException | Error e) {
+			endWait();
+			throw e;
+		}
+	}
+
+	@Override
+	public <R, E extends Exception> R executeLockedChecked(final Object key, final CheckedLockCallback<R, E> callback)
+			throws E {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		beginWait(key);
+		try {
+			return delegate.executeLockedChecked(key, () -> {
+				own(key);
+				try {
+					return callback.doInLock();
+				} finally {
+					disown(key);
+				}
+			});
+		} catch (final Exception | Error e) {
+			endWait();
+			throw e;
+		}
+	}
+
+	@Override
+	public int executeLockedInt(final Object key, final IntLockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		beginWait(key);
+		try {
+			return delegate.executeLockedInt(key, () -> {
+				own(key);
+				try {
+					return callback.doInLock();
+				} finally {
+					disown(key);
+				}
+			});
+		} catch (final RuntimeException | Error e) {
+			endWait();
+			throw e;
+		}
+	}
+
+	@Override
+	public long executeLockedLong(final Object key, final LongLockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		beginWait(key);
+		try {
+			return delegate.executeLockedLong(key, () -> {
+				own(key);
+				try {
+					return callback.doInLock();
+				} finally {
+					disown(key);
+				}
+			});
+		} catch (final RuntimeException | Error e) {
+			endWait();
+			throw e;
+		}
+	}
+
+	@Override
+	public KeyCondition getCondition(final Object key) {
+		Contract.isNotNull(key, "key != null");
+
+		return new DetectingCondition(key, conditions.getCondition(key));
+	}
+
+
+	/**
+	 * Registers the current thread as waiting for the given key, if it does not own the key already.
+	 *
+	 * @throws KeyLockManagerDeadlockException
+	 *             if waiting would close a cycle in the wait-for graph
+	 */
+	private void beginWait(final Object key) {
+		assert key != null : "contract broken: key != null";
+		final Thread current = Thread.currentThread();
+		graphLock.lock();
+		try {
+			final Owner owner = key2owner.get(key);
+			if (owner != null && owner.thread == current) {
+				return;
+			}
+			final List<Object> cycle = new ArrayList<>();
+			Object waitedKey = key;
+			// a cycle without the current thread would have been detected by one of its members
+			for (int i = 0; waitedKey != null && i <= thread2waitedKey.size(); i++) {
+				cycle.add(waitedKey);
+				final Owner waitedKeyOwner = key2owner.get(waitedKey);
+				if (waitedKeyOwner == null) {
+					break;
+				}
+				if (waitedKeyOwner.thread == current) {
+					throw new KeyLockManagerDeadlockException(cycle);
+				}
+				waitedKey = thread2waitedKey.get(waitedKeyOwner.thread);
+			}
+			thread2waitedKey.put(current, key);
+		} finally {
+			graphLock.unlock();
+		}
+	}
+
+	private void disown(final Object key) {
+		assert key != null : "contract broken: key != null";
+		graphLock.lock();
+		try {
+			final Owner owner = key2owner.get(key);
+			// a missing ownership must not fail the release of the lock
+			if (owner == null) {
+				return;
+			}
+			assert owner.thread == Thread.currentThread() : "contract broken: owner is current thread";
+			owner.holds--;
+			if (owner.holds == 0) {
+				key2owner.remove(key);
+			}
+		} finally {
+			graphLock.unlock();
+		}
+	}
+
+	private void endWait() {
+		graphLock.lock();
+		try {
+			thread2waitedKey.remove(Thread.currentThread());
+		} finally {
+			graphLock.unlock();
+		}
+	}
+
+	private <R> R executeDetected(final Object key, final Function<ReturnValueLockCallback<R>, R> locker,
+			final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert locker != null : "contract broken: locker != null";
+		assert callback != null : "contract broken: callback != null";
+
+		beginWait(key);
+		final boolean[] owned = new boolean[1];
+		try {
+			return locker.apply(() -> {
+				own(key);
+				owned[0] = true;
+				try {
+					return callback.doInLock();
+				} finally {
+					disown(key);
+				}
+			});
+		} finally {
+			if (!owned[0]) {
+				endWait();
+			}
+		}
+	}
+
+	private void own(final Object key) {
+		assert key != null : "contract broken: key != null";
+		final Thread current = Thread.currentThread();
+		graphLock.lock();
+		try {
+			thread2waitedKey.remove(current);
+			final Owner owner = key2owner.computeIfAbsent(key, k -> new Owner(current));
+			assert owner.thread == current : "contract broken: owner is current thread";
+			owner.holds++;
+		} finally {
+			graphLock.unlock();
+		}
+	}
+
+	/**
+	 * Restores the ownership of the given key by the current thread, that was given up by {@link #suspend(Object)}.
+	 */
+	private void resume(final Object key, final int holds) {
+		assert key != null : "contract broken: key != null";
+		if (holds == 0) {
+			return;
+		}
+		final Thread current = Thread.currentThread();
+		graphLock.lock();
+		try {
+			final Owner owner = key2owner.computeIfAbsent(key, k -> new Owner(current));
+			assert owner.thread == current : "contract broken: owner is current thread";
+			owner.holds += holds;
+		} finally {
+			graphLock.unlock();
+		}
+	}
+
+	/**
+	 * Gives up the ownership of the given key by the current thread for the time it releases the lock of the key.
+	 *
+	 * @return the number of holds given up
+	 */
+	private int suspend(final Object key) {
+		assert key != null : "contract broken: key != null";
+		graphLock.lock();
+		try {
+			final Owner owner = key2owner.get(key);
+			if (owner == null) {
+				return 0;
+			}
+			assert owner.thread == Thread.currentThread() : "contract broken: owner is current thread";
+			key2owner.remove(key);
+			return owner.holds;
+		} finally {
+			graphLock.unlock();
+		}
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of keys with an owner and of threads waiting for a key
+	 */
+	int graphSize() {
+		graphLock.lock();
+		try {
+			return key2owner.size() + thread2waitedKey.size();
+		} finally {
+			graphLock.unlock();
+		}
+	}
+
+	/**
+	 * Condition of the delegate, that suspends the ownership of its key in the graph while awaiting.
+	 */
+	private final class DetectingCondition implements KeyCondition {
+
+		private final Object key;
+		private final KeyCondition condition;
+
+		private DetectingCondition(final Object key, final KeyCondition condition) {
+			this.key = key;
+			this.condition = condition;
+		}
+
+		@Override
+		public boolean await(final long timeout, final TimeUnit unit) {
+			final int holds = suspend(key);
+			try {
+				return condition.await(timeout, unit);
+			} finally {
+				resume(key, holds);
+			}
+		}
+
+		@Override
+		public void signal() {
+			condition.signal();
+		}
+
+		@Override
+		public void signalAll() {
+			condition.signalAll();
+		}
+	}
+
+	/**
+	 * Handle of one lock acquired by {@link #acquire(Object)}.
+	 */
+	private final class Handle implements KeyLock {
+
+		private final Object key;
+		private final KeyLock lock;
+		private final Thread owner = Thread.currentThread();
+		private boolean closed = false;
+
+		private Handle(final Object key, final KeyLock lock) {
+			this.key = key;
+			this.lock = lock;
+		}
+
+		@Override
+		public void close() {
+			Contract.isTrue(owner == Thread.currentThread(), "handle is closed by its thread");
+
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				disown(key);
+			} finally {
+				lock.close();
+			}
+		}
+	}
+
+	/**
+	 * The owner of a key and the number of its holds.
+	 */
+	private static final class Owner {
+
+		private final Thread thread;
+		private int holds = 0;
+
+		private Owner(final Thread thread) {
+			this.thread = thread;
+		}
+	}
+}
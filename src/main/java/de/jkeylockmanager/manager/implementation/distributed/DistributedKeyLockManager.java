@@ -0,0 +1,423 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.distributed;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import de.jkeylockmanager.manager.implementation.lockstripe.StripedKeyLockManager;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of {@link KeyLockManager}, that protects a key across processes.
+ *
+ * The threads of one process are serialized by a local {@link StripedKeyLockManager} first. Only the thread entering
+ * the local lock of a key needs a lease for this key from the {@link LockBackend}, which coordinates the processes.
+ *
+ * Leases are cached: a lease is kept after use and reused without a round-trip to the backend, until it is idle longer
+ * than the lease linger time or another process asks for it. All messages to the backend are sent by one sender
+ * thread, which batches the messages collected while the previous batch was sent.
+ *
+ * The lock timeout applies to the local waiting time and the waiting time for the lease together.
+ *
+ * If the backend fails to take a batch, the failure is logged and the messages are sent again after a short delay.
+ * Requests for leases, that no thread waits for anymore, are dropped instead.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class DistributedKeyLockManager implements KeyLockManager, Closeable {
+
+
+	/**
+	 * Default lease linger time in milliseconds
+	 */
+	private static final long DEFAULT_LEASE_LINGER = 100;
+
+	/**
+	 * Delay in milliseconds before messages are sent again, that the backend failed to take
+	 */
+	private static final long RETRY_DELAY = 10;
+
+	private static final Logger LOGGER = Logger.getLogger(DistributedKeyLockManager.class.getName());
+
+
+	private final StripedKeyLockManager localManager;
+	private final LockBackend backend;
+	private final ConcurrentHashMap<Object, Lease> key2lease = new ConcurrentHashMap<>();
+	private final LinkedBlockingQueue<Message> outbox = new LinkedBlockingQueue<>();
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+	private final long leaseLingerNanos;
+	private final Thread sender;
+	private volatile boolean closed = false;
+
+
+	/**
+	 * Creates a new instance of {@link DistributedKeyLockManager} with a default lease linger time
+	 *
+	 * see #DistributedKeyLockManager(LockBackend, long, java.util.concurrent.TimeUnit, long,
+	 * java.util.concurrent.TimeUnit)
+	 *
+	 */
+	public DistributedKeyLockManager(final LockBackend backend, final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		this(backend, lockTimeout, lockTimeoutUnit, DEFAULT_LEASE_LINGER, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a new instance of {@link DistributedKeyLockManager} with the given settings and opens the backend.
+	 *
+	 * @param backend
+	 *            the backend used to coordinate the processes - must not be null and must not be opened yet
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 * @param leaseLinger
+	 *            the time an unused lease is kept for reuse - must not be negative
+	 * @param leaseLingerUnit
+	 *            the unit for leaseLinger - must not be null
+	 */
+	public DistributedKeyLockManager(final LockBackend backend, final long lockTimeout, final TimeUnit lockTimeoutUnit,
+			final long leaseLinger, final TimeUnit leaseLingerUnit) {
+		Contract.isNotNull(backend, "backend != null");
+		Contract.isNotNull(lockTimeoutUnit, "lockTimeoutUnit != null");
+		Contract.isTrue(lockTimeout > 0, "lockTimeout > 0");
+		Contract.isNotNull(leaseLingerUnit, "leaseLingerUnit != null");
+		Contract.isTrue(leaseLinger >= 0, "leaseLinger >= 0");
+
+		this.localManager = new StripedKeyLockManager(lockTimeout, lockTimeoutUnit);
+		this.backend = backend;
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+		this.leaseLingerNanos = leaseLingerUnit.toNanos(leaseLinger);
+		this.sender = new Thread(this::sendMessages, "jkeylockmanager-lease-sender");
+		this.sender.setDaemon(true);
+
+		backend.open(new BackendListener());
+		sender.start();
+	}
+
+
+	@Override
+	public void executeLocked(final Object key, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeLockedInternal(key, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	@Override
+	public <R> R executeLocked(final Object key, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeLockedInternal(key, callback);
+	}
+
+	/**
+	 * Stops the sender thread, returns all leases and closes the backend. No thread may execute a callback of this
+	 * manager while or after it is closed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		sender.interrupt();
+		try {
+			sender.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final List<Object> keys = new ArrayList<>();
+		for (final Map.Entry<Object, Lease> entry : key2lease.entrySet()) {
+			final Lease lease = entry.getValue();
+			lease.lock();
+			try {
+				if (lease.isGranted()) {
+					lease.revoke();
+					keys.add(entry.getKey());
+				}
+			} finally {
+				lease.unlock();
+			}
+		}
+		key2lease.clear();
+		if (!keys.isEmpty()) {
+			backend.release(keys);
+		}
+		backend.close();
+	}
+
+
+	private <R> R executeLockedInternal(final Object key, final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert callback != null : "contract broken: callback != null";
+		Contract.isTrue(!closed, "!closed");
+
+		final long start = System.nanoTime();
+		return localManager.executeLocked(key, () -> {
+			final Lease lease = acquireLease(key, start);
+			try {
+				return callback.doInLock();
+			} finally {
+				releaseLease(key, lease);
+			}
+		});
+	}
+
+	private Lease acquireLease(final Object key, final long start) {
+		assert key != null : "contract broken: key != null";
+		for (;;) {
+			final Lease lease = key2lease.computeIfAbsent(key, k -> new Lease());
+			lease.lock();
+			try {
+				if (lease.isRemoved()) {
+					continue;
+				}
+				if (!lease.isGranted()) {
+					if (!lease.isRequested()) {
+						lease.request();
+						outbox.add(new Message(true, key));
+					}
+					final long remaining = lockTimeoutUnit.toNanos(lockTimeout) - (System.nanoTime() - start);
+					if (!lease.awaitGranted(remaining)) {
+						throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
+					}
+				}
+				lease.incrementHolds();
+				return lease;
+			} catch (final InterruptedException e) {
+				throw new KeyLockManagerInterruptedException();
+			} finally {
+				lease.unlock();
+			}
+		}
+	}
+
+	private boolean isReturnDue(final Lease lease) {
+		assert lease != null : "contract broken: lease != null";
+		return lease.isRevokeRequested() || leaseLingerNanos == 0;
+	}
+
+	private void releaseLease(final Object key, final Lease lease) {
+		assert key != null : "contract broken: key != null";
+		assert lease != null : "contract broken: lease != null";
+		lease.lock();
+		try {
+			if (lease.decrementHolds() == 0 && isReturnDue(lease)) {
+				returnLease(key, lease);
+			}
+		} finally {
+			lease.unlock();
+		}
+	}
+
+	private void returnLease(final Object key, final Lease lease) {
+		assert key != null : "contract broken: key != null";
+		assert lease != null : "contract broken: lease != null";
+		if (lease.revoke()) {
+			key2lease.remove(key, lease);
+		}
+		outbox.add(new Message(false, key));
+	}
+
+	private void sendMessages() {
+		final List<Message> batch = new ArrayList<>();
+		final List<Object> acquire = new ArrayList<>();
+		final List<Object> release = new ArrayList<>();
+		long lastSweep = System.nanoTime();
+		while (!closed) {
+			try {
+				final Message first = outbox.poll(leaseLingerNanos == 0 ? Long.MAX_VALUE : leaseLingerNanos,
+						TimeUnit.NANOSECONDS);
+				if (first != null) {
+					batch.add(first);
+					outbox.drainTo(batch);
+					for (final Message message : batch) {
+						(message.acquire ? acquire : release).add(message.key);
+					}
+					// releases first - a key released and requested again must not be lost
+					if (!release.isEmpty()) {
+						backend.release(release);
+						release.clear();
+					}
+					if (!acquire.isEmpty()) {
+						backend.acquire(acquire);
+						acquire.clear();
+					}
+				}
+				if (leaseLingerNanos > 0 && System.nanoTime() - lastSweep >= leaseLingerNanos) {
+					returnIdleLeases();
+					lastSweep = System.nanoTime();
+				}
+			} catch (final InterruptedException e) {
+				return;
+			} catch (final RuntimeException e) {
+				LOGGER.log(Level.WARNING, "the lock backend failed to take " + (release.size() + acquire.size())
+						+ " messages - sending them again", e);
+				resendMessages(release, acquire);
+				if (!pauseBeforeRetry()) {
+					return;
+				}
+			} finally {
+				batch.clear();
+				acquire.clear();
+				release.clear();
+			}
+		}
+	}
+
+	private boolean pauseBeforeRetry() {
+		try {
+			Thread.sleep(RETRY_DELAY);
+			return true;
+		} catch (final InterruptedException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Queues the messages, that the backend failed to take, again. The releases are queued first, so they are sent
+	 * before the requests as in the original batch. A request is dropped, if no thread waits for the lease anymore.
+	 */
+	private void resendMessages(final List<Object> release, final List<Object> acquire) {
+		assert release != null : "contract broken: release != null";
+		assert acquire != null : "contract broken: acquire != null";
+		for (final Object key : release) {
+			outbox.add(new Message(false, key));
+		}
+		for (final Object key : acquire) {
+			final Lease lease = key2lease.get(key);
+			if (lease == null) {
+				continue;
+			}
+			lease.lock();
+			try {
+				if (lease.isRemoved()) {
+					continue;
+				}
+				if (lease.isAwaited()) {
+					outbox.add(new Message(true, key));
+				} else if (lease.cancelRequest()) {
+					key2lease.remove(key, lease);
+				}
+			} finally {
+				lease.unlock();
+			}
+		}
+	}
+
+	private void returnIdleLeases() {
+		for (final Map.Entry<Object, Lease> entry : key2lease.entrySet()) {
+			final Lease lease = entry.getValue();
+			lease.lock();
+			try {
+				if (!lease.isRemoved() && lease.isIdleLongerThan(leaseLingerNanos)) {
+					returnLease(entry.getKey(), lease);
+				}
+			} finally {
+				lease.unlock();
+			}
+		}
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of leases currently known by this manager
+	 *
+	 */
+	int activeLeasesCount() {
+		return key2lease.size();
+	}
+
+
+	private final class BackendListener implements LockBackendListener {
+
+		@Override
+		public void granted(final Collection<Object> keys) {
+			for (final Object key : keys) {
+				boolean done = false;
+				while (!done) {
+					final Lease lease = key2lease.computeIfAbsent(key, k -> new Lease());
+					lease.lock();
+					try {
+						if (!lease.isRemoved()) {
+							lease.grant();
+							if (lease.isIdle() && isReturnDue(lease)) {
+								returnLease(key, lease);
+							}
+							done = true;
+						}
+					} finally {
+						lease.unlock();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void revoked(final Collection<Object> keys) {
+			for (final Object key : keys) {
+				final Lease lease = key2lease.get(key);
+				if (lease == null) {
+					continue;
+				}
+				lease.lock();
+				try {
+					if (lease.isRemoved()) {
+						continue;
+					}
+					if (lease.isIdle()) {
+						returnLease(key, lease);
+					} else {
+						lease.requestRevoke();
+					}
+				} finally {
+					lease.unlock();
+				}
+			}
+		}
+	}
+
+	private static final class Message {
+
+		private final boolean acquire;
+		private final Object key;
+
+		private Message(final boolean acquire, final Object key) {
+			this.acquire = acquire;
+			this.key = key;
+		}
+	}
+}
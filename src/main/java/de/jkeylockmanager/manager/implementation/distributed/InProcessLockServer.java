@@ -0,0 +1,201 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.distributed;
+
+import de.jkeylockmanager.contract.Contract;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reference implementation of a lease arbiter for {@link LockBackend}s in one process.
+ *
+ * Every backend created by {@link #newBackend()} represents one node. Leases are granted to the waiting nodes in
+ * arrival order. If a node waits for a lease, the holder of the lease is asked to return it.
+ *
+ * This implementation is meant for testing and as the arbiter behind a server, that connects the nodes of several processes.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class InProcessLockServer {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<Object, Entry> key2entry = new HashMap<>();
+
+
+	/**
+	 * @return a new, not yet opened backend representing a new node
+	 */
+	public LockBackend newBackend() {
+		return new Node();
+	}
+
+
+	private void acquire(final Node node, final Collection<Object> keys) {
+		final Notifications notifications = new Notifications();
+		lock.lock();
+		try {
+			for (final Object key : keys) {
+				final Entry entry = key2entry.computeIfAbsent(key, k -> new Entry());
+				if (entry.owner == null || entry.owner == node) {
+					entry.owner = node;
+					notifications.grant(node, key);
+				} else if (!entry.waiting.contains(node)) {
+					entry.waiting.add(node);
+					notifications.revoke(entry.owner, key);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		notifications.send();
+	}
+
+	private void close(final Node node) {
+		final Notifications notifications = new Notifications();
+		lock.lock();
+		try {
+			final Iterator<Map.Entry<Object, Entry>> iterator = key2entry.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<Object, Entry> mapEntry = iterator.next();
+				final Entry entry = mapEntry.getValue();
+				entry.waiting.remove(node);
+				if (entry.owner == node && !handOver(mapEntry.getKey(), entry, notifications)) {
+					iterator.remove();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		notifications.send();
+	}
+
+	private boolean handOver(final Object key, final Entry entry, final Notifications notifications) {
+		assert lock.isHeldByCurrentThread() : "contract broken: lock.isHeldByCurrentThread()";
+		entry.owner = entry.waiting.poll();
+		if (entry.owner == null) {
+			return false;
+		}
+		notifications.grant(entry.owner, key);
+		if (!entry.waiting.isEmpty()) {
+			notifications.revoke(entry.owner, key);
+		}
+		return true;
+	}
+
+	private void release(final Node node, final Collection<Object> keys) {
+		final Notifications notifications = new Notifications();
+		lock.lock();
+		try {
+			for (final Object key : keys) {
+				final Entry entry = key2entry.get(key);
+				if (entry != null && entry.owner == node && !handOver(key, entry, notifications)) {
+					key2entry.remove(key);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		notifications.send();
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of keys currently leased
+	 */
+	int leasedKeysCount() {
+		lock.lock();
+		try {
+			return key2entry.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	private static final class Entry {
+
+		private final Deque<Node> waiting = new ArrayDeque<>();
+		private Node owner;
+	}
+
+	/**
+	 * Notifications are collected while holding the lock and sent after releasing it.
+	 */
+	private static final class Notifications {
+
+		private final Map<Node, List<Object>> grants = new LinkedHashMap<>();
+		private final Map<Node, List<Object>> revocations = new LinkedHashMap<>();
+
+		private void grant(final Node node, final Object key) {
+			grants.computeIfAbsent(node, n -> new ArrayList<>()).add(key);
+		}
+
+		private void revoke(final Node node, final Object key) {
+			revocations.computeIfAbsent(node, n -> new ArrayList<>()).add(key);
+		}
+
+		private void send() {
+			grants.forEach((node, keys) -> node.listener.granted(keys));
+			revocations.forEach((node, keys) -> node.listener.revoked(keys));
+		}
+	}
+
+	private final class Node implements LockBackend {
+
+		private volatile LockBackendListener listener;
+
+		@Override
+		public void open(final LockBackendListener listener) {
+			Contract.isNotNull(listener, "listener != null");
+			Contract.isTrue(this.listener == null, "not opened yet");
+
+			this.listener = listener;
+		}
+
+		@Override
+		public void acquire(final Collection<Object> keys) {
+			Contract.isNotNull(keys, "keys != null");
+			Contract.isNotNull(listener, "opened");
+
+			InProcessLockServer.this.acquire(this, keys);
+		}
+
+		@Override
+		public void release(final Collection<Object> keys) {
+			Contract.isNotNull(keys, "keys != null");
+			Contract.isNotNull(listener, "opened");
+
+			InProcessLockServer.this.release(this, keys);
+		}
+
+		@Override
+		public void close() {
+			InProcessLockServer.this.close(this);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.distributed;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Lease state of one key for internal use in this package only.
+ *
+ * The state is not thread safe and so it is essential to access it only while holding the lock of the lease, see
+ * {@link #lock()} and {@link #unlock()}.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+final class Lease {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition grantedCondition = lock.newCondition();
+	private boolean granted = false;
+	private boolean requested = false;
+	private boolean revokeRequested = false;
+	private boolean removed = false;
+	private int holds = 0;
+	private int waiters = 0;
+	private long idleSince = System.nanoTime();
+
+	/**
+	 * Waits until the lease is granted.
+	 *
+	 * @param nanos
+	 *            the maximum time to wait
+	 * @return true, if the lease was granted in time
+	 * @throws InterruptedException
+	 *             if the current thread becomes interrupted while waiting
+	 */
+	boolean awaitGranted(final long nanos) throws InterruptedException {
+		assert lock.isHeldByCurrentThread() : "contract broken: lock.isHeldByCurrentThread()";
+		long remaining = nanos;
+		waiters++;
+		try {
+			while (!granted) {
+				if (remaining <= 0) {
+					return false;
+				}
+				remaining = grantedCondition.awaitNanos(remaining);
+			}
+			return true;
+		} finally {
+			waiters--;
+		}
+	}
+
+	/**
+	 * Withdraws the request of the lease, because it could not be sent to the backend.
+	 *
+	 * @return true, if the lease is no longer needed and must be removed
+	 */
+	boolean cancelRequest() {
+		requested = false;
+		removed = !granted && holds == 0 && waiters == 0;
+		return removed;
+	}
+
+	/**
+	 * @return the remaining number of holds
+	 */
+	int decrementHolds() {
+		if (--holds == 0) {
+			idleSince = System.nanoTime();
+		}
+		return holds;
+	}
+
+	/**
+	 * Marks the lease as granted and wakes up the waiting threads.
+	 */
+	void grant() {
+		granted = true;
+		requested = false;
+		idleSince = System.nanoTime();
+		grantedCondition.signalAll();
+	}
+
+	void incrementHolds() {
+		holds++;
+	}
+
+	/**
+	 * @return true, if threads wait for the lease to be granted
+	 */
+	boolean isAwaited() {
+		return waiters != 0;
+	}
+
+	/**
+	 * @return true, if the lease is granted, but not in use and nobody waits for it
+	 */
+	boolean isIdle() {
+		return granted && holds == 0 && waiters == 0;
+	}
+
+	/**
+	 * @param idleNanos
+	 *            the maximum idle time
+	 * @return true, if the lease is idle longer than the given time
+	 */
+	boolean isIdleLongerThan(final long idleNanos) {
+		return isIdle() && System.nanoTime() - idleSince >= idleNanos;
+	}
+
+	boolean isGranted() {
+		return granted;
+	}
+
+	boolean isRemoved() {
+		return removed;
+	}
+
+	boolean isRequested() {
+		return requested;
+	}
+
+	boolean isRevokeRequested() {
+		return revokeRequested;
+	}
+
+	void lock() {
+		lock.lock();
+	}
+
+	/**
+	 * Marks the lease as requested from the backend.
+	 */
+	void request() {
+		requested = true;
+	}
+
+	/**
+	 * Marks the lease as requested by other nodes.
+	 */
+	void requestRevoke() {
+		revokeRequested = true;
+	}
+
+	/**
+	 * Marks the lease as returned to the backend.
+	 *
+	 * @return true, if the lease is no longer needed and must be removed
+	 */
+	boolean revoke() {
+		granted = false;
+		revokeRequested = false;
+		removed = !requested && waiters == 0;
+		return removed;
+	}
+
+	void unlock() {
+		lock.unlock();
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.distributed;
+
+import java.io.Closeable;
+import java.util.Collection;
+
+/**
+ * Service provider interface for the coordination of key locks across processes.
+ *
+ * One instance of {@link LockBackend} represents one node. A node holds a lease for a key exclusively - no other node
+ * holds a lease for the same key at the same time. All messages are asynchronous and can carry many keys, so that
+ * implementations can transfer them in one round-trip.
+ *
+ * @see DistributedKeyLockManager
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public interface LockBackend extends Closeable {
+
+	/**
+	 * Opens the backend. Must be called once before any other method.
+	 *
+	 * @param listener
+	 *            receives the grants and revocations for this node - must not be null
+	 */
+	void open(LockBackendListener listener);
+
+	/**
+	 * Requests leases for the given keys. Every lease is granted asynchronously by
+	 * {@link LockBackendListener#granted(Collection)}, as soon as no other node holds it.
+	 *
+	 * @param keys
+	 *            the keys to lease - must not be null
+	 */
+	void acquire(Collection<Object> keys);
+
+	/**
+	 * Returns the leases for the given keys.
+	 *
+	 * @param keys
+	 *            the keys of the granted leases to return - must not be null
+	 */
+	void release(Collection<Object> keys);
+
+	/**
+	 * Closes the backend and returns all leases of this node.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.distributed;
+
+import java.util.Collection;
+
+/**
+ * Receives the asynchronous answers of a {@link LockBackend}.
+ *
+ * Implementations must not block and must not call the backend from inside of these methods.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public interface LockBackendListener {
+
+	/**
+	 * Called, if leases for the given keys are granted to this node.
+	 *
+	 * @param keys
+	 *            the keys of the granted leases
+	 */
+	void granted(Collection<Object> keys);
+
+	/**
+	 * Called, if other nodes are waiting for leases held or requested by this node. The node should return these
+	 * leases as soon as they are no longer in use.
+	 *
+	 * @param keys
+	 *            the keys of the requested leases
+	 */
+	void revoked(Collection<Object> keys);
+}
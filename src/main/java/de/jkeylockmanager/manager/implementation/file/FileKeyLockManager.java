@@ -0,0 +1,208 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.file;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import de.jkeylockmanager.manager.implementation.lockstripe.StripedKeyLockManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.min;
+
+/**
+ * Implementation of {@link KeyLockManager}, that protects a key across the processes of one host.
+ *
+ * The processes share a lock table file. Every key is hashed to a slot of the table and a slot is locked with an
+ * exclusive byte-range lock of one byte on the file. Keys sharing a slot block each other. The threads of one process
+ * are serialized per slot by a local {@link StripedKeyLockManager} first, because byte-range locks are held on behalf
+ * of the whole process.
+ *
+ * All processes must use the same number of slots and keys with a hash code that is equal in all processes, for
+ * example strings or numbers. Only one instance per lock table file may exist in one process.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class FileKeyLockManager implements KeyLockManager, Closeable {
+
+
+	/**
+	 * Default number of slots
+	 */
+	private static final int DEFAULT_NUMBER_OF_SLOTS = 4096;
+
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+
+	private final StripedKeyLockManager localManager;
+	private final FileChannel channel;
+	private final FileLock[] slotLocks;
+	private final int[] slotHolds;
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+
+
+	/**
+	 * Creates a new instance of {@link FileKeyLockManager} with a default number of slots
+	 *
+	 * see #FileKeyLockManager(Path, int, long, java.util.concurrent.TimeUnit)
+	 *
+	 */
+	public FileKeyLockManager(final Path lockTable, final long lockTimeout, final TimeUnit lockTimeoutUnit)
+			throws IOException {
+		this(lockTable, DEFAULT_NUMBER_OF_SLOTS, lockTimeout, lockTimeoutUnit);
+	}
+
+	/**
+	 * Creates a new instance of {@link FileKeyLockManager} with the given settings and opens the lock table file.
+	 *
+	 * @param lockTable
+	 *            the lock table file shared by all processes - is created if missing - must not be null
+	 * @param numberOfSlots
+	 *            the number of slots of the lock table - must be greater than 0
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 *
+	 * @throws IOException
+	 *             if the lock table file can not be opened
+	 */
+	public FileKeyLockManager(final Path lockTable, final int numberOfSlots, final long lockTimeout,
+			final TimeUnit lockTimeoutUnit) throws IOException {
+		Contract.isNotNull(lockTable, "lockTable != null");
+		Contract.isTrue(numberOfSlots > 0, "numberOfSlots > 0");
+		Contract.isNotNull(lockTimeoutUnit, "lockTimeoutUnit != null");
+		Contract.isTrue(lockTimeout > 0, "lockTimeout > 0");
+
+		this.localManager = new StripedKeyLockManager(lockTimeout, lockTimeoutUnit);
+		this.channel = FileChannel.open(lockTable, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.slotLocks = new FileLock[numberOfSlots];
+		this.slotHolds = new int[numberOfSlots];
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+	}
+
+
+	@Override
+	public void executeLocked(final Object key, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeLockedInternal(key, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	@Override
+	public <R> R executeLocked(final Object key, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeLockedInternal(key, callback);
+	}
+
+	/**
+	 * Closes the lock table file. No thread may execute a callback of this manager while or after it is closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+
+	private <R> R executeLockedInternal(final Object key, final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert callback != null : "contract broken: callback != null";
+
+		final long start = System.nanoTime();
+		final int slot = abs(key.hashCode() % slotLocks.length);
+		return localManager.executeLocked(slot, () -> {
+			lockSlot(slot, start);
+			try {
+				return callback.doInLock();
+			} finally {
+				unlockSlot(slot);
+			}
+		});
+	}
+
+	/**
+	 * Must be called by the holder of the local lock for the slot only.
+	 */
+	private void lockSlot(final int slot, final long start) {
+		if (slotHolds[slot]++ > 0) {
+			return;
+		}
+		boolean locked = false;
+		try {
+			long backoff = MIN_BACKOFF_NANOS;
+			// FileChannel#tryLock does not close the channel on interrupts - in contrast to FileChannel#lock
+			while ((slotLocks[slot] = channel.tryLock(slot, 1, false)) == null) {
+				final long remaining = lockTimeoutUnit.toNanos(lockTimeout) - (System.nanoTime() - start);
+				if (remaining <= 0) {
+					throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
+				}
+				LockSupport.parkNanos(this, min(backoff, remaining));
+				if (Thread.interrupted()) {
+					throw new KeyLockManagerInterruptedException();
+				}
+				backoff = min(backoff * 2, MAX_BACKOFF_NANOS);
+			}
+			locked = true;
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			if (!locked) {
+				slotHolds[slot]--;
+			}
+		}
+	}
+
+	/**
+	 * Must be called by the holder of the local lock for the slot only.
+	 */
+	private void unlockSlot(final int slot) {
+		if (--slotHolds[slot] > 0) {
+			return;
+		}
+		try {
+			slotLocks[slot].release();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			slotLocks[slot] = null;
+		}
+	}
+}
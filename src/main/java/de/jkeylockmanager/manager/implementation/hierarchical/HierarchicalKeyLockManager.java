@@ -0,0 +1,250 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.hierarchical;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+import de.jkeylockmanager.manager.implementation.hierarchical.ModeLock.Mode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Implementation of {@link KeyLockManager} for hierarchical keys.
+ *
+ * A key is a path of segments. A {@link List} is used as path as it is, a {@link String} is split at the separator
+ * ("tenant:42:order:7" is the path [tenant, 42, order, 7] with the default separator) and every other key is a path
+ * with one segment.
+ *
+ * Locking a key locks its whole subtree: {@link #executeLocked(Object, LockCallback)} excludes every thread using the
+ * key, one of its ancestors or one of its descendants, while keys in other subtrees - siblings for instance - are
+ * locked concurrently. This is implemented with multi granularity locking: the ancestors of a key are locked top down
+ * in an intention mode and the key itself in shared or exclusive mode. The shared variants
+ * {@link #executeShared(Object, LockCallback)} exclude exclusive use of the subtree only.
+ *
+ * Locks are reentrant in all modes. Note that locking an ancestor of a key already held by the current thread is a
+ * lock upgrade, which waits for all other threads in the subtree and may run into the timeout if two threads try it
+ * simultaneously.
+ *
+ * All resources used by one key are freed immediately, if there is no longer a thread in the locked block for this key
+ * or one of its descendants.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class HierarchicalKeyLockManager implements KeyLockManager {
+
+
+	/**
+	 * Default separator of the segments of string keys
+	 */
+	public static final String DEFAULT_SEPARATOR = ":";
+
+
+	private final ConcurrentHashMap<List<Object>, ModeLock> path2lock = new ConcurrentHashMap<>();
+	private final ThreadLocal<Map<ModeLock, int[]>> holds = ThreadLocal.withInitial(IdentityHashMap::new);
+	private final Pattern separator;
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+
+
+	/**
+	 * Creates a new instance of {@link HierarchicalKeyLockManager} with the default separator
+	 *
+	 * see #HierarchicalKeyLockManager(long, java.util.concurrent.TimeUnit, String)
+	 *
+	 */
+	public HierarchicalKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		this(lockTimeout, lockTimeoutUnit, DEFAULT_SEPARATOR);
+	}
+
+	/**
+	 * Creates a new instance of {@link HierarchicalKeyLockManager} with the given settings.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 * @param separator
+	 *            the separator of the segments of string keys - must not be empty
+	 */
+	public HierarchicalKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit, final String separator) {
+		Contract.isNotNull(lockTimeoutUnit, "lockTimeoutUnit != null");
+		Contract.isTrue(lockTimeout > 0, "lockTimeout > 0");
+		Contract.isNotNull(separator, "separator != null");
+		Contract.isTrue(!separator.isEmpty(), "!separator.isEmpty()");
+
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+		this.separator = Pattern.compile(separator, Pattern.LITERAL);
+	}
+
+
+	@Override
+	public void executeLocked(final Object key, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeLockedInternal(key, Mode.EXCLUSIVE, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	@Override
+	public <R> R executeLocked(final Object key, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeLockedInternal(key, Mode.EXCLUSIVE, callback);
+	}
+
+	/**
+	 * Executes the given callback while the subtree of the given key is locked in shared mode. Other threads may use
+	 * the key, its ancestors and its descendants in shared mode concurrently, but none of them exclusively.
+	 *
+	 * see #executeLocked(Object, LockCallback)
+	 */
+	public void executeShared(final Object key, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeLockedInternal(key, Mode.SHARED, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	/**
+	 * Executes the given callback while the subtree of the given key is locked in shared mode. Other threads may use
+	 * the key, its ancestors and its descendants in shared mode concurrently, but none of them exclusively.
+	 *
+	 * see #executeLocked(Object, ReturnValueLockCallback)
+	 */
+	public <R> R executeShared(final Object key, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeLockedInternal(key, Mode.SHARED, callback);
+	}
+
+
+	private <R> R executeLockedInternal(final Object key, final Mode mode, final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert mode != null : "contract broken: mode != null";
+		assert callback != null : "contract broken: callback != null";
+
+		final List<Object> path = toPath(key);
+		final ModeLock[] locks = new ModeLock[path.size()];
+		final Map<ModeLock, int[]> threadHolds = holds.get();
+		final long deadline = System.nanoTime() + lockTimeoutUnit.toNanos(lockTimeout);
+		int acquired = 0;
+		try {
+			for (int i = 0; i < locks.length; i++) {
+				locks[i] = getPathLock(path.subList(0, i + 1));
+				locks[i].tryLock(modeAt(mode, i, locks.length), getHolds(threadHolds, locks[i]),
+						deadline - System.nanoTime(), lockTimeout, lockTimeoutUnit);
+				acquired++;
+			}
+			return callback.doInLock();
+		} finally {
+			for (int i = locks.length - 1; i >= 0; i--) {
+				if (locks[i] != null) {
+					if (i < acquired) {
+						locks[i].unlock(modeAt(mode, i, locks.length), threadHolds.get(locks[i]));
+					}
+					removeUnusedHolds(threadHolds, locks[i]);
+					freePathLock(path.subList(0, i + 1));
+				}
+			}
+		}
+	}
+
+	private void freePathLock(final List<Object> path) {
+		assert path != null : "contract broken: path != null";
+		path2lock.computeIfPresent(path, (p, lock) -> {
+			lock.decrementUses();
+			return lock.isUsed() ? lock : null;
+		});
+	}
+
+	private int[] getHolds(final Map<ModeLock, int[]> threadHolds, final ModeLock lock) {
+		assert threadHolds != null : "contract broken: threadHolds != null";
+		assert lock != null : "contract broken: lock != null";
+		return threadHolds.computeIfAbsent(lock, l -> new int[Mode.values().length]);
+	}
+
+	private ModeLock getPathLock(final List<Object> path) {
+		assert path != null : "contract broken: path != null";
+		return path2lock.compute(path, (p, previousLock) -> {
+			final ModeLock result = previousLock == null ? new ModeLock() : previousLock;
+			result.incrementUses();
+			return result;
+		});
+	}
+
+	private Mode modeAt(final Mode mode, final int depth, final int length) {
+		return depth == length - 1 ? mode : mode.intention();
+	}
+
+	private void removeUnusedHolds(final Map<ModeLock, int[]> threadHolds, final ModeLock lock) {
+		assert threadHolds != null : "contract broken: threadHolds != null";
+		assert lock != null : "contract broken: lock != null";
+		final int[] lockHolds = threadHolds.get(lock);
+		if (lockHolds != null) {
+			for (final int count : lockHolds) {
+				if (count != 0) {
+					return;
+				}
+			}
+			threadHolds.remove(lock);
+		}
+	}
+
+	private List<Object> toPath(final Object key) {
+		assert key != null : "contract broken: key != null";
+		final List<Object> result;
+		if (key instanceof List) {
+			result = new ArrayList<>((List<?>) key);
+		} else if (key instanceof String) {
+			result = new ArrayList<>(Arrays.asList((Object[]) separator.split((String) key, -1)));
+		} else {
+			result = Collections.singletonList(key);
+		}
+		Contract.isTrue(!result.isEmpty(), "!path.isEmpty()");
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of currently active path locks, one per key and per ancestor of a key
+	 *
+	 */
+	int activeKeyLocksCount() {
+		return path2lock.size();
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.hierarchical;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 
+ * Special lock implementation for internal use in this package only.
+ * 
+ * {@link ModeLock} is the lock of one node of the key hierarchy. It counts the
+ * threads holding it in each {@link Mode}. A mode is granted, if it is
+ * compatible with the modes held by all other threads. The caller passes the
+ * modes held by the current thread, so a thread never conflicts with itself.
+ * 
+ * Waiting threads are queued in arrival order. A thread, that does not hold
+ * this lock yet, is not granted a mode conflicting with the mode of an older
+ * waiting thread, so a steady stream of intention locks on descendants does
+ * not starve a shared or exclusive lock on the node. Threads already holding
+ * this lock pass the queue, because a waiting thread may wait for them.
+ * 
+ * {@link ModeLock} adds a counter for counting its uses. The counting
+ * functionality is not thread safe and so it is essential to use the following
+ * methods only inside of a compute function of the map holding the lock:
+ * 
+ * {@link #decrementUses()}, {@link #incrementUses()}, {@link #isUsed()}
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+final class ModeLock {
+
+	private final ReentrantLock monitor = new ReentrantLock();
+	private final Condition released = monitor.newCondition();
+	private final int[] holders = new int[Mode.values().length];
+	private final ArrayDeque<Mode[]> waiting = new ArrayDeque<>();
+	private long uses = 0;
+
+	/**
+	 * Decrements the usage counter. See class commentary for thread safety!
+	 */
+	void decrementUses() {
+		uses--;
+	}
+
+	/**
+	 * Increments the usage counter. See class commentary for thread safety!
+	 */
+	void incrementUses() {
+		uses++;
+	}
+
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @return true, if the usage counter is not zero
+	 */
+	boolean isUsed() {
+		return uses != 0;
+	}
+
+	/**
+	 * Acquires the given mode for the current thread.
+	 * 
+	 * @param mode
+	 *            - the mode to acquire
+	 * @param holds
+	 *            - the holds of the current thread on this lock per mode
+	 * @param timeoutNanos
+	 *            - the remaining time to wait for the lock
+	 * @param lockTimeout
+	 *            - the instance wide timeout, used for the exception only
+	 * @param lockTimeoutUnit
+	 *            - the unit for lockTimeout
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for
+	 *             the lock
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the waiting time is exceeded
+	 */
+	void tryLock(final Mode mode, final int[] holds, final long timeoutNanos, final long lockTimeout,
+			final TimeUnit lockTimeoutUnit) {
+		monitor.lock();
+		try {
+			if (!isGrantable(mode, holds, null)) {
+				awaitGrantable(mode, holds, timeoutNanos, lockTimeout, lockTimeoutUnit);
+			}
+			if (holds[mode.ordinal()]++ == 0) {
+				holders[mode.ordinal()]++;
+			}
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * Releases the given mode for the current thread.
+	 * 
+	 * @param mode
+	 *            - the mode to release
+	 * @param holds
+	 *            - the holds of the current thread on this lock per mode
+	 */
+	void unlock(final Mode mode, final int[] holds) {
+		monitor.lock();
+		try {
+			if (--holds[mode.ordinal()] == 0) {
+				holders[mode.ordinal()]--;
+				released.signalAll();
+			}
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * Must be called while holding the monitor. Queues the current thread,
+	 * until the mode is grantable.
+	 */
+	private void awaitGrantable(final Mode mode, final int[] holds, final long timeoutNanos, final long lockTimeout,
+			final TimeUnit lockTimeoutUnit) {
+		assert monitor.isHeldByCurrentThread() : "contract broken: monitor.isHeldByCurrentThread()";
+		// an array of its own identifies the waiting thread in the queue
+		final Mode[] waiter = {mode};
+		waiting.add(waiter);
+		boolean granted = false;
+		try {
+			long remaining = timeoutNanos;
+			while (!isGrantable(mode, holds, waiter)) {
+				if (remaining <= 0) {
+					throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
+				}
+				remaining = released.awaitNanos(remaining);
+			}
+			granted = true;
+		} catch (final InterruptedException e) {
+			throw new KeyLockManagerInterruptedException();
+		} finally {
+			waiting.remove(waiter);
+			if (!granted) {
+				// younger threads may have waited for this one
+				released.signalAll();
+			}
+		}
+	}
+
+	private boolean isCompatible(final Mode mode, final int[] holds) {
+		for (final Mode held : Mode.values()) {
+			final int otherHolders = holders[held.ordinal()] - (holds[held.ordinal()] > 0 ? 1 : 0);
+			if (otherHolders > 0 && !mode.isCompatibleWith(held)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param waiter
+	 *            - the entry of the current thread in the queue or null, if it
+	 *            is not queued
+	 * @return true, if the mode is compatible with the other holders and - for
+	 *         threads not holding this lock - with all older waiting threads
+	 */
+	private boolean isGrantable(final Mode mode, final int[] holds, final Mode[] waiter) {
+		if (!isCompatible(mode, holds)) {
+			return false;
+		}
+		for (final int hold : holds) {
+			if (hold > 0) {
+				return true;
+			}
+		}
+		for (final Mode[] older : waiting) {
+			if (older == waiter) {
+				return true;
+			}
+			if (!mode.isCompatibleWith(older[0])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lock modes of multi granularity locking.
+	 */
+	enum Mode {
+
+		/**
+		 * intention shared - a descendant is locked in shared mode
+		 */
+		INTENTION_SHARED,
+
+		/**
+		 * intention exclusive - a descendant is locked in exclusive mode
+		 */
+		INTENTION_EXCLUSIVE,
+
+		/**
+		 * shared - the node and all descendants are locked for reading
+		 */
+		SHARED,
+
+		/**
+		 * exclusive - the node and all descendants are locked exclusively
+		 */
+		EXCLUSIVE;
+
+		private static final boolean[][] COMPATIBILITY = {
+				// IS, IX, S, X
+				{true, true, true, false}, // IS
+				{true, true, false, false}, // IX
+				{true, false, true, false}, // S
+				{false, false, false, false} // X
+		};
+
+		boolean isCompatibleWith(final Mode other) {
+			return COMPATIBILITY[ordinal()][other.ordinal()];
+		}
+
+		/**
+		 * @return the mode to use for the ancestors of a node locked in this mode
+		 */
+		Mode intention() {
+			return this == SHARED || this == INTENTION_SHARED ? INTENTION_SHARED : INTENTION_EXCLUSIVE;
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.journal;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.BooleanLockCallback;
+import de.jkeylockmanager.manager.CheckedLockCallback;
+import de.jkeylockmanager.manager.IntLockCallback;
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.LongLockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+import de.jkeylockmanager.manager.exception.KeyLockManagerRecoveredLeaseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Implementation of {@link KeyLockManager}, that records the leases of keys in a journal, so they survive a restart
+ * of the process.
+ *
+ * Every lock of the given manager is recorded as a lease in an append-only, memory-mapped journal file. The lease of
+ * a key is on disk before the callback is executed. Releases are appended without waiting for the disk. Threads that
+ * acquire leases concurrently share one flush of the journal, so the throughput does not drop to one flush per lock.
+ * The journal is compacted to the held leases, when it is full.
+ *
+ * On start, the leases held when the journal was written last are recovered, for example the leases of jobs that
+ * were running at a crash. Locking the key of a recovered lease fails with a
+ * {@link KeyLockManagerRecoveredLeaseException}, until the application has dealt with the interrupted work and
+ * released the lease by {@link #releaseRecoveredLease(String)}.
+ *
+ * Keys are journaled by their string representation, which must identify them across restarts, for example job
+ * ids. Only one instance per journal file may exist at a time.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class JournaledKeyLockManager implements KeyLockManager, Closeable {
+
+
+	/**
+	 * Default initial size of the journal file in bytes
+	 */
+	private static final int DEFAULT_JOURNAL_CAPACITY = 1 << 20;
+
+
+	private final KeyLockManager delegate;
+	private final LockJournal journal;
+	private final ConcurrentHashMap<String, Integer> recoveredLeases;
+
+
+	/**
+	 * Creates a new instance of {@link JournaledKeyLockManager} with a default initial size of the journal file
+	 *
+	 * see #JournaledKeyLockManager(KeyLockManager, Path, int)
+	 *
+	 */
+	public JournaledKeyLockManager(final KeyLockManager delegate, final Path journal) throws IOException {
+		this(delegate, journal, DEFAULT_JOURNAL_CAPACITY);
+	}
+
+	/**
+	 * Creates a new instance of {@link JournaledKeyLockManager}, opens the journal and recovers the leases held when
+	 * it was written last.
+	 *
+	 * @param delegate
+	 *            the manager doing the locking - must not be null
+	 * @param journal
+	 *            the journal file - is created if missing - must not be null
+	 * @param journalCapacity
+	 *            the initial size of the journal file in bytes - must be greater than 0
+	 *
+	 * @throws IOException
+	 *             if the journal file can not be read or written
+	 */
+	public JournaledKeyLockManager(final KeyLockManager delegate, final Path journal, final int journalCapacity)
+			throws IOException {
+		Contract.isNotNull(delegate, "delegate != null");
+		Contract.isNotNull(journal, "journal != null");
+		Contract.isTrue(journalCapacity > 0, "journalCapacity > 0");
+
+		this.delegate = delegate;
+		this.journal = new LockJournal(journal, journalCapacity);
+		this.recoveredLeases = new ConcurrentHashMap<>(this.journal.getRecoveredLeases());
+	}
+
+
+	/**
+	 * Forces the journal to disk. No thread may execute a callback of this manager while or after it is closed.
+	 */
+	@Override
+	public void close() {
+		journal.close();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws KeyLockManagerRecoveredLeaseException
+	 *             if the lease of the key was recovered and has not been released
+	 * @throws UncheckedIOException
+	 *             if the journal can not be written
+	 */
+	@Override
+	public void executeLocked(final Object key, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeJournaled(key, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws KeyLockManagerRecoveredLeaseException
+	 *             if the lease of the key was recovered and has not been released
+	 * @throws UncheckedIOException
+	 *             if the journal can not be written
+	 */
+	@Override
+	public <R> R executeLocked(final Object key, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeJournaled(key, callback);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws KeyLockManagerRecoveredLeaseException
+	 *             if the lease of the key was recovered and has not been released
+	 * @throws UncheckedIOException
+	 *             if the journal can not be written
+	 */
+	@Override
+	public boolean executeLockedBoolean(final Object key, final BooleanLockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		final String lease = String.valueOf(key);
+		return delegate.executeLockedBoolean(key, () -> {
+			final long sequence = appendAcquire(lease);
+			final boolean result;
+			try {
+				journal.awaitDurable(sequence);
+				result = callback.doInLock();
+			} catch (final RuntimeException | Error e) {
+				compensateAcquire(lease, e);
+				throw e;
+			}
+			journal.append(LockJournal.RELEASE, lease);
+			return result;
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws KeyLockManagerRecoveredLeaseException
+	 *             if the lease of the key was recovered and has not been released
+	 * @throws UncheckedIOException
+	 *             if the journal can not be written
+	 */
+	@Override
+	public <R, E extends Exception> R executeLockedChecked(final Object key, final CheckedLockCallback<R, E> callback)
+			throws E {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		final String lease = String.valueOf(key);
+		return delegate.executeLockedChecked(key, () -> {
+			final long sequence = appendAcquire(lease);
+			final R result;
+			try {
+				journal.awaitDurable(sequence);
+				result = callback.doInLock();
+			} catch (final Exception | Error e) {
+				compensateAcquire(lease, e);
+				throw e;
+			}
+			journal.append(LockJournal.RELEASE, lease);
+			return result;
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws KeyLockManagerRecoveredLeaseException
+	 *             if the lease of the key was recovered and has not been released
+	 * @throws UncheckedIOException
+	 *             if the journal can not be written
+	 */
+	@Override
+	public int executeLockedInt(final Object key, final IntLockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		final String lease = String.valueOf(key);
+		return delegate.executeLockedInt(key, () -> {
+			final long sequence = appendAcquire(lease);
+			final int result;
+			try {
+				journal.awaitDurable(sequence);
+				result = callback.doInLock();
+			} catch (final RuntimeException | Error e) {
+				compensateAcquire(lease, e);
+				throw e;
+			}
+			journal.append(LockJournal.RELEASE, lease);
+			return result;
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws KeyLockManagerRecoveredLeaseException
+	 *             if the lease of the key was recovered and has not been released
+	 * @throws UncheckedIOException
+	 *             if the journal can not be written
+	 */
+	@Override
+	public long executeLockedLong(final Object key, final LongLockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		final String lease = String.valueOf(key);
+		return delegate.executeLockedLong(key, () -> {
+			final long sequence = appendAcquire(lease);
+			final long result;
+			try {
+				journal.awaitDurable(sequence);
+				result = callback.doInLock();
+			} catch (final RuntimeException | Error e) {
+				compensateAcquire(lease, e);
+				throw e;
+			}
+			journal.append(LockJournal.RELEASE, lease);
+			return result;
+		});
+	}
+
+	/**
+	 * @return the keys of the recovered leases, that have not been released yet
+	 */
+	public Set<String> getRecoveredLeases() {
+		return Collections.unmodifiableSet(recoveredLeases.keySet());
+	}
+
+	/**
+	 * Releases a recovered lease, so the key can be locked again.
+	 *
+	 * @param key
+	 *            the key of the lease as returned by {@link #getRecoveredLeases()} - must not be null
+	 *
+	 * @return true, if the lease was recovered and not released before
+	 */
+	public boolean releaseRecoveredLease(final String key) {
+		Contract.isNotNull(key, "key != null");
+
+		final Integer holds = recoveredLeases.remove(key);
+		if (holds == null) {
+			return false;
+		}
+		for (int i = 0; i < holds; i++) {
+			journal.append(LockJournal.RELEASE, key);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Appends the acquisition of the given lease, if it was not recovered. Every failure after the acquisition is
+	 * appended must be compensated by {@link #compensateAcquire(String, Throwable)}.
+	 *
+	 * @return the sequence number of the acquisition in the journal
+	 */
+	private long appendAcquire(final String lease) {
+		assert lease != null : "contract broken: lease != null";
+		if (!recoveredLeases.isEmpty() && recoveredLeases.containsKey(lease)) {
+			throw new KeyLockManagerRecoveredLeaseException(lease);
+		}
+		return journal.append(LockJournal.ACQUIRE, lease);
+	}
+
+	/**
+	 * Appends the release of the given lease after the given failure - a failing release must not mask the failure.
+	 */
+	private void compensateAcquire(final String lease, final Throwable failure) {
+		assert lease != null : "contract broken: lease != null";
+		assert failure != null : "contract broken: failure != null";
+		try {
+			journal.append(LockJournal.RELEASE, lease);
+		} catch (final RuntimeException | Error releaseFailure) {
+			failure.addSuppressed(releaseFailure);
+		}
+	}
+
+	private <R> R executeJournaled(final Object key, final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert callback != null : "contract broken: callback != null";
+
+		final String lease = String.valueOf(key);
+		return delegate.executeLocked(key, () -> {
+			final long sequence = appendAcquire(lease);
+			final R result;
+			try {
+				journal.awaitDurable(sequence);
+				result = callback.doInLock();
+			} catch (final RuntimeException | Error e) {
+				compensateAcquire(lease, e);
+				throw e;
+			}
+			journal.append(LockJournal.RELEASE, lease);
+			return result;
+		});
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the size of the journal file in bytes
+	 */
+	int journalCapacity() {
+		return journal.capacity();
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of flushes of the journal to disk
+	 */
+	long journalSyncs() {
+		return journal.syncs();
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @param failure
+	 *            the failure thrown instead of the next flush of the journal to disk
+	 */
+	void failNextJournalSync(final RuntimeException failure) {
+		journal.failNextSync(failure);
+	}
+}
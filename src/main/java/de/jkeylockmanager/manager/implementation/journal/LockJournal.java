@@ -0,0 +1,435 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 
+ * Append-only journal of lease records for internal use in this package only.
+ * 
+ * The journal is a memory-mapped file of records. A record consists of the
+ * length of the key, the key in UTF-8 and a type byte, which is written last,
+ * so that a record torn by a crash ends the replay. The number of leases per
+ * key is kept in memory.
+ * 
+ * Records are appended without waiting for the disk. A thread that needs its
+ * record on disk calls {@link #awaitDurable(long)}. One thread forces the file
+ * on behalf of all threads waiting meanwhile, so concurrent appends share one
+ * flush (group commit).
+ * 
+ * If the file is full, it is compacted: the leases held at that time are
+ * written to a new file, that atomically replaces the journal. The capacity is
+ * doubled, if the held leases fill more than half of it, up to the maximum
+ * size of a mapping of 2 GB. The mapping of the replaced file is released
+ * right away, if the runtime allows it, and by the garbage collector
+ * otherwise.
+ * 
+ * Durability assumption: a record counts as written, if its type byte is
+ * valid. The type byte is written after the rest of the record, and the free
+ * part of the file is zeroed, so a record interrupted by a crash of the
+ * process ends the replay. On a power loss, this holds only if the storage
+ * never persists the type byte of a record without the bytes before it. The
+ * write-back of the page cache does not order the bytes of a record, that
+ * spans two pages, and records carry no checksum, so the journal relies on
+ * the storage for that.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+final class LockJournal implements Closeable {
+
+	static final byte ACQUIRE = 1;
+	static final byte RELEASE = 2;
+
+	private static final int HEADER_SIZE = Integer.BYTES;
+	private static final int TYPE_SIZE = 1;
+	private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition synced = lock.newCondition();
+	private final Path path;
+	private final Map<String, Integer> leases = new HashMap<>();
+	private final Map<String, Integer> recoveredLeases;
+	private MappedByteBuffer buffer;
+	private MappedByteBuffer forced = null;
+	private MappedByteBuffer retired = null;
+	private int capacity;
+	private long appended = 0;
+	private long durable = 0;
+	private boolean syncing = false;
+	private long syncs = 0;
+	private RuntimeException syncFailure = null;
+
+	/**
+	 * Opens the journal, replays the records of a previous run and compacts the
+	 * journal to the leases, that were held at the end of that run.
+	 * 
+	 * @param path
+	 *            - the journal file - is created if missing - must not be null
+	 * @param capacity
+	 *            - the initial size of the journal file in bytes - must be
+	 *            greater than 0
+	 * 
+	 * @throws IOException
+	 *             if the journal can not be read or written
+	 */
+	LockJournal(final Path path, final int capacity) throws IOException {
+		assert path != null : "contract broken: path != null";
+		assert capacity > 0 : "contract broken: capacity > 0";
+
+		this.path = path;
+		this.capacity = capacity;
+		if (Files.exists(path)) {
+			final MappedByteBuffer records = map(path, Files.size(path));
+			replay(records);
+			unmap(records);
+		}
+		this.recoveredLeases = Collections.unmodifiableMap(new HashMap<>(leases));
+		compact(0);
+	}
+
+	/**
+	 * Appends a record without waiting for the disk.
+	 * 
+	 * @param type
+	 *            - {@link #ACQUIRE} or {@link #RELEASE}
+	 * @param key
+	 *            - the key of the lease - must not be null
+	 * 
+	 * @return the sequence number of the record for
+	 *         {@link #awaitDurable(long)}
+	 * 
+	 * @throws UncheckedIOException
+	 *             if the journal can not be compacted
+	 * @throws IllegalStateException
+	 *             if the journal is closed
+	 */
+	long append(final byte type, final String key) {
+		assert type == ACQUIRE || type == RELEASE : "contract broken: type == ACQUIRE || type == RELEASE";
+		assert key != null : "contract broken: key != null";
+
+		final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		lock.lock();
+		try {
+			checkOpen();
+			if (buffer.remaining() < HEADER_SIZE + bytes.length + TYPE_SIZE) {
+				compact(HEADER_SIZE + bytes.length + TYPE_SIZE);
+			}
+			write(buffer, type, bytes);
+			count(leases, type, key);
+			return ++appended;
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the record with the given sequence number is on disk. Forces
+	 * the journal, if no other thread does it already.
+	 * 
+	 * @param sequence
+	 *            - the sequence number returned by
+	 *            {@link #append(byte, String)}
+	 * 
+	 * @throws IllegalStateException
+	 *             if the journal is closed
+	 */
+	void awaitDurable(final long sequence) {
+		boolean interrupted = false;
+		lock.lock();
+		try {
+			while (durable < sequence) {
+				if (syncing) {
+					// a record must not be left unsynced, so interrupts are deferred
+					try {
+						synced.await();
+					} catch (final InterruptedException e) {
+						interrupted = true;
+					}
+					continue;
+				}
+				checkOpen();
+				syncing = true;
+				final long target = appended;
+				final MappedByteBuffer current = buffer;
+				final RuntimeException failure = syncFailure;
+				syncFailure = null;
+				forced = current;
+				lock.unlock();
+				try {
+					if (failure != null) {
+						throw failure;
+					}
+					current.force();
+				} finally {
+					lock.lock();
+					syncing = false;
+					forced = null;
+					if (retired != null) {
+						unmap(retired);
+						retired = null;
+					}
+					synced.signalAll();
+				}
+				durable = Math.max(durable, target);
+				syncs++;
+			}
+		} finally {
+			lock.unlock();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Forces the journal to disk and releases its mapping. The journal must not
+	 * be used afterwards.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (buffer == null) {
+				return;
+			}
+			buffer.force();
+			release(buffer);
+			buffer = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the leases held at the end of the previous run with their number
+	 *         of reentrant holds
+	 */
+	Map<String, Integer> getRecoveredLeases() {
+		return recoveredLeases;
+	}
+
+	private void checkOpen() {
+		assert lock.isHeldByCurrentThread() : "contract broken: lock.isHeldByCurrentThread()";
+		if (buffer == null) {
+			throw new IllegalStateException("journal is closed");
+		}
+	}
+
+	/**
+	 * Writes the held leases to a new file, that replaces the journal, and maps
+	 * it. The new file is forced to disk before it replaces the journal, so all
+	 * records appended so far are durable afterwards.
+	 * 
+	 * @throws IOException
+	 *             if the held leases and the required bytes exceed the
+	 *             maximum size of a mapping
+	 */
+	private void compact(final int required) throws IOException {
+		assert lock.isHeldByCurrentThread() || buffer == null : "contract broken: lock.isHeldByCurrentThread()";
+
+		long size = 0;
+		for (final Map.Entry<String, Integer> lease : leases.entrySet()) {
+			size += (long) lease.getValue()
+					* (HEADER_SIZE + lease.getKey().getBytes(StandardCharsets.UTF_8).length + TYPE_SIZE);
+		}
+		long newCapacity = capacity;
+		while (size + required > newCapacity / 2 && newCapacity < Integer.MAX_VALUE) {
+			newCapacity = Math.min(newCapacity * 2, Integer.MAX_VALUE);
+		}
+		if (size + required > newCapacity) {
+			throw new IOException("journal exceeds the maximum size of " + Integer.MAX_VALUE + " bytes");
+		}
+		capacity = (int) newCapacity;
+		final Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+		final ByteBuffer content = ByteBuffer.allocate((int) size);
+		for (final Map.Entry<String, Integer> lease : leases.entrySet()) {
+			final byte[] bytes = lease.getKey().getBytes(StandardCharsets.UTF_8);
+			for (int i = 0; i < lease.getValue(); i++) {
+				write(content, ACQUIRE, bytes);
+			}
+		}
+		content.flip();
+		try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+			channel.truncate(size);
+			channel.force(true);
+		}
+		final MappedByteBuffer previous = buffer;
+		Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		buffer = map(path, capacity);
+		buffer.position((int) size);
+		durable = appended;
+		if (previous != null) {
+			release(previous);
+		}
+	}
+
+	private static void count(final Map<String, Integer> leases, final byte type, final String key) {
+		leases.merge(key, type == ACQUIRE ? 1 : -1, (previous, delta) -> {
+			final int result = previous + delta;
+			return result <= 0 ? null : result;
+		});
+	}
+
+	/**
+	 * @return Unsafe.invokeCleaner bound to the Unsafe instance or null, if
+	 *         the runtime does not offer it
+	 */
+	private static MethodHandle findInvokeCleaner() {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			return MethodHandles.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(theUnsafe.get(null));
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			// the mappings are released by the garbage collector
+			return null;
+		}
+	}
+
+	private static MappedByteBuffer map(final Path path, final long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/**
+	 * Releases the given mapping, unless a thread outside of the lock forces it
+	 * at the moment - then it is released, when that thread is done.
+	 */
+	private void release(final MappedByteBuffer mapping) {
+		assert lock.isHeldByCurrentThread() || buffer == null : "contract broken: lock.isHeldByCurrentThread()";
+		if (mapping == forced) {
+			retired = mapping;
+		} else {
+			unmap(mapping);
+		}
+	}
+
+	private void replay(final ByteBuffer records) {
+		while (records.remaining() >= HEADER_SIZE) {
+			final int length = records.getInt();
+			if (length < 0 || records.remaining() < length + TYPE_SIZE) {
+				return;
+			}
+			final byte[] bytes = new byte[length];
+			records.get(bytes);
+			final byte type = records.get();
+			if (type != ACQUIRE && type != RELEASE) {
+				return;
+			}
+			count(leases, type, new String(bytes, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Releases the given mapping immediately. It must not be accessed
+	 * afterwards.
+	 */
+	private static void unmap(final MappedByteBuffer mapping) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invokeExact((ByteBuffer) mapping);
+		} catch (final Throwable e) {
+			// left to the garbage collector
+		}
+	}
+
+	private static void write(final ByteBuffer target, final byte type, final byte[] bytes) {
+		final int start = target.position();
+		target.putInt(bytes.length);
+		target.put(bytes);
+		target.put(start + HEADER_SIZE + bytes.length, type);
+		target.position(start + HEADER_SIZE + bytes.length + TYPE_SIZE);
+	}
+
+	/**
+	 * for testing only
+	 * 
+	 * @return the size of the journal file in bytes
+	 */
+	int capacity() {
+		lock.lock();
+		try {
+			return capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * for testing only
+	 * 
+	 * @param failure
+	 *            - the failure thrown instead of the next flush to disk
+	 */
+	void failNextSync(final RuntimeException failure) {
+		lock.lock();
+		try {
+			syncFailure = failure;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * for testing only
+	 * 
+	 * @return the number of flushes to disk
+	 */
+	long syncs() {
+		lock.lock();
+		try {
+			return syncs;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
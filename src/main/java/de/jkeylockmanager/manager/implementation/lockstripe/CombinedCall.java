@@ -0,0 +1,105 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.lockstripe;
+
+import java.util.concurrent.locks.LockSupport;
+
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+
+/**
+ * 
+ * A callback waiting for its execution by the thread, that holds the lock of
+ * a key and combines the callbacks queued for it. For internal use in this
+ * package only.
+ * 
+ * The calling thread waits until {@link #isDone()} and fetches the outcome by
+ * {@link #getResult()}. The combining thread executes the callback by
+ * {@link #execute()} and unparks the calling thread afterwards.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+final class CombinedCall<R> {
+
+	private final ReturnValueLockCallback<R> callback;
+	private final Thread thread;
+	private R result;
+	private Throwable failure;
+	private volatile boolean done = false;
+
+	/**
+	 * Creates a new instance of {@link CombinedCall} for the current thread.
+	 * 
+	 * @param callback
+	 *            - the callback to execute - must not be null
+	 */
+	CombinedCall(final ReturnValueLockCallback<R> callback) {
+		assert callback != null : "contract broken: callback != null";
+
+		this.callback = callback;
+		this.thread = Thread.currentThread();
+	}
+
+	/**
+	 * Executes the callback, records its outcome and wakes up the calling
+	 * thread. Must be called only by the thread holding the lock of the key.
+	 */
+	void execute() {
+		try {
+			result = callback.doInLock();
+		} catch (final RuntimeException | Error e) {
+			failure = e;
+		}
+		done = true;
+		if (thread != Thread.currentThread()) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Returns the result of the callback or throws the exception thrown by
+	 * it. Must be called only if {@link #isDone()}.
+	 * 
+	 * @return the result of the callback
+	 */
+	R getResult() {
+		assert done : "contract broken: done";
+
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the thread waiting for the execution of the callback
+	 */
+	Thread getThread() {
+		return thread;
+	}
+
+	/**
+	 * @return true, if the callback has been executed
+	 */
+	boolean isDone() {
+		return done;
+	}
+
+}
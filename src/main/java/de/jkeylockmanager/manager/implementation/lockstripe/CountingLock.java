@@ -16,9 +16,16 @@
 
 package de.jkeylockmanager.manager.implementation.lockstripe;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.KeyCondition;
 import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
 import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
 
@@ -31,7 +38,23 @@ import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
  * The counting functionality is not thread safe and so it is essential to use
  * the following methods only in the scope of a shared lock:
  * 
- * {@link #decrementUses()}, {@link #incrementUses()}, {@link #isUsed()}
+ * {@link #decrementUses()}, {@link #incrementUses()}, {@link #isUsed()},
+ * {@link #getIdleSince()}, {@link #setIdleSince(long)}
+ * 
+ * The waiter registration ({@link #tryAddWaiter(int)}, {@link #removeWaiter()}),
+ * the queue of combined calls ({@link #getCombinedCalls()}) and the
+ * introspection ({@link #getHolder()}) are thread safe.
+ * 
+ * A value can be stored with the lock ({@link #getValue()},
+ * {@link #setValue(Object)}). It is read without locking, but must only be
+ * changed by the owner of the lock.
+ * 
+ * The lock is the {@link KeyCondition} of its key as well.
+ * 
+ * The state of the optional features - the idle time, the registered waiters,
+ * the combined calls, the condition and the value - is kept in a side object,
+ * that is created on first use of any of them. So a lock of a manager without these
+ * features does not carry their state.
  * 
  * 
  * @see ReentrantLock
@@ -39,12 +62,28 @@ import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
  * @author Marc-Olaf Jaschke
  * 
  */
-final class CountingLock {
+final class CountingLock implements KeyCondition {
 
-	private final ReentrantLock delegate = new ReentrantLock();
+	private static final AtomicReferenceFieldUpdater<CountingLock, Features> FEATURES = AtomicReferenceFieldUpdater
+			.newUpdater(CountingLock.class, Features.class, "features");
+
+	private final ReentrantLock delegate;
 	private final long lockTimeout;
 	private final TimeUnit lockTimeoutUnit;
 	private long uses = 0;
+	private volatile long lockedSince = 0;
+	private volatile Thread owner = null;
+	private volatile Features features = null;
+
+	/**
+	 * Creates a new instance of {@link CountingLock} with a usage counter set
+	 * to zero and a non fair ordering.
+	 * 
+	 * @see #CountingLock(long, TimeUnit, boolean)
+	 */
+	CountingLock(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		this(lockTimeout, lockTimeoutUnit, false);
+	}
 
 	/**
 	 * Creates a new instance of {@link CountingLock} with a usage counter set
@@ -55,15 +94,56 @@ final class CountingLock {
 	 *            must be greater than 0
 	 * @param lockTimeoutUnit
 	 *            - the unit for lockTimeout - must not be null
+	 * @param fair
+	 *            - true, if the lock is granted to the longest waiting thread
 	 */
-	CountingLock(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+	CountingLock(final long lockTimeout, final TimeUnit lockTimeoutUnit, final boolean fair) {
 		assert lockTimeout > 0 : "contract broken: lockTimeout > 0";
 		assert lockTimeoutUnit != null : "contract broken: lockTimeoutUnit != null";
 
+		this.delegate = new ReentrantLock(fair);
 		this.lockTimeout = lockTimeout;
 		this.lockTimeoutUnit = lockTimeoutUnit;
 	}
 
+	@Override
+	public boolean await(final long timeout, final TimeUnit unit) {
+		Contract.isNotNull(unit, "unit != null");
+		Contract.isTrue(delegate.isHeldByCurrentThread(), "lock of key is held by current thread");
+
+		final Condition result = features().getCondition(delegate);
+		final Thread current = owner;
+		owner = null;
+		try {
+			return result.await(timeout, unit);
+		} catch (final InterruptedException e) {
+			throw new KeyLockManagerInterruptedException();
+		} finally {
+			// the lock has been acquired again
+			recordHolder(current);
+		}
+	}
+
+	@Override
+	public void signal() {
+		Contract.isTrue(delegate.isHeldByCurrentThread(), "lock of key is held by current thread");
+
+		final Features current = features;
+		if (current != null && current.condition != null) {
+			current.condition.signal();
+		}
+	}
+
+	@Override
+	public void signalAll() {
+		Contract.isTrue(delegate.isHeldByCurrentThread(), "lock of key is held by current thread");
+
+		final Features current = features;
+		if (current != null && current.condition != null) {
+			current.condition.signalAll();
+		}
+	}
+
 	/**
 	 * Decrements the usage counter. See class commentary for thread safety!
 	 */
@@ -71,6 +151,46 @@ final class CountingLock {
 		uses--;
 	}
 
+	/**
+	 * Returns the queue of calls waiting to be combined by the holder of this
+	 * lock. The queue is created on first use, so that locks without
+	 * combined calls do not pay for it.
+	 * 
+	 * @return the queue of combined calls
+	 */
+	Queue<CombinedCall<?>> getCombinedCalls() {
+		return features().getCombinedCalls();
+	}
+
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @return the time in nanoseconds, when the usage counter dropped to zero
+	 */
+	long getIdleSince() {
+		final Features current = features;
+		return current == null ? 0 : current.idleSince;
+	}
+
+	/**
+	 * Reads the owner of the lock and the time it acquired the lock together,
+	 * so both belong to the same acquisition. The owner is published after the
+	 * time of its acquisition and withdrawn before the lock is released, so an
+	 * unchanged time around the read of the owner proves the pair consistent.
+	 * 
+	 * @return the current holder or null, if the lock is free or its owner
+	 *         is just acquiring or releasing it
+	 */
+	Holder getHolder() {
+		long since;
+		Thread thread;
+		do {
+			since = lockedSince;
+			thread = owner;
+		} while (since != lockedSince);
+		return thread == null ? null : new Holder(thread, since);
+	}
+
 	/**
 	 * Delegates to {@link ReentrantLock#getQueueLength()}
 	 */
@@ -78,6 +198,16 @@ final class CountingLock {
 		return delegate.getQueueLength();
 	}
 
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @return the value stored with the lock or null, if there is none
+	 */
+	Object getValue() {
+		final Features current = features;
+		return current == null ? null : current.value;
+	}
+
 	/**
 	 * Increments the usage counter. See class commentary for thread safety!
 	 */
@@ -85,6 +215,13 @@ final class CountingLock {
 		uses++;
 	}
 
+	/**
+	 * Delegates to {@link ReentrantLock#isHeldByCurrentThread()}
+	 */
+	boolean isHeldByCurrentThread() {
+		return delegate.isHeldByCurrentThread();
+	}
+
 	/**
 	 * See class commentary for thread safety!
 	 * 
@@ -94,6 +231,66 @@ final class CountingLock {
 		return uses != 0;
 	}
 
+	/**
+	 * Delegates to {@link ReentrantLock#lock()}. Use this method only for
+	 * locks, that are held for a short time and must be acquired regardless of
+	 * interrupts.
+	 */
+	void lock() {
+		delegate.lock();
+	}
+
+	/**
+	 * Unregisters a waiter registered by {@link #tryAddWaiter(int)}.
+	 */
+	void removeWaiter() {
+		Features.WAITERS.decrementAndGet(features);
+	}
+
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @param idleSince
+	 *            - the time in nanoseconds, when the usage counter dropped to
+	 *            zero
+	 */
+	void setIdleSince(final long idleSince) {
+		features().idleSince = idleSince;
+	}
+
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @param value
+	 *            - the value to store with the lock or null to remove it
+	 */
+	void setValue(final Object value) {
+		assert delegate.isHeldByCurrentThread() : "contract broken: delegate.isHeldByCurrentThread()";
+		if (value != null || features != null) {
+			features().value = value;
+		}
+	}
+
+	/**
+	 * Registers the current thread as a waiter, if less than the given number
+	 * of threads are already registered.
+	 * 
+	 * @param maxWaiters
+	 *            - the maximum number of registered waiters
+	 * @return true, if the current thread was registered
+	 */
+	boolean tryAddWaiter(final int maxWaiters) {
+		final Features target = features();
+		int current;
+		do {
+			current = target.waiters;
+			if (current >= maxWaiters) {
+				return false;
+			}
+		} while (!Features.WAITERS.compareAndSet(target, current, current + 1));
+		return true;
+	}
+
 	/**
 	 * Decorates {@link ReentrantLock#tryLock(long, TimeUnit)}.
 	 * 
@@ -108,16 +305,111 @@ final class CountingLock {
 			if (!delegate.tryLock(lockTimeout, lockTimeoutUnit)) {
 				throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
 			}
+			recordLockedSince();
 		} catch (final InterruptedException e) {
 			throw new KeyLockManagerInterruptedException();
 		}
 	}
 
+	/**
+	 * Delegates to {@link ReentrantLock#tryLock()}. A fair lock is not taken
+	 * away from waiting threads.
+	 * 
+	 * @return true, if the lock was free or already held by the current thread
+	 */
+	boolean tryLockImmediately() {
+		if (delegate.isFair() && delegate.hasQueuedThreads() && !delegate.isHeldByCurrentThread()) {
+			return false;
+		}
+		if (delegate.tryLock()) {
+			recordLockedSince();
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Delegates to {@link java.util.concurrent.locks.ReentrantLock#unlock()}
 	 */
 	void unlock() {
+		if (owner != null && delegate.getHoldCount() == 1) {
+			owner = null;
+		}
 		delegate.unlock();
 	}
 
+	private Features features() {
+		final Features result = features;
+		if (result != null) {
+			return result;
+		}
+		FEATURES.compareAndSet(this, null, new Features());
+		return features;
+	}
+
+	private void recordHolder(final Thread thread) {
+		lockedSince = System.nanoTime();
+		owner = thread;
+	}
+
+	private void recordLockedSince() {
+		if (delegate.getHoldCount() == 1) {
+			recordHolder(Thread.currentThread());
+		}
+	}
+
+	/**
+	 * The owner of a lock and the time in nanoseconds, when it acquired the
+	 * lock.
+	 */
+	static final class Holder {
+
+		final Thread thread;
+		final long since;
+
+		private Holder(final Thread thread, final long since) {
+			this.thread = thread;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * The state of the optional features of a lock.
+	 */
+	private static final class Features {
+
+		private static final AtomicIntegerFieldUpdater<Features> WAITERS = AtomicIntegerFieldUpdater
+				.newUpdater(Features.class, "waiters");
+		@SuppressWarnings("rawtypes")
+		private static final AtomicReferenceFieldUpdater<Features, Queue> COMBINED_CALLS = AtomicReferenceFieldUpdater
+				.newUpdater(Features.class, Queue.class, "combinedCalls");
+		private static final AtomicReferenceFieldUpdater<Features, Condition> CONDITION = AtomicReferenceFieldUpdater
+				.newUpdater(Features.class, Condition.class, "condition");
+
+		private long idleSince = 0;
+		private volatile int waiters = 0;
+		private volatile Queue<CombinedCall<?>> combinedCalls = null;
+		private volatile Condition condition = null;
+		private volatile Object value = null;
+
+		@SuppressWarnings("unchecked")
+		private Queue<CombinedCall<?>> getCombinedCalls() {
+			final Queue<CombinedCall<?>> result = combinedCalls;
+			if (result != null) {
+				return result;
+			}
+			COMBINED_CALLS.compareAndSet(this, null, new ConcurrentLinkedQueue<CombinedCall<?>>());
+			return combinedCalls;
+		}
+
+		private Condition getCondition(final ReentrantLock lock) {
+			final Condition result = condition;
+			if (result != null) {
+				return result;
+			}
+			CONDITION.compareAndSet(this, null, lock.newCondition());
+			return condition;
+		}
+	}
+
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.lockstripe;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+
+/**
+ * 
+ * Special semaphore implementation for internal use in this package only.
+ * 
+ * {@link CountingSemaphore} adds a counter for counting its uses.
+ * 
+ * The counting functionality is not thread safe and so it is essential to use
+ * the following methods only in the scope of a shared lock:
+ * 
+ * {@link #decrementUses()}, {@link #incrementUses()}, {@link #isUsed()}
+ * 
+ * 
+ * @see Semaphore
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+final class CountingSemaphore {
+
+	private final Semaphore delegate;
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+	private long uses = 0;
+
+	/**
+	 * Creates a new instance of {@link CountingSemaphore} with a usage counter
+	 * set to zero.
+	 * 
+	 * @param permits
+	 *            - the number of permits - must be greater than 0
+	 * @param lockTimeout
+	 *            - the time to wait for a permit before an Exception is thrown
+	 *            - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            - the unit for lockTimeout - must not be null
+	 */
+	CountingSemaphore(final int permits, final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		assert permits > 0 : "contract broken: permits > 0";
+		assert lockTimeout > 0 : "contract broken: lockTimeout > 0";
+		assert lockTimeoutUnit != null : "contract broken: lockTimeoutUnit != null";
+
+		this.delegate = new Semaphore(permits);
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+	}
+
+	/**
+	 * Decrements the usage counter. See class commentary for thread safety!
+	 */
+	void decrementUses() {
+		uses--;
+	}
+
+	/**
+	 * Delegates to {@link Semaphore#getQueueLength()}
+	 */
+	int getQueueLength() {
+		return delegate.getQueueLength();
+	}
+
+	/**
+	 * Increments the usage counter. See class commentary for thread safety!
+	 */
+	void incrementUses() {
+		uses++;
+	}
+
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @return true, if the usage counter is not zero
+	 */
+	boolean isUsed() {
+		return uses != 0;
+	}
+
+	/**
+	 * Delegates to {@link Semaphore#release()}
+	 */
+	void release() {
+		delegate.release();
+	}
+
+	/**
+	 * Decorates {@link Semaphore#tryAcquire(long, TimeUnit)}.
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for
+	 *             a permit
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded
+	 */
+	void tryAcquire() {
+		try {
+			if (!delegate.tryAcquire(lockTimeout, lockTimeoutUnit)) {
+				throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
+			}
+		} catch (final InterruptedException e) {
+			throw new KeyLockManagerInterruptedException();
+		}
+	}
+
+}
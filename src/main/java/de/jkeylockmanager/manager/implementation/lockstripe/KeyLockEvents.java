@@ -0,0 +1,59 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.lockstripe;
+
+/**
+ * 
+ * Flight recorder support for internal use in this package only.
+ * 
+ * The event classes of this package must only be used, if
+ * {@link #AVAILABLE} is true. Otherwise the runtime image lacks the module
+ * jdk.jfr and the event classes can not be loaded.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+final class KeyLockEvents {
+
+	/**
+	 * true, if the runtime supports flight recorder events
+	 */
+	static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+	/**
+	 * Events are named after this prefix and the simple name of their class
+	 * without the suffix "Event".
+	 */
+	static final String NAME_PREFIX = "de.jkeylockmanager.";
+
+	static final String CATEGORY = "JKeyLockManager";
+
+	private static boolean isFlightRecorderAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event", false, KeyLockEvents.class.getClassLoader());
+			return true;
+		} catch (final ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Prevent instantiation.
+	 */
+	private KeyLockEvents() {
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.lockstripe;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * 
+ * Flight recorder event for a thread holding the lock of a key. See
+ * {@link KeyLockEvents} before using this class.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+@Name(KeyLockEvents.NAME_PREFIX + "KeyLockHold")
+@Label("Key Lock Hold")
+@Category(KeyLockEvents.CATEGORY)
+@Description("A thread held the lock of a key")
+@Threshold("100 ms")
+final class KeyLockHoldEvent extends jdk.jfr.Event {
+
+	@Label("Key")
+	String key;
+
+	@Label("Key Hash Code")
+	int keyHash;
+
+	@Label("Stripe")
+	@Description("Index of the stripe used for the maintenance of the key")
+	int stripe;
+
+	@Label("Queue Length")
+	@Description("Number of threads waiting for the lock of the key at release")
+	int queueLength;
+}
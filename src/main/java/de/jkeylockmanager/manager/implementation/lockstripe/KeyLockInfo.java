@@ -0,0 +1,99 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.lockstripe;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the lock of one key, taken by {@link StripedKeyLockManager#snapshot()}.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class KeyLockInfo {
+
+	private final Object key;
+	private final Thread owner;
+	private final long holdNanos;
+	private final int waitingThreads;
+	private final long oldestWaitNanos;
+
+	KeyLockInfo(final Object key, final Thread owner, final long holdNanos, final int waitingThreads,
+			final long oldestWaitNanos) {
+		assert key != null : "contract broken: key != null";
+
+		this.key = key;
+		this.owner = owner;
+		this.holdNanos = holdNanos;
+		this.waitingThreads = waitingThreads;
+		this.oldestWaitNanos = oldestWaitNanos;
+	}
+
+	/**
+	 * @return the time in nanoseconds the owner holds the lock - 0, if the lock has no owner
+	 */
+	public long getHoldNanos() {
+		return holdNanos;
+	}
+
+	/**
+	 * @return the key
+	 */
+	public Object getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the time in nanoseconds the longest waiting thread waits for the lock - 0, if no thread waits
+	 */
+	public long getOldestWaitNanos() {
+		return oldestWaitNanos;
+	}
+
+	/**
+	 * @return the thread holding the lock or null, if the lock is free at the moment
+	 */
+	public Thread getOwner() {
+		return owner;
+	}
+
+	/**
+	 * @return the number of threads waiting for the lock
+	 */
+	public int getWaitingThreads() {
+		return waitingThreads;
+	}
+
+	/**
+	 * @return a description in the style of a thread dump
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder result = new StringBuilder().append('"').append(key).append('"');
+		if (owner == null) {
+			result.append(" free");
+		} else {
+			result.append(" held by \"").append(owner.getName()).append("\" (id ").append(owner.getId())
+					.append(") for ").append(TimeUnit.NANOSECONDS.toMillis(holdNanos)).append(" ms");
+		}
+		result.append(" - ").append(waitingThreads).append(" waiting");
+		if (waitingThreads > 0) {
+			result.append(", the oldest for ").append(TimeUnit.NANOSECONDS.toMillis(oldestWaitNanos)).append(" ms");
+		}
+		return result.toString();
+	}
+}
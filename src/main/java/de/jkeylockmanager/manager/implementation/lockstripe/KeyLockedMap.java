@@ -0,0 +1,190 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.lockstripe;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Concurrent map, that stores the value of a key with the lock of the key.
+ *
+ * A value is changed under the lock of its key with a single lookup of the lock, so there is no separate map for the
+ * values. The lock of a key is kept as long as the key has a value and follows the life cycle of the locks of a
+ * {@link StripedKeyLockManager} otherwise. Values are read without locking.
+ *
+ * The locks of the keys can be used for larger units of work by {@link #getLockManager()}. Operations of the map
+ * nested in such a unit of work reenter the lock of the key.
+ *
+ * Null values are not supported. A function returning null removes the value of the key.
+ *
+ * @param <K>
+ *            the type of the keys
+ * @param <V>
+ *            the type of the values
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class KeyLockedMap<K, V> {
+
+	private final StripedKeyLockManager manager;
+
+
+	/**
+	 * Creates a new instance of {@link KeyLockedMap} with the given timeout settings.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 */
+	public KeyLockedMap(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		this.manager = new StripedKeyLockManager(lockTimeout, lockTimeoutUnit);
+	}
+
+
+	/**
+	 * Computes the new value of the given key under the lock of the key.
+	 *
+	 * @param key
+	 *            the key - must not be null
+	 * @param function
+	 *            computes the new value from the key and the current value, that is null if there is none - returns
+	 *            null to remove the value - must not be null
+	 *
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for the lock
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded, while waiting for the lock
+	 *
+	 * @return the new value or null, if the key has no value anymore
+	 */
+	@SuppressWarnings("unchecked")
+	public V compute(final K key, final BiFunction<? super K, ? super V, ? extends V> function) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(function, "function != null");
+
+		return manager.executeOnKeyLock(key, lock -> {
+			final V result = function.apply(key, (V) lock.getValue());
+			lock.setValue(result);
+			return result;
+		});
+	}
+
+	/**
+	 * Reads the value of the given key without locking.
+	 *
+	 * @param key
+	 *            the key - must not be null
+	 *
+	 * @return the value or null, if the key has no value
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final K key) {
+		Contract.isNotNull(key, "key != null");
+
+		final CountingLock lock = manager.getKeyLockIfPresent(key);
+		return lock == null ? null : (V) lock.getValue();
+	}
+
+	/**
+	 * @return the manager of the locks, that protect the values of this map
+	 */
+	public KeyLockManager getLockManager() {
+		return manager;
+	}
+
+	/**
+	 * Sets the value of the given key under the lock of the key.
+	 *
+	 * @param key
+	 *            the key - must not be null
+	 * @param value
+	 *            the new value - must not be null
+	 *
+	 * @return the previous value or null, if the key had no value
+	 *
+	 * @see #compute(Object, BiFunction)
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(final K key, final V value) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(value, "value != null");
+
+		return manager.executeOnKeyLock(key, lock -> {
+			final V result = (V) lock.getValue();
+			lock.setValue(value);
+			return result;
+		});
+	}
+
+	/**
+	 * Removes the value of the given key under the lock of the key.
+	 *
+	 * @param key
+	 *            the key - must not be null
+	 *
+	 * @return the removed value or null, if the key had no value
+	 *
+	 * @see #compute(Object, BiFunction)
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(final K key) {
+		Contract.isNotNull(key, "key != null");
+
+		return manager.executeOnKeyLock(key, lock -> {
+			final V result = (V) lock.getValue();
+			lock.setValue(null);
+			return result;
+		});
+	}
+
+	/**
+	 * Computes the new value of the given key under the lock of the key, if the key has a value.
+	 *
+	 * @param key
+	 *            the key - must not be null
+	 * @param function
+	 *            computes the new value from the current value - returns null to remove the value - must not be null
+	 *
+	 * @return the new value or null, if the key has no value
+	 *
+	 * @see #compute(Object, BiFunction)
+	 */
+	public V update(final K key, final UnaryOperator<V> function) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(function, "function != null");
+
+		return compute(key, (k, value) -> value == null ? null : function.apply(value));
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of currently active key locks
+	 *
+	 */
+	int activeKeyLocksCount() {
+		return manager.activeKeyLocksCount();
+	}
+}
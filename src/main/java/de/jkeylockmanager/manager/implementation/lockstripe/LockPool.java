@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.lockstripe;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 
+ * Pool of free locks for internal use in this package only.
+ * 
+ * {@link LockPool} keeps locks, that are no longer used by any key, for the
+ * next key, so locks are allocated in advance instead of on the hot path. The
+ * pool is not thread safe and so it is essential to use it only in the scope
+ * of a shared lock.
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+final class LockPool {
+
+	private final CountingLock[] locks;
+	private int size = 0;
+
+	/**
+	 * Creates a new instance of {@link LockPool} filled with new locks.
+	 * 
+	 * @param capacity
+	 *            - the maximum number of pooled locks - must not be negative
+	 * @param initialSize
+	 *            - the number of locks created in advance - must not be
+	 *            negative and not greater than capacity
+	 * @param lockTimeout
+	 *            - the time to wait for a lock before an Exception is thrown -
+	 *            must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            - the unit for lockTimeout - must not be null
+	 * @param fair
+	 *            - true, if the locks are granted to the longest waiting thread
+	 */
+	LockPool(final int capacity, final int initialSize, final long lockTimeout, final TimeUnit lockTimeoutUnit,
+			final boolean fair) {
+		assert capacity >= 0 : "contract broken: capacity >= 0";
+		assert initialSize >= 0 && initialSize <= capacity : "contract broken: initialSize >= 0 && initialSize <= capacity";
+
+		this.locks = new CountingLock[capacity];
+		while (size < initialSize) {
+			locks[size++] = new CountingLock(lockTimeout, lockTimeoutUnit, fair);
+		}
+	}
+
+	/**
+	 * Adds a lock to the pool, if the pool is not full. The lock must be free
+	 * and unused. See class commentary for thread safety!
+	 * 
+	 * @param lock
+	 *            - the lock to add - must not be null
+	 */
+	void offer(final CountingLock lock) {
+		assert lock != null : "contract broken: lock != null";
+		assert !lock.isUsed() : "contract broken: !lock.isUsed()";
+
+		if (size < locks.length) {
+			locks[size++] = lock;
+		}
+	}
+
+	/**
+	 * Takes a lock from the pool. See class commentary for thread safety!
+	 * 
+	 * @return the lock or null, if the pool is empty
+	 */
+	CountingLock poll() {
+		if (size == 0) {
+			return null;
+		}
+		final CountingLock result = locks[--size];
+		locks[size] = null;
+		return result;
+	}
+
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @return the number of pooled locks
+	 */
+	int size() {
+		return size;
+	}
+
+}
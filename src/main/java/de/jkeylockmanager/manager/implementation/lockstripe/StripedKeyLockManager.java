@@ -17,12 +17,37 @@
 package de.jkeylockmanager.manager.implementation.lockstripe;
 
 import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.BooleanLockCallback;
+import de.jkeylockmanager.manager.CheckedLockCallback;
+import de.jkeylockmanager.manager.ConditionKeyLockManager;
+import de.jkeylockmanager.manager.HandleKeyLockManager;
+import de.jkeylockmanager.manager.IntLockCallback;
+import de.jkeylockmanager.manager.KeyCondition;
+import de.jkeylockmanager.manager.KeyLock;
 import de.jkeylockmanager.manager.KeyLockManager;
 import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.LongLockCallback;
 import de.jkeylockmanager.manager.ReturnValueLockCallback;
+import de.jkeylockmanager.manager.WaitStrategy;
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerRejectedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
 import static java.lang.Math.abs;
 import static java.util.Arrays.setAll;
@@ -33,11 +58,48 @@ import static java.util.Arrays.setAll;
  * Maintenance operations are implemented using lock striping.
  *
  * All resources used by one key are freed immediately, if there is no longer a thread in the locked block for this key.
+ * The key table can be sized in advance for the expected number of concurrently used keys, and locks can be created in
+ * advance in a pool, that takes back the locks of freed keys. Both avoid resizing and allocation when traffic starts.
+ *
+ * Optionally the locks of idle keys are retained for a period and up to a number of idle keys, so keys used in quick
+ * succession do without allocating and removing a lock each time. Retained locks are evicted lazily by the threads
+ * leaving a locked block, without a background thread. Such a thread sweeps at most a small batch of keys, so the
+ * latency it pays is bounded regardless of the number of keys. A sweep over all keys is spread over the following
+ * releases, and until it is done the number of idle keys may exceed its maximum.
+ *
+ * Locks can be acquired without a callback by {@link #acquire(Object)}. Each acquisition returns a new handle, so a
+ * handle closed a second time is ignored and can not release a later acquisition.
+ *
+ * Optionally the number of threads waiting for a lock can be bounded per key and per manager. A thread that would
+ * exceed one of the bounds is rejected immediately with a {@link KeyLockManagerRejectedException} instead of waiting.
+ * A thread that already holds the lock for a key is never rejected.
+ *
+ * {@link #executeCombined(Object, LockCallback)} queues the callback at the lock of the key. The thread that gets the
+ * lock executes the queued callbacks of all waiting threads in one batch and hands over the results, so a hot key is
+ * not handed over between threads for every short callback. The first thread in the queue waits for the lock, the
+ * others are parked until their callback is done.
+ *
+ * {@link #executeLimited(Object, int, LockCallback)} is backed by one semaphore per key with the same life cycle as
+ * the lock of a key. Limited and exclusive use of a key are independent of each other.
+ *
+ * Within a locked block {@link #getCondition(Object)} returns the condition of the key, so threads can wait for a state
+ * change of the key instead of polling it. The condition is created on first use.
+ *
+ * The owners of the locks and the waiting threads can be inspected by {@link #snapshot()}, that walks the locks without
+ * blocking any thread, and by JMX through {@link StripedKeyLockManagerMXBean}.
+ *
+ * The locks of the keys can be fair, so that they are granted in arrival order, and waiting threads can spin for a
+ * short time before they are parked, see {@link WaitStrategy}.
+ *
+ * If metrics are enabled and the runtime supports the flight recorder, the events "de.jkeylockmanager.KeyLockWait",
+ * "de.jkeylockmanager.KeyLockHold" and "de.jkeylockmanager.KeyLockTimeout" are emitted. They carry the key, its stripe
+ * and the queue length of its lock. Waits and holds are recorded above a threshold of 10 ms and 100 ms by default.
  *
  * @author Marc-Olaf Jaschke
  *
  */
-public final class StripedKeyLockManager implements KeyLockManager {
+public final class StripedKeyLockManager implements HandleKeyLockManager, ConditionKeyLockManager,
+		StripedKeyLockManagerMXBean {
 
 
 	/**
@@ -45,11 +107,66 @@ public final class StripedKeyLockManager implements KeyLockManager {
 	 */
 	private static final int DEFAULT_NUMBER_OF_STRIPES = 16;
 
+	/**
+	 * Default number of expected concurrently used keys
+	 */
+	private static final int DEFAULT_EXPECTED_KEYS = 16;
+
+	/**
+	 * Number of retries of a spinning thread before it is parked
+	 */
+	private static final int SPINS = 64;
+
+	/**
+	 * Maximum number of callbacks a thread executes for others in one batch, after its own callback is done
+	 */
+	private static final int MAX_COMBINED_CALLS = 256;
+
+	/**
+	 * Maximum number of keys swept for idle locks by one thread leaving a locked block
+	 */
+	private static final int IDLE_SWEEP_BATCH = 64;
+
+	/**
+	 * Use this value to disable a bound for the number of waiting threads
+	 */
+	public static final int UNBOUNDED_WAITERS = Integer.MAX_VALUE;
 
-	private final ConcurrentHashMap<Object, CountingLock> key2lock = new ConcurrentHashMap<>();
+	/**
+	 * Use this value as maximum number of idle keys to free the resources of a key immediately
+	 */
+	public static final int NO_IDLE_KEYS = 0;
+
+	/**
+	 * Use this value as lock pool size to create the lock of a key on demand
+	 */
+	public static final int NO_LOCK_POOL = 0;
+
+
+	private final ConcurrentHashMap<Object, CountingLock> key2lock;
+	private final ConcurrentHashMap<Object, CountingSemaphore> key2semaphore = new ConcurrentHashMap<>();
+	private final ThreadLocal<Set<CountingSemaphore>> heldSemaphores = ThreadLocal
+			.withInitial(() -> Collections.newSetFromMap(new IdentityHashMap<>()));
+	private final ConcurrentHashMap<Thread, WaitingThread> waitingThreads = new ConcurrentHashMap<>();
 	private final CountingLock[] stripes;
+	private final LockPool[] pools;
 	private final long lockTimeout;
 	private final TimeUnit lockTimeoutUnit;
+	private final int maxWaitersPerKey;
+	private final int maxWaitersPerManager;
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final int maxIdleKeys;
+	private final long idleRetentionNanos;
+	private final AtomicInteger idleKeys = new AtomicInteger();
+	private final AtomicLong lastIdleSweep = new AtomicLong(System.nanoTime());
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	// the position of the current sweep - guarded by sweeping
+	private volatile Iterator<Object> sweepCursor = null;
+	private boolean sweepExpired = false;
+	private final boolean fair;
+	private final WaitStrategy waitStrategy;
+	private final boolean metrics;
+	private final boolean recordEvents;
 
 
 	/**
@@ -73,17 +190,191 @@ public final class StripedKeyLockManager implements KeyLockManager {
 	 *            the number of stripes used for locking
 	 */
 	public StripedKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit, final int numberOfStripes) {
+		this(lockTimeout, lockTimeoutUnit, numberOfStripes, UNBOUNDED_WAITERS, UNBOUNDED_WAITERS);
+	}
+
+	/**
+	 * Creates a new instance of {@link StripedKeyLockManager} with the given settings.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 * @param numberOfStripes
+	 *            the number of stripes used for locking
+	 * @param maxWaitersPerKey
+	 *            the maximum number of threads waiting for the lock of one key - must not be negative - use
+	 *            {@link #UNBOUNDED_WAITERS} for no limit
+	 * @param maxWaitersPerManager
+	 *            the maximum number of threads waiting for any lock of this manager - must not be negative - use
+	 *            {@link #UNBOUNDED_WAITERS} for no limit
+	 */
+	public StripedKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit, final int numberOfStripes,
+			final int maxWaitersPerKey, final int maxWaitersPerManager) {
+		this(lockTimeout, lockTimeoutUnit, numberOfStripes, maxWaitersPerKey, maxWaitersPerManager, NO_IDLE_KEYS, 0,
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Creates a new instance of {@link StripedKeyLockManager} with the given settings.
+	 *
+	 * see #StripedKeyLockManager(long, TimeUnit, int, int, int, int, long, TimeUnit, int, int, boolean, WaitStrategy,
+	 * boolean)
+	 */
+	public StripedKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit, final int numberOfStripes,
+			final int maxWaitersPerKey, final int maxWaitersPerManager, final int maxIdleKeys, final long idleRetention,
+			final TimeUnit idleRetentionUnit) {
+		this(lockTimeout, lockTimeoutUnit, numberOfStripes, maxWaitersPerKey, maxWaitersPerManager, maxIdleKeys,
+				idleRetention, idleRetentionUnit, DEFAULT_EXPECTED_KEYS, NO_LOCK_POOL);
+	}
+
+	/**
+	 * Creates a new instance of {@link StripedKeyLockManager} with the given settings, non fair locks, blocking waits
+	 * and metrics.
+	 *
+	 * see #StripedKeyLockManager(long, TimeUnit, int, int, int, int, long, TimeUnit, int, int, boolean, WaitStrategy,
+	 * boolean)
+	 */
+	public StripedKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit, final int numberOfStripes,
+			final int maxWaitersPerKey, final int maxWaitersPerManager, final int maxIdleKeys, final long idleRetention,
+			final TimeUnit idleRetentionUnit, final int expectedKeys, final int lockPoolSize) {
+		this(lockTimeout, lockTimeoutUnit, numberOfStripes, maxWaitersPerKey, maxWaitersPerManager, maxIdleKeys,
+				idleRetention, idleRetentionUnit, expectedKeys, lockPoolSize, false, WaitStrategy.BLOCK, true);
+	}
+
+	/**
+	 * Creates a new instance of {@link StripedKeyLockManager} with the given settings.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 * @param numberOfStripes
+	 *            the number of stripes used for locking
+	 * @param maxWaitersPerKey
+	 *            the maximum number of threads waiting for the lock of one key - must not be negative - use
+	 *            {@link #UNBOUNDED_WAITERS} for no limit
+	 * @param maxWaitersPerManager
+	 *            the maximum number of threads waiting for any lock of this manager - must not be negative - use
+	 *            {@link #UNBOUNDED_WAITERS} for no limit
+	 * @param maxIdleKeys
+	 *            the maximum number of idle keys, whose locks are retained - must not be negative - use
+	 *            {@link #NO_IDLE_KEYS} to free the lock of a key immediately
+	 * @param idleRetention
+	 *            the time the lock of an idle key is retained at most - must not be negative
+	 * @param idleRetentionUnit
+	 *            the unit for idleRetention - must not be null
+	 * @param expectedKeys
+	 *            the expected number of concurrently used keys, the key table is sized for - must not be negative
+	 * @param lockPoolSize
+	 *            the number of locks created in advance and reused for other keys after they are freed - must not be
+	 *            negative - use {@link #NO_LOCK_POOL} to create the lock of a key on demand
+	 * @param fair
+	 *            true, if the lock of a key is granted to the longest waiting thread
+	 * @param waitStrategy
+	 *            the way threads wait for the lock of a key - must not be null
+	 * @param metrics
+	 *            true, if waiting threads are registered for {@link #snapshot()} and flight recorder events are emitted
+	 */
+	public StripedKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit, final int numberOfStripes,
+			final int maxWaitersPerKey, final int maxWaitersPerManager, final int maxIdleKeys, final long idleRetention,
+			final TimeUnit idleRetentionUnit, final int expectedKeys, final int lockPoolSize, final boolean fair,
+			final WaitStrategy waitStrategy, final boolean metrics) {
 		Contract.isNotNull(lockTimeoutUnit, "lockTimeoutUnit != null");
 		Contract.isTrue(lockTimeout > 0, "lockTimeout > 0");
 		Contract.isTrue(numberOfStripes > 0, "numberOfStripes > 0");
+		Contract.isTrue(maxWaitersPerKey >= 0, "maxWaitersPerKey >= 0");
+		Contract.isTrue(maxWaitersPerManager >= 0, "maxWaitersPerManager >= 0");
+		Contract.isTrue(maxIdleKeys >= 0, "maxIdleKeys >= 0");
+		Contract.isTrue(idleRetention >= 0, "idleRetention >= 0");
+		Contract.isNotNull(idleRetentionUnit, "idleRetentionUnit != null");
+		Contract.isTrue(expectedKeys >= 0, "expectedKeys >= 0");
+		Contract.isTrue(lockPoolSize >= 0, "lockPoolSize >= 0");
+		Contract.isNotNull(waitStrategy, "waitStrategy != null");
 
 		this.lockTimeout = lockTimeout;
 		this.lockTimeoutUnit = lockTimeoutUnit;
+		this.maxWaitersPerKey = maxWaitersPerKey;
+		this.maxWaitersPerManager = maxWaitersPerManager;
+		this.maxIdleKeys = idleRetention == 0 ? NO_IDLE_KEYS : maxIdleKeys;
+		this.idleRetentionNanos = idleRetentionUnit.toNanos(idleRetention);
+		this.fair = fair;
+		this.waitStrategy = waitStrategy;
+		this.metrics = metrics;
+		this.recordEvents = metrics && KeyLockEvents.AVAILABLE;
+		this.key2lock = new ConcurrentHashMap<>(expectedKeys, 0.75f, numberOfStripes);
 		this.stripes = new CountingLock[numberOfStripes];
+		this.pools = new LockPool[numberOfStripes];
 
+		final int lockPoolSizePerStripe = (lockPoolSize + numberOfStripes - 1) / numberOfStripes;
 		setAll(stripes, i -> new CountingLock(lockTimeout, lockTimeoutUnit));
+		setAll(pools, i -> new LockPool(lockPoolSizePerStripe, lockPoolSizePerStripe, lockTimeout, lockTimeoutUnit,
+				fair));
+	}
+
+
+	@Override
+	public final KeyLock acquire(final Object key) {
+		Contract.isNotNull(key, "key != null");
+
+		final CountingLock lock = getKeyLock(key);
+		try {
+			return new Handle(key, lock, lockForExecution(key, lock));
+		} catch (final RuntimeException | Error e) {
+			freeKeyLock(key, lock);
+			throw e;
+		}
+	}
+
+	@Override
+	public final void executeCombined(final Object key, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeCombinedInternal(key, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	@Override
+	public final <R> R executeCombined(final Object key, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeCombinedInternal(key, callback);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 *
+	 * If the semaphore of the key is already in use, its number of permits is kept.
+	 */
+	@Override
+	public final void executeLimited(final Object key, final int permits, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isTrue(permits > 0, "permits > 0");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeLimitedInternal(key, permits, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * If the semaphore of the key is already in use, its number of permits is kept.
+	 */
+	@Override
+	public final <R> R executeLimited(final Object key, final int permits, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isTrue(permits > 0, "permits > 0");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeLimitedInternal(key, permits, callback);
+	}
 
 	@Override
 	public final void executeLocked(final Object key, final LockCallback callback) {
@@ -105,6 +396,292 @@ public final class StripedKeyLockManager implements KeyLockManager {
 		return executeLockedInternal(key, callback);
 	}
 
+	@Override
+	public final boolean executeLockedBoolean(final Object key, final BooleanLockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		final CountingLock lock = getKeyLock(key);
+		try {
+			final KeyLockHoldEvent holdEvent = lockForExecution(key, lock);
+			try {
+				return callback.doInLock();
+			} finally {
+				unlockAfterExecution(key, lock, holdEvent);
+			}
+		} finally {
+			freeKeyLock(key, lock);
+		}
+	}
+
+	@Override
+	public final <R, E extends Exception> R executeLockedChecked(final Object key,
+			final CheckedLockCallback<R, E> callback) throws E {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		final CountingLock lock = getKeyLock(key);
+		try {
+			final KeyLockHoldEvent holdEvent = lockForExecution(key, lock);
+			try {
+				return callback.doInLock();
+			} finally {
+				unlockAfterExecution(key, lock, holdEvent);
+			}
+		} finally {
+			freeKeyLock(key, lock);
+		}
+	}
+
+	@Override
+	public final int executeLockedInt(final Object key, final IntLockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		final CountingLock lock = getKeyLock(key);
+		try {
+			final KeyLockHoldEvent holdEvent = lockForExecution(key, lock);
+			try {
+				return callback.doInLock();
+			} finally {
+				unlockAfterExecution(key, lock, holdEvent);
+			}
+		} finally {
+			freeKeyLock(key, lock);
+		}
+	}
+
+	@Override
+	public final long executeLockedLong(final Object key, final LongLockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		final CountingLock lock = getKeyLock(key);
+		try {
+			final KeyLockHoldEvent holdEvent = lockForExecution(key, lock);
+			try {
+				return callback.doInLock();
+			} finally {
+				unlockAfterExecution(key, lock, holdEvent);
+			}
+		} finally {
+			freeKeyLock(key, lock);
+		}
+	}
+
+	@Override
+	public int getActiveKeyLocksCount() {
+		return activeKeyLocksCount();
+	}
+
+	/**
+	 * The condition is bound to the lock of the key. Threads waiting for it keep using the lock of the key, so the lock
+	 * stays in the key table until the last of them has left its unit of work.
+	 */
+	@Override
+	public final KeyCondition getCondition(final Object key) {
+		Contract.isNotNull(key, "key != null");
+
+		final CountingLock lock = key2lock.get(key);
+		Contract.isTrue(lock != null && lock.isHeldByCurrentThread(), "lock of key is held by current thread");
+		return lock;
+	}
+
+	@Override
+	public String[] getSnapshot() {
+		final List<KeyLockInfo> snapshot = snapshot();
+		final String[] result = new String[snapshot.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = snapshot.get(i).toString();
+		}
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return waitingThreads.size();
+	}
+
+	/**
+	 * Takes a snapshot of all locks with an owner or waiting threads. The locks are inspected one after another
+	 * without blocking any thread, so the snapshot is consistent per key only: the owner of a key and its hold time
+	 * always belong to the same acquisition. Waiting threads are only reported, if metrics are enabled.
+	 *
+	 * @return information about the locks
+	 */
+	public List<KeyLockInfo> snapshot() {
+		final long now = System.nanoTime();
+		final Map<CountingLock, long[]> lock2waits = new IdentityHashMap<>();
+		for (final WaitingThread waitingThread : waitingThreads.values()) {
+			final long[] waits = lock2waits.computeIfAbsent(waitingThread.lock, l -> new long[] {0, now});
+			waits[0]++;
+			waits[1] = Math.min(waits[1], waitingThread.since);
+		}
+		final List<KeyLockInfo> result = new ArrayList<>();
+		for (final Map.Entry<Object, CountingLock> entry : key2lock.entrySet()) {
+			final CountingLock lock = entry.getValue();
+			final CountingLock.Holder holder = lock.getHolder();
+			final long[] waits = lock2waits.get(lock);
+			if (holder != null || waits != null) {
+				result.add(new KeyLockInfo(entry.getKey(), holder == null ? null : holder.thread,
+						holder == null ? 0 : Math.max(now - holder.since, 0), waits == null ? 0 : (int) waits[0],
+						waits == null ? 0 : now - waits[1]));
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Gives up waiting for the execution of a combined call. If the call is still queued, it is removed and the given
+	 * exception is thrown. Otherwise a combining thread is executing the call already, so its outcome is awaited
+	 * regardless of interrupts.
+	 */
+	private void abandonCombinedCall(final Queue<CombinedCall<?>> calls, final CombinedCall<?> call,
+			final RuntimeException e) {
+		assert calls != null : "contract broken: calls != null";
+		assert call != null : "contract broken: call != null";
+		assert e != null : "contract broken: e != null";
+
+		if (calls.remove(call)) {
+			// the next call may have relied on the abandoned one to get the lock
+			wakeUpFirstCombinedCall(calls);
+			throw e;
+		}
+		boolean interrupted = false;
+		while (!call.isDone()) {
+			LockSupport.park(this);
+			interrupted |= Thread.interrupted();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Executes queued calls while holding the lock of the key, at least until the given call of the current thread is
+	 * done and at most {@link #MAX_COMBINED_CALLS} calls beyond, and releases the lock afterwards.
+	 */
+	private void combine(final CountingLock lock, final Queue<CombinedCall<?>> calls, final CombinedCall<?> call) {
+		assert lock != null : "contract broken: lock != null";
+		assert calls != null : "contract broken: calls != null";
+		assert call != null : "contract broken: call != null";
+
+		try {
+			int executed = 0;
+			CombinedCall<?> next;
+			while ((!call.isDone() || executed < MAX_COMBINED_CALLS) && (next = calls.poll()) != null) {
+				next.execute();
+				executed++;
+			}
+		} finally {
+			lock.unlock();
+			wakeUpFirstCombinedCall(calls);
+		}
+	}
+
+	private void evictIdleKey(final Object key, final long now, final boolean reduce) {
+		assert key != null : "contract broken: key != null";
+		final int stripe = getStripeIndex(key);
+		final CountingLock stripedLock = stripes[stripe];
+		stripedLock.lock();
+		try {
+			final CountingLock lock = key2lock.get(key);
+			if (lock != null && !lock.isUsed() && lock.getValue() == null && (reduce || now - lock.getIdleSince() >= idleRetentionNanos)) {
+				key2lock.remove(key);
+				pools[stripe].offer(lock);
+				idleKeys.decrementAndGet();
+			}
+		} finally {
+			stripedLock.unlock();
+		}
+	}
+
+	/**
+	 * Evicts the locks of idle keys, if there are too many idle keys or the retention time of idle keys may be over.
+	 * Beyond the maximum number, idle keys are evicted down to three quarters of it, so that not every thread leaving
+	 * a locked block has to sweep. One call sweeps at most {@link #IDLE_SWEEP_BATCH} keys and leaves the rest of the
+	 * sweep to the next calls.
+	 */
+	private void evictIdleKeysIfDue() {
+		final long now = System.nanoTime();
+		final boolean tooMany = idleKeys.get() > maxIdleKeys;
+		final boolean expired = now - lastIdleSweep.get() >= idleRetentionNanos;
+		if (!tooMany && !expired && sweepCursor == null || !sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			Iterator<Object> cursor = sweepCursor;
+			if (cursor == null) {
+				if (!tooMany && !expired) {
+					return;
+				}
+				cursor = key2lock.keySet().iterator();
+				sweepExpired = expired;
+				if (expired) {
+					lastIdleSweep.set(now);
+				}
+			}
+			final int lowWater = maxIdleKeys - maxIdleKeys / 4;
+			for (int i = 0; i < IDLE_SWEEP_BATCH && cursor.hasNext(); i++) {
+				final boolean reduce = idleKeys.get() > lowWater;
+				if (!reduce && !sweepExpired) {
+					sweepCursor = null;
+					return;
+				}
+				evictIdleKey(cursor.next(), now, reduce);
+			}
+			sweepCursor = cursor.hasNext() ? cursor : null;
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	private <R> R executeCombinedInternal(final Object key, final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert callback != null : "contract broken: callback != null";
+
+		final CountingLock lock = getKeyLock(key);
+		try {
+			if (lock.isHeldByCurrentThread()) {
+				// reentrant use - queueing would wait for the current thread itself
+				return callback.doInLock();
+			}
+			final CombinedCall<R> call = new CombinedCall<>(callback);
+			final Queue<CombinedCall<?>> calls = lock.getCombinedCalls();
+			calls.add(call);
+			waitForCombinedCall(lock, calls, call);
+			return call.getResult();
+		} finally {
+			freeKeyLock(key, lock);
+		}
+	}
+
+	private <R> R executeLimitedInternal(final Object key, final int permits,
+			final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert permits > 0 : "contract broken: permits > 0";
+		assert callback != null : "contract broken: callback != null";
+
+		final CountingSemaphore semaphore = getKeySemaphore(key, permits);
+		try {
+			final Set<CountingSemaphore> held = heldSemaphores.get();
+			if (held.contains(semaphore)) {
+				// reentrant use - the current thread owns a permit already
+				return callback.doInLock();
+			}
+			semaphore.tryAcquire();
+			held.add(semaphore);
+			try {
+				return callback.doInLock();
+			} finally {
+				held.remove(semaphore);
+				semaphore.release();
+			}
+		} finally {
+			freeKeySemaphore(key, semaphore);
+		}
+	}
 
 	private <R> R executeLockedInternal(final Object key, final ReturnValueLockCallback<R> callback) {
 		assert key != null : "contract broken: key != null";
@@ -112,7 +689,10 @@ public final class StripedKeyLockManager implements KeyLockManager {
 
 		final CountingLock lock = getKeyLock(key);
 		try {
-			lock.tryLock();
+			if (recordEvents) {
+				return executeRecorded(key, lock, callback);
+			}
+			lockKeyLock(lock);
 			try {
 				return callback.doInLock();
 			} finally {
@@ -123,42 +703,355 @@ public final class StripedKeyLockManager implements KeyLockManager {
 		}
 	}
 
+	/**
+	 * Variant of the locked execution that emits flight recorder events. Disabled events are not committed and their
+	 * allocation is eliminated by the JIT compiler.
+	 */
+	private <R> R executeRecorded(final Object key, final CountingLock lock, final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert lock != null : "contract broken: lock != null";
+		assert callback != null : "contract broken: callback != null";
+
+		lockKeyLockRecorded(key, lock);
+		final KeyLockHoldEvent holdEvent = new KeyLockHoldEvent();
+		holdEvent.begin();
+		try {
+			return callback.doInLock();
+		} finally {
+			recordHold(key, lock, holdEvent);
+			lock.unlock();
+		}
+	}
+
 	private void freeKeyLock(final Object key, final CountingLock lock) {
 		assert key != null : "contract broken: key != null";
 		assert lock != null : "contract broken: lock != null";
-		getStripedLock(key).tryLock();
+		final boolean retained;
+		// must not fail on interrupts - otherwise the key lock is never freed
+		final int stripe = getStripeIndex(key);
+		final CountingLock stripedLock = stripes[stripe];
+		stripedLock.lock();
 		try {
 			lock.decrementUses();
-			if (!lock.isUsed()) {
+			// the lock of a key with a value is kept with the value
+			final boolean free = !lock.isUsed() && lock.getValue() == null;
+			retained = free && maxIdleKeys != NO_IDLE_KEYS;
+			if (retained) {
+				lock.setIdleSince(System.nanoTime());
+				idleKeys.incrementAndGet();
+			} else if (free) {
 				key2lock.remove(key);
+				pools[stripe].offer(lock);
 			}
 		} finally {
-			getStripedLock(key).unlock();
+			stripedLock.unlock();
+		}
+		if (retained) {
+			evictIdleKeysIfDue();
+		}
+	}
+
+	private void freeKeySemaphore(final Object key, final CountingSemaphore semaphore) {
+		assert key != null : "contract broken: key != null";
+		assert semaphore != null : "contract broken: semaphore != null";
+		// must not fail on interrupts - otherwise the key semaphore is never freed
+		final CountingLock stripedLock = getStripedLock(key);
+		stripedLock.lock();
+		try {
+			semaphore.decrementUses();
+			if (!semaphore.isUsed()) {
+				key2semaphore.remove(key);
+			}
+		} finally {
+			stripedLock.unlock();
 		}
 	}
 
 	private CountingLock getKeyLock(final Object key) {
 		assert key != null : "contract broken: key != null";
-		getStripedLock(key).tryLock();
+		final int stripe = getStripeIndex(key);
+		final CountingLock stripedLock = stripes[stripe];
+		stripedLock.tryLock();
 		try {
 			final CountingLock result;
 			final CountingLock previousLock = key2lock.get(key);
 			if (previousLock == null) {
-				result = new CountingLock(lockTimeout, lockTimeoutUnit);
+				final CountingLock pooledLock = pools[stripe].poll();
+				result = pooledLock == null ? new CountingLock(lockTimeout, lockTimeoutUnit, fair) : pooledLock;
 				key2lock.put(key, result);
 			} else {
 				result = previousLock;
+				if (!result.isUsed() && result.getValue() == null) {
+					idleKeys.decrementAndGet();
+				}
+			}
+			result.incrementUses();
+			return result;
+		} finally {
+			stripedLock.unlock();
+		}
+	}
+
+	private CountingSemaphore getKeySemaphore(final Object key, final int permits) {
+		assert key != null : "contract broken: key != null";
+		assert permits > 0 : "contract broken: permits > 0";
+		final CountingLock stripedLock = getStripedLock(key);
+		stripedLock.tryLock();
+		try {
+			final CountingSemaphore result;
+			final CountingSemaphore previousSemaphore = key2semaphore.get(key);
+			if (previousSemaphore == null) {
+				result = new CountingSemaphore(permits, lockTimeout, lockTimeoutUnit);
+				key2semaphore.put(key, result);
+			} else {
+				result = previousSemaphore;
 			}
 			result.incrementUses();
 			return result;
 		} finally {
-			getStripedLock(key).unlock();
+			stripedLock.unlock();
 		}
 	}
 
+	private int getStripeIndex(final Object key) {
+		assert key != null : "contract broken: key != null";
+		return abs(key.hashCode() % stripes.length);
+	}
+
 	private CountingLock getStripedLock(final Object key) {
 		assert key != null : "contract broken: key != null";
-		return stripes[abs(key.hashCode() % stripes.length)];
+		return stripes[getStripeIndex(key)];
+	}
+
+	/**
+	 * Locks the lock of the given key and starts a hold event, if events are recorded.
+	 *
+	 * @return the started hold event to pass to {@link #unlockAfterExecution(Object, CountingLock, KeyLockHoldEvent)}
+	 *         or null, if no event is recorded
+	 */
+	private KeyLockHoldEvent lockForExecution(final Object key, final CountingLock lock) {
+		assert key != null : "contract broken: key != null";
+		assert lock != null : "contract broken: lock != null";
+
+		if (!recordEvents) {
+			lockKeyLock(lock);
+			return null;
+		}
+		lockKeyLockRecorded(key, lock);
+		final KeyLockHoldEvent holdEvent = new KeyLockHoldEvent();
+		if (!holdEvent.isEnabled()) {
+			return null;
+		}
+		holdEvent.begin();
+		return holdEvent;
+	}
+
+	private void lockKeyLock(final CountingLock lock) {
+		assert lock != null : "contract broken: lock != null";
+		if (lock.tryLockImmediately()) {
+			return;
+		}
+		if (waitStrategy == WaitStrategy.SPIN_THEN_BLOCK) {
+			for (int i = 0; i < SPINS; i++) {
+				Thread.yield();
+				if (lock.tryLockImmediately()) {
+					return;
+				}
+			}
+		}
+		if (maxWaitersPerKey == UNBOUNDED_WAITERS && maxWaitersPerManager == UNBOUNDED_WAITERS) {
+			waitForKeyLock(lock);
+			return;
+		}
+		if (!lock.tryAddWaiter(maxWaitersPerKey)) {
+			throw new KeyLockManagerRejectedException(maxWaitersPerKey);
+		}
+		try {
+			if (!tryAddManagerWaiter()) {
+				throw new KeyLockManagerRejectedException(maxWaitersPerManager);
+			}
+			try {
+				waitForKeyLock(lock);
+			} finally {
+				waiters.decrementAndGet();
+			}
+		} finally {
+			lock.removeWaiter();
+		}
+	}
+
+	/**
+	 * Variant of {@link #lockKeyLock(CountingLock)} that emits the wait and timeout events.
+	 */
+	private void lockKeyLockRecorded(final Object key, final CountingLock lock) {
+		assert key != null : "contract broken: key != null";
+		assert lock != null : "contract broken: lock != null";
+
+		final KeyLockWaitEvent waitEvent = new KeyLockWaitEvent();
+		waitEvent.begin();
+		try {
+			lockKeyLock(lock);
+		} catch (final KeyLockManagerTimeoutException e) {
+			final KeyLockTimeoutEvent timeoutEvent = new KeyLockTimeoutEvent();
+			if (timeoutEvent.shouldCommit()) {
+				timeoutEvent.key = String.valueOf(key);
+				timeoutEvent.keyHash = key.hashCode();
+				timeoutEvent.stripe = getStripeIndex(key);
+				timeoutEvent.queueLength = lock.getQueueLength();
+				timeoutEvent.timeout = lockTimeoutUnit.toNanos(lockTimeout);
+				timeoutEvent.commit();
+			}
+			throw e;
+		} finally {
+			waitEvent.end();
+			if (waitEvent.shouldCommit()) {
+				waitEvent.key = String.valueOf(key);
+				waitEvent.keyHash = key.hashCode();
+				waitEvent.stripe = getStripeIndex(key);
+				waitEvent.queueLength = lock.getQueueLength();
+				waitEvent.commit();
+			}
+		}
+	}
+
+	private void recordHold(final Object key, final CountingLock lock, final KeyLockHoldEvent holdEvent) {
+		assert key != null : "contract broken: key != null";
+		assert lock != null : "contract broken: lock != null";
+		assert holdEvent != null : "contract broken: holdEvent != null";
+
+		holdEvent.end();
+		if (holdEvent.shouldCommit()) {
+			holdEvent.key = String.valueOf(key);
+			holdEvent.keyHash = key.hashCode();
+			holdEvent.stripe = getStripeIndex(key);
+			holdEvent.queueLength = lock.getQueueLength();
+			holdEvent.commit();
+		}
+	}
+
+	private boolean tryAddManagerWaiter() {
+		int current;
+		do {
+			current = waiters.get();
+			if (current >= maxWaitersPerManager) {
+				return false;
+			}
+		} while (!waiters.compareAndSet(current, current + 1));
+		return true;
+	}
+
+	private void unlockAfterExecution(final Object key, final CountingLock lock, final KeyLockHoldEvent holdEvent) {
+		assert key != null : "contract broken: key != null";
+		assert lock != null : "contract broken: lock != null";
+
+		try {
+			if (holdEvent != null) {
+				recordHold(key, lock, holdEvent);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the given call is done. The current thread combines the queued calls whenever it gets the lock of
+	 * the key. The first queued call waits for the lock, all others are parked until a combining thread has executed
+	 * them or wakes them up as the new first call.
+	 */
+	private void waitForCombinedCall(final CountingLock lock, final Queue<CombinedCall<?>> calls,
+			final CombinedCall<?> call) {
+		assert lock != null : "contract broken: lock != null";
+		assert calls != null : "contract broken: calls != null";
+		assert call != null : "contract broken: call != null";
+
+		final long deadline = System.nanoTime() + lockTimeoutUnit.toNanos(lockTimeout);
+		while (!call.isDone()) {
+			if (lock.tryLockImmediately()) {
+				combine(lock, calls, call);
+			} else if (calls.peek() == call) {
+				try {
+					lockKeyLock(lock);
+				} catch (final RuntimeException e) {
+					abandonCombinedCall(calls, call, e);
+					continue;
+				}
+				combine(lock, calls, call);
+			} else {
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					abandonCombinedCall(calls, call, new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit));
+				} else {
+					LockSupport.parkNanos(this, remaining);
+					if (Thread.interrupted()) {
+						abandonCombinedCall(calls, call, new KeyLockManagerInterruptedException());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for the lock of a key and registers the current thread as waiting meanwhile, if metrics are enabled.
+	 */
+	private void waitForKeyLock(final CountingLock lock) {
+		assert lock != null : "contract broken: lock != null";
+		if (!metrics) {
+			lock.tryLock();
+			return;
+		}
+		final Thread current = Thread.currentThread();
+		waitingThreads.put(current, new WaitingThread(lock, System.nanoTime()));
+		try {
+			lock.tryLock();
+		} finally {
+			waitingThreads.remove(current);
+		}
+	}
+
+	/**
+	 * Wakes up the thread of the first queued call, so that it waits for the lock of the key.
+	 */
+	private void wakeUpFirstCombinedCall(final Queue<CombinedCall<?>> calls) {
+		assert calls != null : "contract broken: calls != null";
+
+		final CombinedCall<?> first = calls.peek();
+		if (first != null) {
+			LockSupport.unpark(first.getThread());
+		}
+	}
+
+	/**
+	 * Applies the given function to the lock of the key, while the current thread holds it. Used by
+	 * {@link KeyLockedMap} to access the value stored with the lock.
+	 *
+	 * @return the result of the function
+	 */
+	<R> R executeOnKeyLock(final Object key, final Function<CountingLock, R> function) {
+		assert key != null : "contract broken: key != null";
+		assert function != null : "contract broken: function != null";
+
+		final CountingLock lock = getKeyLock(key);
+		try {
+			final KeyLockHoldEvent holdEvent = lockForExecution(key, lock);
+			try {
+				return function.apply(lock);
+			} finally {
+				unlockAfterExecution(key, lock, holdEvent);
+			}
+		} finally {
+			freeKeyLock(key, lock);
+		}
+	}
+
+	/**
+	 * Looks up the lock of the key without locking. Used by {@link KeyLockedMap} to read the value stored with the
+	 * lock.
+	 *
+	 * @return the lock of the key or null, if the key is not in use and has no value
+	 */
+	CountingLock getKeyLockIfPresent(final Object key) {
+		assert key != null : "contract broken: key != null";
+		return key2lock.get(key);
 	}
 
 	/**
@@ -174,13 +1067,98 @@ public final class StripedKeyLockManager implements KeyLockManager {
 	/**
 	 * for testing only
 	 *
-	 * @return the number of threads currently waiting in the queues of the key locks
+	 * @return the number of currently active key semaphores
+	 *
+	 */
+	int activeKeySemaphoresCount() {
+		return key2semaphore.size();
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of currently retained locks of idle keys
+	 *
+	 */
+	int idleKeyLocksCount() {
+		return idleKeys.get();
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of currently pooled locks
+	 *
+	 */
+	int pooledKeyLocksCount() {
+		int result = 0;
+		for (final LockPool pool : pools) {
+			result += pool.size();
+		}
+		return result;
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of threads currently waiting in the queues of the key locks and key semaphores - unlike
+	 *         {@link #getWaitingThreadsCount()} regardless of the metrics and including limited executions
 	 */
 	int waitingThreadsCount() {
 		int result = 0;
 		for (final CountingLock lock : key2lock.values()) {
 			result += lock.getQueueLength();
 		}
+		for (final CountingSemaphore semaphore : key2semaphore.values()) {
+			result += semaphore.getQueueLength();
+		}
 		return result;
 	}
+
+	/**
+	 * A thread waiting for the lock of a key since the given time.
+	 */
+	private static final class WaitingThread {
+
+		private final CountingLock lock;
+		private final long since;
+
+		private WaitingThread(final CountingLock lock, final long since) {
+			this.lock = lock;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * Handle of one lock acquired by {@link #acquire(Object)}.
+	 */
+	private final class Handle implements KeyLock {
+
+		private final Object key;
+		private final CountingLock lock;
+		private final KeyLockHoldEvent holdEvent;
+		private final Thread owner = Thread.currentThread();
+		private boolean closed = false;
+
+		private Handle(final Object key, final CountingLock lock, final KeyLockHoldEvent holdEvent) {
+			this.key = key;
+			this.lock = lock;
+			this.holdEvent = holdEvent;
+		}
+
+		@Override
+		public void close() {
+			Contract.isTrue(owner == Thread.currentThread(), "handle is closed by its thread");
+
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				unlockAfterExecution(key, lock, holdEvent);
+			} finally {
+				freeKeyLock(key, lock);
+			}
+		}
+	}
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.lockstripe;
+
+/**
+ * Management interface of {@link StripedKeyLockManager}. Register a manager at an MBean server to read its state live,
+ * for example:
+ *
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(manager, new ObjectName("de.jkeylockmanager:name=orders"));
+ * </pre>
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public interface StripedKeyLockManagerMXBean {
+
+	/**
+	 * @return the number of keys with a lock
+	 */
+	int getActiveKeyLocksCount();
+
+	/**
+	 * @return the locks with an owner or waiting threads, one line per key in the style of a thread dump
+	 *
+	 * @see StripedKeyLockManager#snapshot()
+	 */
+	String[] getSnapshot();
+
+	/**
+	 * @return the number of threads blocked while waiting for the lock of a key, as reported by the snapshot - 0, if
+	 *         metrics are disabled - threads spinning for a lock, waiting for the permits of a limited execution or
+	 *         for a combined call are not counted
+	 */
+	int getWaitingThreadsCount();
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.priority;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link KeyLockManager} with priority aware waiting.
+ *
+ * If several threads are waiting for the lock of the same key, the lock is handed over to the thread with the highest
+ * priority. The priority of a waiting thread increases by one with every elapsed aging interval, so threads with a low
+ * priority do not starve behind a steady stream of threads with a high priority.
+ *
+ * All resources used by one key are freed immediately, if there is no longer a thread in the locked block for this key.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class PriorityKeyLockManager implements KeyLockManager {
+
+
+	/**
+	 * Default aging interval in milliseconds
+	 */
+	private static final long DEFAULT_AGING_INTERVAL = 100;
+
+
+	private final ConcurrentHashMap<Object, PriorityLock> key2lock = new ConcurrentHashMap<>();
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+	private final long agingIntervalNanos;
+
+
+	/**
+	 * Creates a new instance of {@link PriorityKeyLockManager} with a default aging interval
+	 *
+	 * see #PriorityKeyLockManager(long, java.util.concurrent.TimeUnit, long, java.util.concurrent.TimeUnit)
+	 *
+	 */
+	public PriorityKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		this(lockTimeout, lockTimeoutUnit, DEFAULT_AGING_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a new instance of {@link PriorityKeyLockManager} with the given settings.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 * @param agingInterval
+	 *            the waiting time after which the priority of a waiting thread is increased by one - must be greater
+	 *            than 0
+	 * @param agingIntervalUnit
+	 *            the unit for agingInterval - must not be null
+	 */
+	public PriorityKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit, final long agingInterval,
+			final TimeUnit agingIntervalUnit) {
+		Contract.isNotNull(lockTimeoutUnit, "lockTimeoutUnit != null");
+		Contract.isTrue(lockTimeout > 0, "lockTimeout > 0");
+		Contract.isNotNull(agingIntervalUnit, "agingIntervalUnit != null");
+		Contract.isTrue(agingIntervalUnit.toNanos(agingInterval) > 0, "agingInterval > 0");
+
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+		this.agingIntervalNanos = agingIntervalUnit.toNanos(agingInterval);
+	}
+
+
+	@Override
+	public void executeLocked(final Object key, final LockCallback callback) {
+		executeLocked(key, DEFAULT_PRIORITY, callback);
+	}
+
+	@Override
+	public <R> R executeLocked(final Object key, final ReturnValueLockCallback<R> callback) {
+		return executeLocked(key, DEFAULT_PRIORITY, callback);
+	}
+
+	@Override
+	public void executeLocked(final Object key, final int priority, final LockCallback callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeLockedInternal(key, priority, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	@Override
+	public <R> R executeLocked(final Object key, final int priority, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeLockedInternal(key, priority, callback);
+	}
+
+
+	private <R> R executeLockedInternal(final Object key, final int priority, final ReturnValueLockCallback<R> callback) {
+		assert key != null : "contract broken: key != null";
+		assert callback != null : "contract broken: callback != null";
+
+		final PriorityLock lock = getKeyLock(key);
+		try {
+			lock.tryLock(priority);
+			try {
+				return callback.doInLock();
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			freeKeyLock(key);
+		}
+	}
+
+	private void freeKeyLock(final Object key) {
+		assert key != null : "contract broken: key != null";
+		key2lock.computeIfPresent(key, (k, lock) -> {
+			lock.decrementUses();
+			return lock.isUsed() ? lock : null;
+		});
+	}
+
+	private PriorityLock getKeyLock(final Object key) {
+		assert key != null : "contract broken: key != null";
+		return key2lock.compute(key, (k, previousLock) -> {
+			final PriorityLock result = previousLock == null
+					? new PriorityLock(lockTimeout, lockTimeoutUnit, agingIntervalNanos)
+					: previousLock;
+			result.incrementUses();
+			return result;
+		});
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of currently active key locks
+	 *
+	 */
+	int activeKeyLocksCount() {
+		return key2lock.size();
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of threads currently waiting in the queues of the key locks
+	 */
+	int waitingThreadsCount() {
+		int result = 0;
+		for (final PriorityLock lock : key2lock.values()) {
+			result += lock.getQueueLength();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+
+/**
+ * 
+ * Special lock implementation for internal use in this package only.
+ * 
+ * {@link PriorityLock} is a reentrant lock that hands itself over to the
+ * waiting thread with the highest effective priority. The effective priority of
+ * a waiting thread is its priority increased by one for every elapsed aging
+ * interval, so threads with a low priority cannot starve. Waiting threads with
+ * the same effective priority are served in arrival order.
+ * 
+ * {@link PriorityLock} adds a counter for counting its uses. The counting
+ * functionality is not thread safe and so it is essential to use the following
+ * methods only inside of a compute function of the map holding the lock:
+ * 
+ * {@link #decrementUses()}, {@link #incrementUses()}, {@link #isUsed()}
+ * 
+ * @author Marc-Olaf Jaschke
+ * 
+ */
+final class PriorityLock {
+
+	private final ReentrantLock monitor = new ReentrantLock();
+	private final List<Waiter> waiters = new ArrayList<>();
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+	private final long agingIntervalNanos;
+	private Thread owner;
+	private int holds = 0;
+	private long uses = 0;
+
+	/**
+	 * Creates a new instance of {@link PriorityLock} with a usage counter set
+	 * to zero.
+	 * 
+	 * @param lockTimeout
+	 *            - the time to wait for a lock before an Exception is thrown -
+	 *            must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            - the unit for lockTimeout - must not be null
+	 * @param agingIntervalNanos
+	 *            - the waiting time in nanoseconds after which the priority of
+	 *            a waiting thread is increased by one - must be greater than 0
+	 */
+	PriorityLock(final long lockTimeout, final TimeUnit lockTimeoutUnit, final long agingIntervalNanos) {
+		assert lockTimeout > 0 : "contract broken: lockTimeout > 0";
+		assert lockTimeoutUnit != null : "contract broken: lockTimeoutUnit != null";
+		assert agingIntervalNanos > 0 : "contract broken: agingIntervalNanos > 0";
+
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+		this.agingIntervalNanos = agingIntervalNanos;
+	}
+
+	/**
+	 * Decrements the usage counter. See class commentary for thread safety!
+	 */
+	void decrementUses() {
+		uses--;
+	}
+
+	/**
+	 * @return the number of threads waiting for this lock
+	 */
+	int getQueueLength() {
+		monitor.lock();
+		try {
+			return waiters.size();
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * Increments the usage counter. See class commentary for thread safety!
+	 */
+	void incrementUses() {
+		uses++;
+	}
+
+	/**
+	 * See class commentary for thread safety!
+	 * 
+	 * @return true, if the usage counter is not zero
+	 */
+	boolean isUsed() {
+		return uses != 0;
+	}
+
+	/**
+	 * Acquires the lock. If the lock is held by another thread, the current
+	 * thread waits until the lock is handed over to it.
+	 * 
+	 * @param priority
+	 *            - the priority of the current thread while waiting
+	 * 
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for
+	 *             the lock
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded
+	 */
+	void tryLock(final int priority) {
+		if (Thread.interrupted()) {
+			throw new KeyLockManagerInterruptedException();
+		}
+		final Thread current = Thread.currentThread();
+		monitor.lock();
+		try {
+			if (owner == current) {
+				holds++;
+				return;
+			}
+			if (owner == null) {
+				owner = current;
+				holds = 1;
+				return;
+			}
+			final Waiter waiter = new Waiter(current, priority, System.nanoTime(), monitor.newCondition());
+			waiters.add(waiter);
+			try {
+				long nanos = lockTimeoutUnit.toNanos(lockTimeout);
+				while (!waiter.granted) {
+					if (nanos <= 0) {
+						throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
+					}
+					nanos = waiter.condition.awaitNanos(nanos);
+				}
+			} catch (final InterruptedException e) {
+				if (waiter.granted) {
+					release();
+				}
+				throw new KeyLockManagerInterruptedException();
+			} finally {
+				if (!waiter.granted) {
+					waiters.remove(waiter);
+				}
+			}
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * Releases the lock and hands it over to the waiting thread with the
+	 * highest effective priority.
+	 * 
+	 * @throws IllegalMonitorStateException
+	 *             if the current thread does not hold this lock
+	 */
+	void unlock() {
+		monitor.lock();
+		try {
+			if (owner != Thread.currentThread()) {
+				throw new IllegalMonitorStateException();
+			}
+			if (--holds == 0) {
+				release();
+			}
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	private void release() {
+		assert monitor.isHeldByCurrentThread() : "contract broken: monitor.isHeldByCurrentThread()";
+		final Waiter next = selectNextWaiter();
+		if (next == null) {
+			owner = null;
+			holds = 0;
+		} else {
+			waiters.remove(next);
+			owner = next.thread;
+			holds = 1;
+			next.granted = true;
+			next.condition.signal();
+		}
+	}
+
+	private Waiter selectNextWaiter() {
+		final long now = System.nanoTime();
+		Waiter result = null;
+		long resultPriority = Long.MIN_VALUE;
+		for (final Waiter waiter : waiters) {
+			final long effectivePriority = waiter.priority + (now - waiter.since) / agingIntervalNanos;
+			if (effectivePriority > resultPriority) {
+				result = waiter;
+				resultPriority = effectivePriority;
+			}
+		}
+		return result;
+	}
+
+	private static final class Waiter {
+
+		private final Thread thread;
+		private final int priority;
+		private final long since;
+		private final Condition condition;
+		private boolean granted = false;
+
+		private Waiter(final Thread thread, final int priority, final long since, final Condition condition) {
+			this.thread = thread;
+			this.priority = priority;
+			this.since = since;
+			this.condition = condition;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.range;
+
+import de.jkeylockmanager.contract.Contract;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock manager for ranges of ordered keys.
+ *
+ * {@link #executeLocked(Comparable, Comparable, LockCallback)} locks the half open range [lo, hi). A thread waits
+ * only for threads holding a range overlapping its own, so operations on disjoint ranges proceed in parallel.
+ *
+ * The held ranges are kept ordered by their lower bound. A waiting thread waits for the release of one overlapping
+ * range at a time and is not woken up by releases of unrelated ranges.
+ *
+ * Locks are reentrant: a thread never waits for ranges held by itself.
+ *
+ * The held ranges are kept in one {@link TreeSet} guarded by one monitor. Only the bookkeeping runs under the monitor:
+ * locking a range takes O(log n + k) for n held ranges and k ranges left of hi, that end after lo, unlocking takes
+ * O(log n). The callbacks run outside of the monitor. So the rate of lock and unlock operations of all ranges
+ * together is bounded by this one monitor, and the manager fits callbacks that run long compared to the bookkeeping
+ * rather than very high rates of short ones. A concurrent interval structure, that avoids the monitor, needs a
+ * protocol to order threads inserting overlapping ranges at the same time and is not implemented.
+ *
+ * Waiting threads are not queued: after a release, a waiting thread competes with newly arriving threads, so it may
+ * run into the timeout while overlapping ranges are locked again and again.
+ *
+ * All resources used by one range are freed immediately, if there is no longer a thread in the locked block for this
+ * range.
+ *
+ * @param <K>
+ *            the type of the keys
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class RangeKeyLockManager<K extends Comparable<? super K>> {
+
+
+	private final ReentrantLock monitor = new ReentrantLock();
+	private final TreeSet<Range<K>> ranges = new TreeSet<>();
+	private final long lockTimeout;
+	private final TimeUnit lockTimeoutUnit;
+	private long sequence = 0;
+	private int selfOverlappingRanges = 0;
+
+
+	/**
+	 * Creates a new instance of {@link RangeKeyLockManager} with the given settings.
+	 *
+	 * @param lockTimeout
+	 *            the time to wait for a lock before a Exception is thrown - must be greater than 0
+	 * @param lockTimeoutUnit
+	 *            the unit for lockTimeout - must not be null
+	 */
+	public RangeKeyLockManager(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		Contract.isNotNull(lockTimeoutUnit, "lockTimeoutUnit != null");
+		Contract.isTrue(lockTimeout > 0, "lockTimeout > 0");
+
+		this.lockTimeout = lockTimeout;
+		this.lockTimeoutUnit = lockTimeoutUnit;
+	}
+
+
+	/**
+	 * Executes the given callback while the range [lo, hi) is locked.
+	 *
+	 * @param lo
+	 *            the inclusive lower bound of the range - must not be null
+	 * @param hi
+	 *            the exclusive upper bound of the range - must not be null and greater than lo
+	 * @param callback
+	 *            the callback to execute - must not be null
+	 *
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for the lock
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded
+	 */
+	public void executeLocked(final K lo, final K hi, final LockCallback callback) {
+		Contract.isNotNull(lo, "lo != null");
+		Contract.isNotNull(hi, "hi != null");
+		Contract.isTrue(lo.compareTo(hi) < 0, "lo < hi");
+		Contract.isNotNull(callback, "callback != null");
+
+		executeLockedInternal(lo, hi, () -> {
+			callback.doInLock();
+			return null;
+		});
+	}
+
+	/**
+	 * Executes the given callback while the range [lo, hi) is locked.
+	 *
+	 * @param lo
+	 *            the inclusive lower bound of the range - must not be null
+	 * @param hi
+	 *            the exclusive upper bound of the range - must not be null and greater than lo
+	 * @param callback
+	 *            the callback to execute - must not be null
+	 *
+	 * @return the result of the callback
+	 *
+	 * @throws KeyLockManagerInterruptedException
+	 *             if the current thread becomes interrupted while waiting for the lock
+	 * @throws KeyLockManagerTimeoutException
+	 *             if the instance wide waiting time is exceeded
+	 */
+	public <R> R executeLocked(final K lo, final K hi, final ReturnValueLockCallback<R> callback) {
+		Contract.isNotNull(lo, "lo != null");
+		Contract.isNotNull(hi, "hi != null");
+		Contract.isTrue(lo.compareTo(hi) < 0, "lo < hi");
+		Contract.isNotNull(callback, "callback != null");
+
+		return executeLockedInternal(lo, hi, callback);
+	}
+
+
+	private <R> R executeLockedInternal(final K lo, final K hi, final ReturnValueLockCallback<R> callback) {
+		assert lo != null : "contract broken: lo != null";
+		assert hi != null : "contract broken: hi != null";
+		assert callback != null : "contract broken: callback != null";
+
+		final Range<K> range = lockRange(lo, hi);
+		try {
+			return callback.doInLock();
+		} finally {
+			if (range != null) {
+				unlockRange(range);
+			}
+		}
+	}
+
+	/**
+	 * Returns the first range overlapping [lo, hi), that is held by another thread, or null if there is none. If
+	 * there is none and [lo, hi) is contained in a range held by the current thread, the parameter containing is set
+	 * to true.
+	 */
+	private Range<K> findConflict(final K lo, final K hi, final boolean[] containing) {
+		assert monitor.isHeldByCurrentThread() : "contract broken: monitor.isHeldByCurrentThread()";
+		final Thread current = Thread.currentThread();
+		final Iterator<Range<K>> candidates = ranges.headSet(new Range<>(hi, hi, Long.MIN_VALUE, null), false)
+				.descendingIterator();
+		while (candidates.hasNext()) {
+			final Range<K> candidate = candidates.next();
+			if (candidate.hi.compareTo(lo) > 0) {
+				if (candidate.owner != current) {
+					return candidate;
+				}
+				if (candidate.lo.compareTo(lo) <= 0 && candidate.hi.compareTo(hi) >= 0) {
+					containing[0] = true;
+				}
+			} else if (selfOverlappingRanges == 0) {
+				// the held ranges are disjoint - no range further left can overlap
+				break;
+			}
+		}
+		return null;
+	}
+
+	private boolean findSelfOverlap(final Range<K> range) {
+		assert monitor.isHeldByCurrentThread() : "contract broken: monitor.isHeldByCurrentThread()";
+		for (final Range<K> candidate : ranges.headSet(new Range<>(range.hi, range.hi, Long.MIN_VALUE, null), false)) {
+			if (candidate.hi.compareTo(range.lo) > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the newly held range or null, if the range is already held by the current thread
+	 */
+	private Range<K> lockRange(final K lo, final K hi) {
+		assert lo != null : "contract broken: lo != null";
+		assert hi != null : "contract broken: hi != null";
+		monitor.lock();
+		try {
+			long remaining = lockTimeoutUnit.toNanos(lockTimeout);
+			final boolean[] containing = new boolean[1];
+			Range<K> conflict;
+			while ((conflict = findConflict(lo, hi, containing)) != null) {
+				if (remaining <= 0) {
+					throw new KeyLockManagerTimeoutException(lockTimeout, lockTimeoutUnit);
+				}
+				remaining = conflict.released.awaitNanos(remaining);
+				containing[0] = false;
+			}
+			if (containing[0]) {
+				return null;
+			}
+			final Range<K> result = new Range<>(lo, hi, sequence++, Thread.currentThread());
+			result.released = monitor.newCondition();
+			result.selfOverlapping = findSelfOverlap(result);
+			if (result.selfOverlapping) {
+				selfOverlappingRanges++;
+			}
+			ranges.add(result);
+			return result;
+		} catch (final InterruptedException e) {
+			throw new KeyLockManagerInterruptedException();
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	private void unlockRange(final Range<K> range) {
+		assert range != null : "contract broken: range != null";
+		monitor.lock();
+		try {
+			ranges.remove(range);
+			if (range.selfOverlapping) {
+				selfOverlappingRanges--;
+			}
+			range.released.signalAll();
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of currently held ranges
+	 *
+	 */
+	int activeRangesCount() {
+		monitor.lock();
+		try {
+			return ranges.size();
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * A held range - ordered by its lower bound and the order of acquisition.
+	 */
+	private static final class Range<K extends Comparable<? super K>> implements Comparable<Range<K>> {
+
+		private final K lo;
+		private final K hi;
+		private final long sequence;
+		private final Thread owner;
+		private Condition released;
+		private boolean selfOverlapping;
+
+		private Range(final K lo, final K hi, final long sequence, final Thread owner) {
+			this.lo = lo;
+			this.hi = hi;
+			this.sequence = sequence;
+			this.owner = owner;
+		}
+
+		@Override
+		public int compareTo(final Range<K> other) {
+			final int result = lo.compareTo(other.lo);
+			return result != 0 ? result : Long.compare(sequence, other.sequence);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.key;
+
+import de.jkeylockmanager.contract.Contract;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Key consisting of bytes, for example the binary form of an identifier. The hash code is computed once and keys are
+ * compared with {@link Arrays#equals(byte[], byte[])}, which modern runtimes compile to vectorized instructions. So
+ * binary keys are cheaper to hash and compare than composite objects or their string representations.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class BinaryKey {
+
+	private final byte[] bytes;
+	private final int hash;
+
+	private BinaryKey(final byte[] bytes) {
+		this.bytes = bytes;
+		this.hash = Arrays.hashCode(bytes);
+	}
+
+	/**
+	 * Creates a new key with a copy of the given bytes.
+	 *
+	 * @param bytes
+	 *            the bytes of the key - must not be null
+	 *
+	 * @return the newly created key
+	 */
+	public static BinaryKey of(final byte[] bytes) {
+		Contract.isNotNull(bytes, "bytes != null");
+
+		return new BinaryKey(bytes.clone());
+	}
+
+	/**
+	 * Creates a new key with the 16 bytes of the given {@link UUID}.
+	 *
+	 * @param uuid
+	 *            the identifier - must not be null
+	 *
+	 * @return the newly created key
+	 */
+	public static BinaryKey of(final UUID uuid) {
+		Contract.isNotNull(uuid, "uuid != null");
+
+		return new BinaryKey(ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits())
+				.putLong(uuid.getLeastSignificantBits()).array());
+	}
+
+	/**
+	 * Creates a new key with the 8 bytes of the given number.
+	 *
+	 * @param number
+	 *            the number
+	 *
+	 * @return the newly created key
+	 */
+	public static BinaryKey of(final long number) {
+		return new BinaryKey(ByteBuffer.allocate(8).putLong(number).array());
+	}
+
+	/**
+	 * Creates a new key with the given bytes without copying them.
+	 *
+	 * @param bytes
+	 *            the bytes of the key - must not be null and must not be changed afterwards
+	 *
+	 * @return the newly created key
+	 */
+	public static BinaryKey wrap(final byte[] bytes) {
+		Contract.isNotNull(bytes, "bytes != null");
+
+		return new BinaryKey(bytes);
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof BinaryKey)) {
+			return false;
+		}
+		final BinaryKey that = (BinaryKey) other;
+		return hash == that.hash && Arrays.equals(bytes, that.bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * @return the bytes of the key in hexadecimal notation
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder result = new StringBuilder(bytes.length * 2);
+		for (final byte b : bytes) {
+			result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+}
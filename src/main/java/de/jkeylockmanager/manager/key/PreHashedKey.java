@@ -0,0 +1,83 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.key;
+
+import de.jkeylockmanager.contract.Contract;
+
+/**
+ * Key wrapper, that computes the hash code of a key once. Use it for keys with an expensive {@link #hashCode()}, such
+ * as long strings or composite objects: a key lock manager needs the hash code of a key several times per call, for
+ * the stripe and for each map operation.
+ *
+ * Two wrappers are equal, if their keys are equal. The keys are compared only, if the hash codes are equal.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class PreHashedKey {
+
+	private final Object key;
+	private final int hash;
+
+	private PreHashedKey(final Object key) {
+		this.key = key;
+		this.hash = key.hashCode();
+	}
+
+	/**
+	 * Creates a new wrapper for the given key.
+	 *
+	 * @param key
+	 *            the key to wrap - must not be null and must not be changed while it is in use
+	 *
+	 * @return the newly created wrapper
+	 */
+	public static PreHashedKey of(final Object key) {
+		Contract.isNotNull(key, "key != null");
+
+		return new PreHashedKey(key);
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof PreHashedKey)) {
+			return false;
+		}
+		final PreHashedKey that = (PreHashedKey) other;
+		return hash == that.hash && key.equals(that.key);
+	}
+
+	/**
+	 * @return the wrapped key
+	 */
+	public Object getKey() {
+		return key;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(key);
+	}
+}
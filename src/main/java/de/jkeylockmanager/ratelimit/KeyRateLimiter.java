@@ -0,0 +1,228 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.ratelimit;
+
+import de.jkeylockmanager.contract.Contract;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.LongSupplier;
+
+/**
+ * Rate limiter for keys based on the generic cell rate algorithm (GCRA), which behaves like a token bucket per key.
+ *
+ * Every key may take the given number of permits per period. Up to burst permits may be taken at once, if the key
+ * was idle long enough before.
+ *
+ * The state of a key is a single theoretical arrival time, that is updated with compare and set - there is no lock.
+ * The state is created on demand and evicted, as soon as the key is idle long enough to be in the same state as a new
+ * key. Idle keys are evicted lazily by the calling threads, so there is no cleanup thread. Such a thread sweeps at
+ * most a small batch of keys, so the latency it pays is bounded regardless of the number of keys. A sweep over all
+ * keys is spread over the following calls. All keys share one time source.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class KeyRateLimiter {
+
+
+	/**
+	 * Theoretical arrival time of an evicted state.
+	 */
+	private static final long EVICTED = Long.MIN_VALUE;
+
+	/**
+	 * Maximum number of keys swept for idle states by one call
+	 */
+	private static final int SWEEP_BATCH = 64;
+
+
+	private final ConcurrentHashMap<Object, KeyState> key2state = new ConcurrentHashMap<>();
+	private final AtomicLong lastSweep;
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	// the position of the current sweep - guarded by sweeping
+	private volatile Iterator<Map.Entry<Object, KeyState>> sweepCursor = null;
+	private final LongSupplier clock;
+	private final long emissionInterval;
+	private final long tolerance;
+	private final int burst;
+	private final long sweepInterval;
+
+
+	/**
+	 * Creates a new instance of {@link KeyRateLimiter}, that allows a burst of all permits of a period.
+	 *
+	 * see #KeyRateLimiter(int, long, java.util.concurrent.TimeUnit, int)
+	 */
+	public KeyRateLimiter(final int permitsPerPeriod, final long period, final TimeUnit periodUnit) {
+		this(permitsPerPeriod, period, periodUnit, permitsPerPeriod);
+	}
+
+	/**
+	 * Creates a new instance of {@link KeyRateLimiter} with the given settings.
+	 *
+	 * @param permitsPerPeriod
+	 *            the number of permits per period and key - must be greater than 0
+	 * @param period
+	 *            the length of the period - must be greater than 0
+	 * @param periodUnit
+	 *            the unit for period - must not be null
+	 * @param burst
+	 *            the number of permits an idle key may take at once - must be greater than 0
+	 */
+	public KeyRateLimiter(final int permitsPerPeriod, final long period, final TimeUnit periodUnit, final int burst) {
+		this(permitsPerPeriod, period, periodUnit, burst, System::nanoTime);
+	}
+
+	/**
+	 * Creates a new instance of {@link KeyRateLimiter} with the given settings and time source.
+	 *
+	 * see #KeyRateLimiter(int, long, java.util.concurrent.TimeUnit, int)
+	 *
+	 * @param clock
+	 *            the time source in nanoseconds - must not be null
+	 */
+	KeyRateLimiter(final int permitsPerPeriod, final long period, final TimeUnit periodUnit, final int burst,
+			final LongSupplier clock) {
+		Contract.isTrue(permitsPerPeriod > 0, "permitsPerPeriod > 0");
+		Contract.isTrue(period > 0, "period > 0");
+		Contract.isNotNull(periodUnit, "periodUnit != null");
+		Contract.isTrue(burst > 0, "burst > 0");
+		Contract.isNotNull(clock, "clock != null");
+		Contract.isTrue(periodUnit.toNanos(period) >= permitsPerPeriod, "period >= 1 ns per permit");
+
+		this.emissionInterval = periodUnit.toNanos(period) / permitsPerPeriod;
+		this.tolerance = emissionInterval * burst;
+		this.burst = burst;
+		this.clock = clock;
+		this.sweepInterval = Math.max(tolerance, TimeUnit.SECONDS.toNanos(1));
+		this.lastSweep = new AtomicLong(clock.getAsLong());
+	}
+
+
+	/**
+	 * Takes one permit for the given key, if the rate of the key allows it.
+	 *
+	 * see #tryAcquire(Object, int)
+	 */
+	public boolean tryAcquire(final Object key) {
+		return tryAcquire(key, 1);
+	}
+
+	/**
+	 * Takes the given number of permits for the given key, if the rate of the key allows it. This method never waits.
+	 *
+	 * @param key
+	 *            the key to limit - must not be null
+	 * @param permits
+	 *            the number of permits to take - must be greater than 0 and not greater than burst
+	 *
+	 * @return true, if the permits were taken - false, if the key has exceeded its rate
+	 */
+	public boolean tryAcquire(final Object key, final int permits) {
+		Contract.isNotNull(key, "key != null");
+		Contract.isTrue(permits > 0, "permits > 0");
+		Contract.isTrue(permits <= burst, "permits <= burst");
+
+		final long now = clock.getAsLong();
+		sweepIfDue(now);
+		final long cost = emissionInterval * permits;
+		while (true) {
+			final KeyState state = key2state.computeIfAbsent(key, k -> new KeyState(now));
+			final long tat = state.tat;
+			if (tat == EVICTED) {
+				// help the evicting thread and retry with a new state
+				key2state.remove(key, state);
+				continue;
+			}
+			final long newTat = Math.max(tat, now) + cost;
+			if (newTat - now > tolerance) {
+				return false;
+			}
+			if (KeyState.TAT.compareAndSet(state, tat, newTat)) {
+				return true;
+			}
+		}
+	}
+
+
+	/**
+	 * Evicts the states of idle keys, if a sweep is in progress or the sweep interval is over. One call sweeps at most
+	 * {@link #SWEEP_BATCH} keys and leaves the rest of the sweep to the next calls.
+	 */
+	private void sweepIfDue(final long now) {
+		final boolean due = now - lastSweep.get() >= sweepInterval;
+		if (!due && sweepCursor == null || !sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			Iterator<Map.Entry<Object, KeyState>> cursor = sweepCursor;
+			if (cursor == null) {
+				if (!due) {
+					return;
+				}
+				cursor = key2state.entrySet().iterator();
+				lastSweep.set(now);
+			}
+			for (int i = 0; i < SWEEP_BATCH && cursor.hasNext(); i++) {
+				final Map.Entry<Object, KeyState> entry = cursor.next();
+				final KeyState state = entry.getValue();
+				final long tat = state.tat;
+				// a key is idle, if its bucket is full again - then it does not differ from a new key
+				if (tat != EVICTED && tat - now <= 0 && KeyState.TAT.compareAndSet(state, tat, EVICTED)) {
+					key2state.remove(entry.getKey(), state);
+				}
+			}
+			sweepCursor = cursor.hasNext() ? cursor : null;
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	/**
+	 * for testing only
+	 *
+	 * @return the number of keys with state
+	 *
+	 */
+	int activeKeysCount() {
+		return key2state.size();
+	}
+
+	/**
+	 * The state of one key.
+	 */
+	private static final class KeyState {
+
+		private static final AtomicLongFieldUpdater<KeyState> TAT = AtomicLongFieldUpdater.newUpdater(KeyState.class,
+				"tat");
+
+		/**
+		 * theoretical arrival time - the key is idle, if it lies in the past
+		 */
+		private volatile long tat;
+
+		private KeyState(final long tat) {
+			this.tat = tat;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.flow;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class KeySerializingProcessorTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	/**
+	 * Upstream subscription emitting the numbers from 0 to count - 1 on request.
+	 */
+	private static final class Numbers implements Flow.Subscription {
+
+		private final Flow.Subscriber<Integer> subscriber;
+		private final int count;
+		private int next = 0;
+		private long requested = 0;
+		private boolean cancelled = false;
+
+		private Numbers(final Flow.Subscriber<Integer> subscriber, final int count) {
+			this.subscriber = subscriber;
+			this.count = count;
+		}
+
+		@Override
+		public synchronized void request(final long n) {
+			requested += n;
+			for (long i = 0; i < n && next < count && !cancelled; i++) {
+				subscriber.onNext(next++);
+			}
+			if (next == count && !cancelled) {
+				cancelled = true;
+				subscriber.onComplete();
+			}
+		}
+
+		@Override
+		public synchronized void cancel() {
+			cancelled = true;
+		}
+
+		private synchronized long requested() {
+			return requested;
+		}
+	}
+
+	/**
+	 * Downstream subscriber collecting all results.
+	 */
+	private static final class Results<R> implements Flow.Subscriber<R> {
+
+		private final List<R> results = new ArrayList<>();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final long initialRequest;
+		private Flow.Subscription subscription;
+		private Throwable error;
+
+		private Results(final long initialRequest) {
+			this.initialRequest = initialRequest;
+		}
+
+		@Override
+		public void onSubscribe(final Flow.Subscription subscription) {
+			this.subscription = subscription;
+			if (initialRequest > 0) {
+				subscription.request(initialRequest);
+			}
+		}
+
+		@Override
+		public synchronized void onNext(final R item) {
+			results.add(item);
+		}
+
+		@Override
+		public void onError(final Throwable throwable) {
+			error = throwable;
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			done.countDown();
+		}
+
+		private void await() throws InterruptedException {
+			assertTrue("processor did not terminate", done.await(10, TimeUnit.SECONDS));
+		}
+
+		private synchronized List<R> results() {
+			return new ArrayList<>(results);
+		}
+	}
+
+	@After
+	public void shutdownExecutor() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * results are not requested beyond the buffer size, while there is no
+	 * downstream demand
+	 */
+	@Test
+	public void testBackpressure() throws Exception {
+
+		final KeySerializingProcessor<Integer, Integer> processor = new KeySerializingProcessor<>(i -> i, i -> i,
+				executor, 1, 10);
+
+		final Results<Integer> results = new Results<>(0);
+		processor.subscribe(results);
+		final Numbers numbers = new Numbers(processor, 20);
+		processor.onSubscribe(numbers);
+
+		while (processor.activeKeysCount() > 0) {
+			sleep(10);
+		}
+		sleep(100);
+		assertEquals(10, numbers.requested());
+		assertTrue(results.results().isEmpty());
+
+		results.subscription.request(Long.MAX_VALUE);
+		results.await();
+
+		assertNull(results.error);
+		assertEquals(20, results.results().size());
+		assertEquals(0, processor.activeKeysCount());
+	}
+
+	/**
+	 * all elements have the same key - no further elements are requested,
+	 * while the key has more elements waiting or in progress than its bound
+	 */
+	@Test
+	public void testBackpressurePerKey() throws Exception {
+
+		final Semaphore permits = new Semaphore(0);
+		final KeySerializingProcessor<Integer, Integer> processor = new KeySerializingProcessor<>(i -> "test", i -> {
+			permits.acquireUninterruptibly();
+			return i;
+		}, executor, 2, 10);
+
+		final Results<Integer> results = new Results<>(Long.MAX_VALUE);
+		processor.subscribe(results);
+		final Numbers numbers = new Numbers(processor, 20);
+		processor.onSubscribe(numbers);
+
+		sleep(100);
+		assertEquals(10, numbers.requested());
+
+		permits.release(7);
+		while (results.results().size() < 7) {
+			sleep(10);
+		}
+		sleep(100);
+		assertEquals(10, numbers.requested());
+
+		permits.release(1);
+		while (numbers.requested() < 18) {
+			sleep(10);
+		}
+
+		permits.release(Integer.MAX_VALUE / 2);
+		results.await();
+
+		assertNull(results.error);
+		assertEquals(20, results.results().size());
+		assertEquals(0, processor.activeKeysCount());
+	}
+
+	/**
+	 * an exception of the handler cancels upstream and is passed on downstream
+	 */
+	@Test
+	public void testHandlerException() throws Exception {
+
+		final KeySerializingProcessor<Integer, Integer> processor = new KeySerializingProcessor<>(i -> i % 2, i -> {
+			if (i == 5) {
+				throw new IllegalStateException("test");
+			}
+			return i;
+		}, executor, 4, 16);
+
+		final Results<Integer> results = new Results<>(Long.MAX_VALUE);
+		processor.subscribe(results);
+		final Numbers numbers = new Numbers(processor, 1000);
+		processor.onSubscribe(numbers);
+
+		results.await();
+
+		assertEquals("test", results.error.getMessage());
+		assertTrue(numbers.cancelled);
+	}
+
+	/**
+	 * the element of one key waits for the element of another key - the keys
+	 * must be handled in parallel
+	 */
+	@Test
+	public void testParallelismAcrossKeys() throws Exception {
+
+		final CountDownLatch secondKeyHandled = new CountDownLatch(1);
+		final KeySerializingProcessor<Integer, Boolean> processor = new KeySerializingProcessor<>(i -> i, i -> {
+			if (i == 1) {
+				secondKeyHandled.countDown();
+				return true;
+			}
+			try {
+				return secondKeyHandled.await(5, TimeUnit.SECONDS);
+			} catch (final InterruptedException e) {
+				return false;
+			}
+		}, executor, 2, 2);
+
+		final Results<Boolean> results = new Results<>(Long.MAX_VALUE);
+		processor.subscribe(results);
+		processor.onSubscribe(new Numbers(processor, 2));
+
+		results.await();
+
+		assertNull(results.error);
+		assertEquals(2, results.results().size());
+		assertFalse(results.results().contains(false));
+	}
+
+	/**
+	 * the first element is slow and waits for the elements of all other keys -
+	 * with a bound of one element per key the other keys are handled meanwhile
+	 */
+	@Test
+	public void testProgressBesideSlowKey() throws Exception {
+
+		final CountDownLatch otherKeysHandled = new CountDownLatch(19);
+		final KeySerializingProcessor<Integer, Boolean> processor = new KeySerializingProcessor<>(i -> i, i -> {
+			if (i != 0) {
+				otherKeysHandled.countDown();
+				return true;
+			}
+			try {
+				return otherKeysHandled.await(5, TimeUnit.SECONDS);
+			} catch (final InterruptedException e) {
+				return false;
+			}
+		}, executor, 1, 4);
+
+		final Results<Boolean> results = new Results<>(Long.MAX_VALUE);
+		processor.subscribe(results);
+		processor.onSubscribe(new Numbers(processor, 20));
+
+		results.await();
+
+		assertNull(results.error);
+		assertEquals(20, results.results().size());
+		assertFalse(results.results().contains(false));
+	}
+
+	/**
+	 * many elements of few keys are handled by several threads - elements of
+	 * one key are never handled concurrently and keep their order
+	 */
+	@Test
+	public void testSerializationPerKey() throws Exception {
+
+		final AtomicInteger[] active = new AtomicInteger[5];
+		for (int i = 0; i < active.length; i++) {
+			active[i] = new AtomicInteger();
+		}
+		final AtomicBoolean concurrentUse = new AtomicBoolean();
+		final KeySerializingProcessor<Integer, Integer> processor = new KeySerializingProcessor<>(i -> i % 5, i -> {
+			if (active[i % 5].incrementAndGet() > 1) {
+				concurrentUse.set(true);
+			}
+			Thread.yield();
+			active[i % 5].decrementAndGet();
+			return i;
+		}, executor, 4, 16);
+
+		final Results<Integer> results = new Results<>(Long.MAX_VALUE);
+		processor.subscribe(results);
+		processor.onSubscribe(new Numbers(processor, 1000));
+
+		results.await();
+
+		assertNull(results.error);
+		assertFalse(concurrentUse.get());
+		final List<Integer> received = results.results();
+		assertEquals(1000, received.size());
+		final int[] last = {-5, -4, -3, -2, -1};
+		for (final int i : received) {
+			assertEquals(last[i % 5] + 5, i);
+			last[i % 5] = i;
+		}
+		assertEquals(0, processor.activeKeysCount());
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager;
+
+import de.jkeylockmanager.manager.KeyLockManagerBuilder.Implementation;
+import de.jkeylockmanager.manager.exception.KeyLockManagerRejectedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import de.jkeylockmanager.manager.implementation.cohort.CohortKeyLockManager;
+import de.jkeylockmanager.manager.implementation.cohort.NodeMapper;
+import de.jkeylockmanager.manager.implementation.compact.CompactKeyLockManager;
+import de.jkeylockmanager.manager.implementation.lockstripe.KeyLockInfo;
+import de.jkeylockmanager.manager.implementation.lockstripe.StripedKeyLockManager;
+import de.jkeylockmanager.manager.implementation.priority.PriorityKeyLockManager;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import static java.lang.Thread.sleep;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class KeyLockManagerBuilderTest {
+
+	private void assertBuildFails(final KeyLockManagerBuilder builder) {
+		try {
+			builder.build();
+			fail();
+		} catch (final Error e) {
+			assertEquals("ContractBrokenError", e.getClass().getSimpleName());
+		}
+	}
+
+	/**
+	 * a striped manager with fair spinning locks keeps mutual exclusion for
+	 * an unsynchronized counter
+	 */
+	@Test
+	public void testFairSpinningLocks() throws Exception {
+
+		final KeyLockManager manager = KeyLockManagers.builder().fair(true).waitStrategy(WaitStrategy.SPIN_THEN_BLOCK)
+				.stripes(4).expectedKeys(1000, true).build();
+
+		final int[] counter = new int[1];
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					manager.executeLocked("test", () -> {
+						counter[0]++;
+					});
+				}
+			});
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(threads.length * 10000, counter[0]);
+	}
+
+	/**
+	 * each implementation can be selected - the timeout applies to all of them
+	 */
+	@Test
+	public void testImplementations() {
+
+		final KeyLockManagerBuilder builder = KeyLockManagers.builder().timeout(100, TimeUnit.MILLISECONDS);
+
+		assertThat(builder.build(), instanceOf(StripedKeyLockManager.class));
+		assertThat(builder.implementation(Implementation.COMPACT).build(), instanceOf(CompactKeyLockManager.class));
+		assertThat(builder.implementation(Implementation.PRIORITY).build(), instanceOf(PriorityKeyLockManager.class));
+		assertThat(builder.implementation(Implementation.COHORT).build(), instanceOf(CohortKeyLockManager.class));
+
+		for (final Implementation implementation : Implementation.values()) {
+			final KeyLockManager manager = builder.implementation(implementation).build();
+			manager.executeLocked("test", () -> {
+				final Thread other = new Thread(() -> {
+					try {
+						manager.executeLocked("test", () -> fail());
+					} catch (final KeyLockManagerTimeoutException ignored) {
+					}
+				});
+				other.start();
+				try {
+					other.join();
+				} catch (final InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * a setting of the striped implementation is given for each other
+	 * implementation - the node mapper for each implementation but the
+	 * cohort implementation - building fails instead of ignoring the setting
+	 */
+	@Test
+	public void testSettingsOfOtherImplementations() {
+
+		final List<UnaryOperator<KeyLockManagerBuilder>> stripedSettings = Arrays.asList(b -> b.stripes(4),
+				b -> b.fair(true), b -> b.waitStrategy(WaitStrategy.SPIN_THEN_BLOCK), b -> b.maxWaiters(1, 1),
+				b -> b.idleKeys(10, 1, TimeUnit.SECONDS), b -> b.expectedKeys(1000, false), b -> b.metrics(false));
+
+		for (final Implementation implementation : Implementation.values()) {
+			if (implementation != Implementation.STRIPED) {
+				for (final UnaryOperator<KeyLockManagerBuilder> setting : stripedSettings) {
+					assertBuildFails(setting.apply(KeyLockManagers.builder().implementation(implementation)));
+				}
+			}
+			if (implementation != Implementation.COHORT) {
+				assertBuildFails(KeyLockManagers.builder().implementation(implementation)
+						.nodeMapper(NodeMapper.SINGLE_NODE));
+			}
+		}
+	}
+
+	/**
+	 * a thread holds a lock - with metrics disabled a second waiting thread
+	 * is not registered, but the owner is - a third thread is rejected
+	 */
+	@Test
+	public void testWithoutMetrics() throws Exception {
+
+		final StripedKeyLockManager manager = (StripedKeyLockManager) KeyLockManagers.builder().withoutTimeout()
+				.metrics(false).maxWaiters(1, StripedKeyLockManager.UNBOUNDED_WAITERS).build();
+
+		final CountDownLatch waiterExit = new CountDownLatch(2);
+		manager.executeLocked("test", () -> {
+			final Thread waiter = new Thread(() -> manager.executeLocked("test", waiterExit::countDown));
+			waiter.start();
+			try {
+				while (waiter.getState() != Thread.State.TIMED_WAITING) {
+					sleep(10);
+				}
+			} catch (final InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+
+			final List<KeyLockInfo> snapshot = manager.snapshot();
+			assertEquals(1, snapshot.size());
+			assertEquals(Thread.currentThread(), snapshot.get(0).getOwner());
+			assertEquals(0, snapshot.get(0).getWaitingThreads());
+			assertEquals(0, manager.getWaitingThreadsCount());
+
+			final Thread rejected = new Thread(() -> {
+				try {
+					manager.executeLocked("test", () -> fail());
+				} catch (final KeyLockManagerRejectedException ignored) {
+					waiterExit.countDown();
+				}
+			});
+			rejected.start();
+			try {
+				rejected.join();
+			} catch (final InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		assertTrue(waiterExit.await(10, TimeUnit.SECONDS));
+	}
+}
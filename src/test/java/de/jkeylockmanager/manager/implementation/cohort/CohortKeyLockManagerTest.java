@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.cohort;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class CohortKeyLockManagerTest {
+
+	private static final NodeMapper NODE_BY_NAME = thread -> thread.getName().startsWith("node1") ? 1 : 0;
+
+	private void assertCleanup(final CohortKeyLockManager lock) {
+		assertEquals("not all locks were released", 0, lock.activeKeyLocksCount());
+	}
+
+	/**
+	 * a thread on node 0 holds a lock - a thread on node 1 starts waiting,
+	 * then two threads on node 0 - the lock is handed over to the threads in
+	 * the given order
+	 */
+	private List<String> runHandovers(final CohortKeyLockManager manager) throws Exception {
+
+		final CountDownLatch ownerWorkUnitEntry = new CountDownLatch(1);
+		final CountDownLatch ownerSignalToExit = new CountDownLatch(1);
+		final List<String> order = new CopyOnWriteArrayList<>();
+
+		final Thread owner = new Thread(() -> manager.executeLocked("test", () -> {
+			try {
+				ownerWorkUnitEntry.countDown();
+				ownerSignalToExit.await();
+			} catch (final InterruptedException ignored) {
+			}
+		}), "node0-owner");
+		owner.start();
+		ownerWorkUnitEntry.await();
+
+		final List<Thread> waiters = asList(new Thread(() -> manager.executeLocked("test", () -> order.add("A")), "node1-A"),
+				new Thread(() -> manager.executeLocked("test", () -> order.add("B")), "node0-B"),
+				new Thread(() -> manager.executeLocked("test", () -> order.add("C")), "node0-C"));
+		for (int i = 0; i < waiters.size(); i++) {
+			waiters.get(i).start();
+			while (manager.waitingThreadsCount() < i + 1) {
+				sleep(10);
+			}
+		}
+
+		ownerSignalToExit.countDown();
+		owner.join();
+		for (final Thread waiter : waiters) {
+			waiter.join();
+		}
+
+		assertCleanup(manager);
+		return order;
+	}
+
+	/**
+	 * the number of consecutive handovers within node 0 is bounded to one - the
+	 * longest waiting thread on node 1 gets the lock after the first handover
+	 */
+	@Test
+	public void testBoundedHandoverWithinNode() throws Exception {
+
+		final CohortKeyLockManager manager = new CohortKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS, NODE_BY_NAME,
+				1);
+
+		assertEquals(asList("B", "A", "C"), runHandovers(manager));
+	}
+
+	/**
+	 * the threads on node 0 get the lock before the longer waiting thread on
+	 * node 1
+	 */
+	@Test
+	public void testHandoverWithinNode() throws Exception {
+
+		final CohortKeyLockManager manager = new CohortKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS, NODE_BY_NAME);
+
+		assertEquals(asList("B", "C", "A"), runHandovers(manager));
+	}
+
+	/**
+	 * threads on different nodes increment an unsynchronized counter on one
+	 * key - no increment is lost - a thread times out while the lock is held
+	 */
+	@Test
+	public void testLockWithOneKey() throws Exception {
+
+		final CohortKeyLockManager manager = new CohortKeyLockManager(200, TimeUnit.MILLISECONDS, NODE_BY_NAME, 2);
+
+		final int[] counter = new int[1];
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					manager.executeLocked("test", () -> {
+						counter[0]++;
+					});
+				}
+			}, "node" + i % 2);
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(threads.length * 10000, counter[0]);
+
+		manager.executeLocked("test", () -> {
+			final Thread other = new Thread(() -> {
+				try {
+					manager.executeLocked("test", () -> counter[0]++);
+					fail();
+				} catch (final KeyLockManagerTimeoutException ignored) {
+					counter[0] = -1;
+				}
+			});
+			other.start();
+			try {
+				other.join();
+			} catch (final InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertEquals(-1, counter[0]);
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * a thread on node 0 holds the lock - two threads on node 1 time out, one
+	 * of them while waiting for the global lock, the other one while waiting
+	 * for the local lock of node 1 - afterwards a thread on node 1 gets the
+	 * lock
+	 */
+	@Test
+	public void testTimeoutOnOtherNode() throws Exception {
+
+		final CohortKeyLockManager manager = new CohortKeyLockManager(200, TimeUnit.MILLISECONDS, NODE_BY_NAME);
+		final List<Throwable> failures = new CopyOnWriteArrayList<>();
+
+		manager.executeLocked("test", () -> {
+			final List<Thread> others = asList(new Thread(() -> {
+				try {
+					manager.executeLocked("test", () -> fail());
+				} catch (final Throwable e) {
+					failures.add(e);
+				}
+			}, "node1-A"), new Thread(() -> {
+				try {
+					manager.executeLocked("test", () -> fail());
+				} catch (final Throwable e) {
+					failures.add(e);
+				}
+			}, "node1-B"));
+			try {
+				for (final Thread other : others) {
+					other.start();
+				}
+				for (final Thread other : others) {
+					other.join();
+				}
+			} catch (final InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertEquals(2, failures.size());
+		for (final Throwable failure : failures) {
+			assertTrue(failure instanceof KeyLockManagerTimeoutException);
+		}
+		assertEquals(0, manager.waitingThreadsCount());
+
+		final Thread next = new Thread(() -> manager.executeLocked("test", () -> failures.clear()), "node1-C");
+		next.start();
+		next.join();
+		assertTrue(failures.isEmpty());
+
+		assertCleanup(manager);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.jkeylockmanager.manager.implementation.compact;
+
+import de.jkeylockmanager.manager.KeyLockManagerContractTest;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class CompactKeyLockManagerTest extends KeyLockManagerContractTest<CompactKeyLockManager> {
+
+	@Override
+	protected int activeKeyLocksCount(final CompactKeyLockManager manager) {
+		return manager.activeKeyLocksCount();
+	}
+
+	@Override
+	protected CompactKeyLockManager newManager(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		return new CompactKeyLockManager(lockTimeout, lockTimeoutUnit);
+	}
+
+	@Override
+	protected int waitingThreadsCount(final CompactKeyLockManager manager) {
+		return manager.waitingThreadsCount();
+	}
+
+	/**
+	 * a thread takes an uncontended lock by setting the owner, also
+	 * reentrantly - it does not wait in the monitor - another thread must not
+	 * release the lock - the lock is free after the last release of the owner
+	 */
+	@Test
+	public void testOwnerCas() throws Exception {
+
+		final CompactLock lock = new CompactLock();
+
+		lock.tryLock(1, TimeUnit.SECONDS);
+		lock.tryLock(1, TimeUnit.SECONDS);
+		assertEquals(0, lock.getQueueLength());
+
+		final Throwable[] failure = new Throwable[1];
+		final Thread other = new Thread(() -> {
+			try {
+				lock.unlock();
+			} catch (final Throwable e) {
+				failure[0] = e;
+			}
+		});
+		other.start();
+		other.join();
+		assertTrue(failure[0] instanceof IllegalMonitorStateException);
+
+		lock.unlock();
+		lock.unlock();
+		try {
+			lock.unlock();
+			fail();
+		} catch (final IllegalMonitorStateException expected) {
+		}
+
+		final Thread next = new Thread(() -> {
+			lock.tryLock(1, TimeUnit.SECONDS);
+			lock.unlock();
+		});
+		next.start();
+		next.join();
+		assertEquals(0, lock.getQueueLength());
+	}
+
+	/**
+	 * many threads contend for one key - every release hands the lock over
+	 * to a waiting thread, so no thread runs into the timeout - the counter
+	 * incremented in the locked block is exact
+	 */
+	@Test
+	public void testWaiterHandoff() throws Exception {
+
+		final CompactKeyLockManager manager = new CompactKeyLockManager(10, TimeUnit.SECONDS);
+		final CountDownLatch start = new CountDownLatch(1);
+		final int[] counter = new int[1];
+
+		final Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (final InterruptedException ignored) {
+				}
+				for (int j = 0; j < 1000; j++) {
+					manager.executeLocked("test", () -> {
+						counter[0]++;
+						if (counter[0] % 100 == 0) {
+							try {
+								sleep(1);
+							} catch (final InterruptedException ignored) {
+							}
+						}
+					});
+				}
+			});
+			threads[i].start();
+		}
+
+		start.countDown();
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(threads.length * 1000, counter[0]);
+		assertEquals(0, manager.waitingThreadsCount());
+		assertCleanup(manager);
+	}
+}
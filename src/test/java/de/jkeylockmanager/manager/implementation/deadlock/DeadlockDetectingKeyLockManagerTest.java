@@ -0,0 +1,291 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.deadlock;
+
+import de.jkeylockmanager.manager.KeyLock;
+import de.jkeylockmanager.manager.exception.KeyLockManagerDeadlockException;
+import de.jkeylockmanager.manager.implementation.lockstripe.StripedKeyLockManager;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class DeadlockDetectingKeyLockManagerTest {
+
+	private void assertCleanup(final DeadlockDetectingKeyLockManager manager) {
+		assertEquals("wait-for graph not empty", 0, manager.graphSize());
+	}
+
+	/**
+	 * a checked callback fails inside nested primitive callbacks of the same
+	 * key - the checked failure is thrown and the wait-for graph is empty
+	 */
+	@Test
+	public void testCheckedAndPrimitiveCallbacks() {
+
+		final DeadlockDetectingKeyLockManager manager = new DeadlockDetectingKeyLockManager(
+				new StripedKeyLockManager(1, TimeUnit.SECONDS));
+		final IOException failure = new IOException();
+
+		final long result = manager.executeLockedLong("k", () -> manager.executeLockedInt("k", () -> {
+			assertTrue(manager.executeLockedBoolean("k", () -> true));
+			try {
+				manager.executeLockedChecked("k", () -> {
+					throw failure;
+				});
+				fail();
+			} catch (final IOException e) {
+				assertSame(failure, e);
+			}
+			return 1;
+		}));
+
+		assertEquals(1L, result);
+		assertCleanup(manager);
+	}
+
+	/**
+	 * a handle is closed by another thread - the contract is broken and the
+	 * hold of the owner is kept
+	 */
+	@Test
+	public void testCloseByForeignThread() throws Exception {
+
+		final DeadlockDetectingKeyLockManager manager = new DeadlockDetectingKeyLockManager(
+				new StripedKeyLockManager(1, TimeUnit.SECONDS));
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		final KeyLock lock = manager.acquire("k");
+		final Thread other = new Thread(() -> {
+			try {
+				lock.close();
+			} catch (final Throwable e) {
+				failure.set(e);
+			}
+		});
+		other.start();
+		other.join();
+		assertEquals("ContractBrokenError", failure.get().getClass().getSimpleName());
+		assertEquals(1, manager.graphSize());
+
+		lock.close();
+		assertCleanup(manager);
+	}
+
+	/**
+	 * nested handles of the same key - the inner handle is closed twice - the
+	 * second close has no effect - the outer hold is kept in the graph until
+	 * the outer handle is closed
+	 */
+	@Test
+	public void testCloseTwice() throws Exception {
+
+		final DeadlockDetectingKeyLockManager manager = new DeadlockDetectingKeyLockManager(
+				new StripedKeyLockManager(1, TimeUnit.SECONDS));
+
+		final KeyLock outer = manager.acquire("k");
+		final KeyLock inner = manager.acquire("k");
+		inner.close();
+		inner.close();
+		assertEquals(1, manager.graphSize());
+
+		outer.close();
+		outer.close();
+		inner.close();
+		assertCleanup(manager);
+	}
+
+	/**
+	 * a thread awaits the condition of a key - another thread locks the key
+	 * and signals it - both units of work complete and the graph is empty
+	 */
+	@Test
+	public void testCondition() throws Exception {
+
+		final DeadlockDetectingKeyLockManager manager = new DeadlockDetectingKeyLockManager(
+				new StripedKeyLockManager(1, TimeUnit.SECONDS));
+		final CountDownLatch awaiting = new CountDownLatch(1);
+		final AtomicReference<Boolean> signalled = new AtomicReference<>();
+
+		final Thread waiter = new Thread(() -> signalled.set(manager.executeLocked("a", () -> {
+			awaiting.countDown();
+			return manager.getCondition("a").await(10, TimeUnit.SECONDS);
+		})));
+		waiter.start();
+
+		assertTrue(awaiting.await(10, TimeUnit.SECONDS));
+		manager.executeLocked("a", () -> manager.getCondition("a").signalAll());
+		waiter.join(10000);
+
+		assertEquals(Boolean.TRUE, signalled.get());
+		assertCleanup(manager);
+	}
+
+	/**
+	 * two threads lock two keys in opposite order - exactly one of them fails
+	 * immediately with the keys of the cycle - the other one proceeds
+	 */
+	@Test
+	public void testDeadlockBetweenTwoThreads() throws Exception {
+
+		final DeadlockDetectingKeyLockManager manager = new DeadlockDetectingKeyLockManager(
+				new StripedKeyLockManager(1, TimeUnit.HOURS));
+
+		final CyclicBarrier bothLocked = new CyclicBarrier(2);
+		final AtomicReference<KeyLockManagerDeadlockException> failure = new AtomicReference<>();
+		final CountDownLatch succeeded = new CountDownLatch(2);
+
+		final Thread[] threads = new Thread[2];
+		final String[][] orders = {{"a", "b"}, {"b", "a"}};
+		for (int i = 0; i < threads.length; i++) {
+			final String[] order = orders[i];
+			threads[i] = new Thread(() -> {
+				try {
+					manager.executeLocked(order[0], () -> {
+						try {
+							bothLocked.await();
+						} catch (final Exception e) {
+							throw new IllegalStateException(e);
+						}
+						manager.executeLocked(order[1], succeeded::countDown);
+					});
+				} catch (final KeyLockManagerDeadlockException e) {
+					failure.set(e);
+				}
+			});
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+			assertFalse("deadlock not detected", thread.isAlive());
+		}
+
+		assertEquals(1, succeeded.getCount());
+		final List<Object> keys = failure.get().getKeys();
+		assertTrue(keys.equals(Arrays.asList("a", "b")) || keys.equals(Arrays.asList("b", "a")));
+		assertCleanup(manager);
+	}
+
+	/**
+	 * three threads lock three keys in a cycle using handles - the thread
+	 * closing the cycle fails with all three keys
+	 */
+	@Test
+	public void testDeadlockBetweenThreeThreads() throws Exception {
+
+		final DeadlockDetectingKeyLockManager manager = new DeadlockDetectingKeyLockManager(
+				new StripedKeyLockManager(1, TimeUnit.HOURS));
+
+		final CyclicBarrier allLocked = new CyclicBarrier(3);
+		final AtomicReference<KeyLockManagerDeadlockException> failure = new AtomicReference<>();
+
+		final Thread[] threads = new Thread[3];
+		for (int i = 0; i < threads.length; i++) {
+			final int first = i;
+			threads[i] = new Thread(() -> {
+				try (KeyLock ignored = manager.acquire(first)) {
+					allLocked.await();
+					if (first > 0) {
+						// the last thread closes the cycle
+						sleep(100 * first);
+					}
+					try (KeyLock ignored2 = manager.acquire((first + 1) % 3)) {
+						assertNotNull(ignored2);
+					}
+				} catch (final KeyLockManagerDeadlockException e) {
+					failure.set(e);
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+			assertFalse("deadlock not detected", thread.isAlive());
+		}
+
+		assertEquals(Arrays.asList(0, 1, 2), failure.get().getKeys());
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread waits for a key held by a second thread, that does not wait -
+	 * no deadlock is reported and the first thread proceeds after the release
+	 */
+	@Test
+	public void testNoDeadlock() throws Exception {
+
+		final DeadlockDetectingKeyLockManager manager = new DeadlockDetectingKeyLockManager(
+				new StripedKeyLockManager(1, TimeUnit.HOURS));
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = new Thread(() -> manager.executeLocked("b", () -> {
+			try {
+				entered.countDown();
+				release.await();
+			} catch (final InterruptedException ignored) {
+			}
+		}));
+		t1.start();
+		entered.await();
+
+		final Thread t2 = new Thread(() -> manager.executeLocked("a", () -> manager.executeLocked("b", () -> {})));
+		t2.start();
+
+		sleep(100);
+		assertTrue(t2.isAlive());
+		release.countDown();
+		t2.join();
+		t1.join();
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * nested use of the same key by the current thread is no deadlock
+	 */
+	@Test
+	public void testReentrantUse() {
+
+		final DeadlockDetectingKeyLockManager manager = new DeadlockDetectingKeyLockManager(
+				new StripedKeyLockManager(1, TimeUnit.SECONDS));
+
+		final int result = manager.executeLocked("a", () -> manager.executeLocked("b", () -> {
+			try (KeyLock ignored = manager.acquire("a")) {
+				return manager.executeLockedInt("b", () -> 42);
+			}
+		}));
+		assertEquals(42, result);
+
+		assertCleanup(manager);
+	}
+}
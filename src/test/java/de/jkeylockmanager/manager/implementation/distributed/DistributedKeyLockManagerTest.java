@@ -0,0 +1,314 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.distributed;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class DistributedKeyLockManagerTest {
+
+	private static final int THREADS_PER_NODE = 4;
+	private static final int INVOCATIONS_PER_THREAD = 200;
+
+	private static LockBackend countingBackend(final LockBackend delegate, final AtomicInteger acquiredKeys) {
+		return new LockBackend() {
+			@Override
+			public void open(final LockBackendListener listener) {
+				delegate.open(listener);
+			}
+
+			@Override
+			public void acquire(final Collection<Object> keys) {
+				acquiredKeys.addAndGet(keys.size());
+				delegate.acquire(keys);
+			}
+
+			@Override
+			public void release(final Collection<Object> keys) {
+				delegate.release(keys);
+			}
+
+			@Override
+			public void close() {
+				delegate.close();
+			}
+		};
+	}
+
+	private static LockBackend failingBackend(final LockBackend delegate, final AtomicInteger acquireFailures,
+			final AtomicInteger releaseFailures) {
+		return new LockBackend() {
+			@Override
+			public void open(final LockBackendListener listener) {
+				delegate.open(listener);
+			}
+
+			@Override
+			public void acquire(final Collection<Object> keys) {
+				if (acquireFailures.getAndDecrement() > 0) {
+					throw new IllegalStateException("connection lost");
+				}
+				delegate.acquire(keys);
+			}
+
+			@Override
+			public void release(final Collection<Object> keys) {
+				if (releaseFailures.getAndDecrement() > 0) {
+					throw new IllegalStateException("connection lost");
+				}
+				delegate.release(keys);
+			}
+
+			@Override
+			public void close() {
+				delegate.close();
+			}
+		};
+	}
+
+	/**
+	 * a lease is kept after use - a second use of the same key on the same
+	 * node needs no further request to the backend
+	 */
+	@Test
+	public void testLeaseReuse() {
+
+		final InProcessLockServer server = new InProcessLockServer();
+		final AtomicInteger acquiredKeys = new AtomicInteger();
+		final DistributedKeyLockManager manager = new DistributedKeyLockManager(
+				countingBackend(server.newBackend(), acquiredKeys), 10, TimeUnit.SECONDS, 1, TimeUnit.HOURS);
+
+		assertEquals(Integer.valueOf(1), manager.executeLocked("test", () -> 1));
+		assertEquals(Integer.valueOf(2), manager.executeLocked("test", () -> manager.executeLocked("test", () -> 2)));
+
+		assertEquals(1, acquiredKeys.get());
+		assertEquals(1, server.leasedKeysCount());
+
+		manager.close();
+
+		assertEquals(0, server.leasedKeysCount());
+	}
+
+	/**
+	 * one thread on the first node holds a lock on one key - a thread on the
+	 * second node must wait until the first thread leaves the locked block
+	 */
+	@Test
+	public void testLockAcrossNodes() throws Exception {
+
+		final InProcessLockServer server = new InProcessLockServer();
+		final DistributedKeyLockManager node1 = new DistributedKeyLockManager(server.newBackend(), 10, TimeUnit.SECONDS);
+		final DistributedKeyLockManager node2 = new DistributedKeyLockManager(server.newBackend(), 10, TimeUnit.SECONDS);
+
+		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+		final CountDownLatch t1SignalToExit = new CountDownLatch(1);
+		final AtomicBoolean t1Inside = new AtomicBoolean();
+		final AtomicBoolean overlap = new AtomicBoolean();
+
+		final Thread t1 = new Thread(() ->
+				node1.executeLocked("test", () -> {
+					try {
+						t1Inside.set(true);
+						t1WorkUnitEntry.countDown();
+						t1SignalToExit.await();
+						t1Inside.set(false);
+					} catch (final InterruptedException ignored) {
+					}
+				}));
+		t1.start();
+
+		t1WorkUnitEntry.await();
+
+		final Thread t2 = new Thread(() -> node2.executeLocked("test", () -> overlap.set(t1Inside.get())));
+		t2.start();
+
+		sleep(200);
+
+		t1SignalToExit.countDown();
+
+		t1.join();
+		t2.join();
+
+		assertFalse("both nodes entered the locked block", overlap.get());
+
+		node1.close();
+		node2.close();
+
+		assertEquals(0, server.leasedKeysCount());
+	}
+
+	/**
+	 * the first node keeps an idle lease for a long time - the second node
+	 * asks for it and the first node returns it immediately
+	 */
+	@Test
+	public void testRevocationOfIdleLease() {
+
+		final InProcessLockServer server = new InProcessLockServer();
+		final DistributedKeyLockManager node1 = new DistributedKeyLockManager(server.newBackend(), 10, TimeUnit.SECONDS,
+				1, TimeUnit.HOURS);
+		final DistributedKeyLockManager node2 = new DistributedKeyLockManager(server.newBackend(), 10, TimeUnit.SECONDS,
+				1, TimeUnit.HOURS);
+
+		assertEquals(Integer.valueOf(1), node1.executeLocked("test", () -> 1));
+		assertEquals(Integer.valueOf(2), node2.executeLocked("test", () -> 2));
+		assertEquals(Integer.valueOf(3), node1.executeLocked("test", () -> 3));
+
+		assertEquals(0, node2.activeLeasesCount());
+
+		node1.close();
+		node2.close();
+
+		assertEquals(0, server.leasedKeysCount());
+	}
+
+	/**
+	 * the backend of the first node fails once to take a request and once to
+	 * take a release - both are sent again, so the first node gets the lease
+	 * and the second node gets it after the first node
+	 */
+	@Test
+	public void testSendFailure() {
+
+		final InProcessLockServer server = new InProcessLockServer();
+		final AtomicInteger acquireFailures = new AtomicInteger(1);
+		final AtomicInteger releaseFailures = new AtomicInteger(1);
+		final DistributedKeyLockManager node1 = new DistributedKeyLockManager(
+				failingBackend(server.newBackend(), acquireFailures, releaseFailures), 10, TimeUnit.SECONDS, 0,
+				TimeUnit.MILLISECONDS);
+		final DistributedKeyLockManager node2 = new DistributedKeyLockManager(server.newBackend(), 10, TimeUnit.SECONDS,
+				0, TimeUnit.MILLISECONDS);
+
+		assertEquals(Integer.valueOf(1), node1.executeLocked("test", () -> 1));
+		assertEquals(Integer.valueOf(2), node2.executeLocked("test", () -> 2));
+		assertEquals(Integer.valueOf(3), node1.executeLocked("test", () -> 3));
+
+		assertTrue(acquireFailures.get() < 0);
+		assertTrue(releaseFailures.get() < 0);
+
+		node1.close();
+		node2.close();
+
+		assertEquals(0, server.leasedKeysCount());
+	}
+
+	/**
+	 * threads on two nodes connected by sockets update a shared counter
+	 * without loosing an update
+	 */
+	@Test
+	public void testSocketBackend() throws Exception {
+
+		try (SocketLockServer server = new SocketLockServer()) {
+			final DistributedKeyLockManager node1 = new DistributedKeyLockManager(
+					new SocketLockBackend("localhost", server.getPort()), 1, TimeUnit.MINUTES);
+			final DistributedKeyLockManager node2 = new DistributedKeyLockManager(
+					new SocketLockBackend("localhost", server.getPort()), 1, TimeUnit.MINUTES);
+
+			final int[] counter = new int[1];
+			final Thread[] threads = new Thread[2 * THREADS_PER_NODE];
+			for (int i = 0; i < threads.length; i++) {
+				final DistributedKeyLockManager node = i % 2 == 0 ? node1 : node2;
+				threads[i] = new Thread(() -> {
+					for (int j = 0; j < INVOCATIONS_PER_THREAD; j++) {
+						node.executeLocked("test", () -> {
+							counter[0]++;
+						});
+					}
+				});
+				threads[i].start();
+			}
+			for (final Thread thread : threads) {
+				thread.join();
+			}
+
+			assertEquals(threads.length * INVOCATIONS_PER_THREAD, counter[0]);
+
+			node1.close();
+			node2.close();
+		}
+	}
+
+	/**
+	 * one thread on the first node holds a lock on a key - a thread on the
+	 * second node stops waiting after a timeout
+	 */
+	@Test
+	public void testTimeoutReaction() throws Exception {
+
+		final InProcessLockServer server = new InProcessLockServer();
+		final DistributedKeyLockManager node1 = new DistributedKeyLockManager(server.newBackend(), 10, TimeUnit.SECONDS);
+		final DistributedKeyLockManager node2 = new DistributedKeyLockManager(server.newBackend(), 500,
+				TimeUnit.MILLISECONDS);
+
+		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+		final CountDownLatch t1SignalToExit = new CountDownLatch(1);
+
+		final Thread t1 = new Thread(() ->
+				node1.executeLocked("test", () -> {
+					try {
+						t1WorkUnitEntry.countDown();
+						t1SignalToExit.await();
+					} catch (final InterruptedException ignored) {
+					}
+				}));
+		t1.start();
+
+		t1WorkUnitEntry.await();
+
+		final Exchanger<KeyLockManagerException> exchanger = new Exchanger<>();
+		final Thread t2 = new Thread(() -> {
+				try {
+					node2.executeLocked("test", () -> { });
+				} catch (final KeyLockManagerException e) {
+					try {
+						exchanger.exchange(e);
+					} catch (final InterruptedException ignored) {
+					}
+				}
+			});
+		t2.start();
+
+		assertThat(exchanger.exchange(null), instanceOf(KeyLockManagerTimeoutException.class));
+
+		t1SignalToExit.countDown();
+		t1.join();
+		t2.join();
+
+		node1.close();
+		node2.close();
+
+		assertEquals(0, server.leasedKeysCount());
+	}
+}
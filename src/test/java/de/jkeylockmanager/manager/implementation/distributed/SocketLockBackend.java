@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.distributed;
+
+import de.jkeylockmanager.contract.Contract;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.Collection;
+
+/**
+ * Reference implementation of {@link LockBackend}, that connects to a {@link SocketLockServer}.
+ *
+ * Keys must be {@link java.io.Serializable}. The keys are deserialized without any filter, so this test fixture
+ * must not be used outside of tests.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class SocketLockBackend implements LockBackend {
+
+	private final Socket socket;
+	private final ObjectOutputStream out;
+	private final ObjectInputStream in;
+
+
+	/**
+	 * Creates a new instance of {@link SocketLockBackend} connected to the given server.
+	 *
+	 * @param host
+	 *            the host of the server - must not be null
+	 * @param port
+	 *            the port of the server
+	 *
+	 * @throws IOException
+	 *             if the connection can not be established
+	 */
+	public SocketLockBackend(final String host, final int port) throws IOException {
+		Contract.isNotNull(host, "host != null");
+
+		this.socket = new Socket(host, port);
+		this.socket.setTcpNoDelay(true);
+		this.out = new ObjectOutputStream(socket.getOutputStream());
+		this.out.flush();
+		this.in = new ObjectInputStream(socket.getInputStream());
+	}
+
+
+	@Override
+	public void open(final LockBackendListener listener) {
+		Contract.isNotNull(listener, "listener != null");
+
+		final Thread receiver = new Thread(() -> receive(listener), "jkeylockmanager-lock-backend");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	@Override
+	public void acquire(final Collection<Object> keys) {
+		Contract.isNotNull(keys, "keys != null");
+
+		send(SocketProtocol.ACQUIRE, keys);
+	}
+
+	@Override
+	public void release(final Collection<Object> keys) {
+		Contract.isNotNull(keys, "keys != null");
+
+		send(SocketProtocol.RELEASE, keys);
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	private void receive(final LockBackendListener listener) {
+		try {
+			for (;;) {
+				final byte type = in.readByte();
+				final Collection<Object> keys = SocketProtocol.readKeys(in);
+				if (type == SocketProtocol.GRANTED) {
+					listener.granted(keys);
+				} else if (type == SocketProtocol.REVOKED) {
+					listener.revoked(keys);
+				} else {
+					throw new IOException("unexpected message type " + type);
+				}
+			}
+		} catch (final IOException ignored) {
+			// connection closed
+		}
+	}
+
+	private void send(final byte type, final Collection<Object> keys) {
+		synchronized (out) {
+			try {
+				SocketProtocol.write(out, type, keys);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.distributed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reference lease server for {@link SocketLockBackend}s on the loopback interface.
+ *
+ * Every connection represents one node of an {@link InProcessLockServer}. The leases of a node are returned, if its
+ * connection is closed. Keys are deserialized without any filter, so this test fixture must not be used outside of
+ * tests.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class SocketLockServer implements Closeable {
+
+	private final InProcessLockServer arbiter = new InProcessLockServer();
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private final ServerSocket serverSocket;
+	private final Thread acceptor;
+
+
+	/**
+	 * Creates a new instance of {@link SocketLockServer} listening on a free port of the loopback interface.
+	 *
+	 * @throws IOException
+	 *             if the server socket can not be opened
+	 */
+	public SocketLockServer() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * Creates a new instance of {@link SocketLockServer} listening on the given port of the loopback interface.
+	 *
+	 * @param port
+	 *            the port to listen on - 0 for a free port
+	 *
+	 * @throws IOException
+	 *             if the server socket can not be opened
+	 */
+	public SocketLockServer(final int port) throws IOException {
+		this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.acceptor = new Thread(this::accept, "jkeylockmanager-lock-server");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+
+	/**
+	 * @return the port the server is listening on
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Closes the server socket and all connections.
+	 */
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		for (final Socket connection : connections) {
+			connection.close();
+		}
+	}
+
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket connection = serverSocket.accept();
+				connections.add(connection);
+				final Thread worker = new Thread(() -> serve(connection), "jkeylockmanager-lock-server-connection");
+				worker.setDaemon(true);
+				worker.start();
+			} catch (final IOException ignored) {
+				// server socket closed
+			}
+		}
+	}
+
+	private void serve(final Socket connection) {
+		final LockBackend node = arbiter.newBackend();
+		try {
+			final ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
+			out.flush();
+			final ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
+			node.open(new LockBackendListener() {
+				@Override
+				public void granted(final Collection<Object> keys) {
+					send(out, SocketProtocol.GRANTED, keys);
+				}
+
+				@Override
+				public void revoked(final Collection<Object> keys) {
+					send(out, SocketProtocol.REVOKED, keys);
+				}
+			});
+			for (;;) {
+				final byte type = in.readByte();
+				final Collection<Object> keys = SocketProtocol.readKeys(in);
+				if (type == SocketProtocol.ACQUIRE) {
+					node.acquire(keys);
+				} else if (type == SocketProtocol.RELEASE) {
+					node.release(keys);
+				} else {
+					throw new IOException("unexpected message type " + type);
+				}
+			}
+		} catch (final IOException ignored) {
+			// connection closed
+		} finally {
+			node.close();
+			connections.remove(connection);
+			try {
+				connection.close();
+			} catch (final IOException ignored) {
+			}
+		}
+	}
+
+	private static void send(final ObjectOutputStream out, final byte type, final Collection<Object> keys) {
+		synchronized (out) {
+			try {
+				SocketProtocol.write(out, type, keys);
+			} catch (final IOException ignored) {
+				// connection closed - the node is closed by its worker
+			}
+		}
+	}
+}
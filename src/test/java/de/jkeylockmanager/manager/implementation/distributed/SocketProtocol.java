@@ -0,0 +1,69 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.distributed;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Wire format of {@link SocketLockServer} and {@link SocketLockBackend} for internal use in this package only.
+ *
+ * A message is a type byte followed by a serialized list of keys. Keys must be {@link java.io.Serializable}.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+final class SocketProtocol {
+
+	static final byte ACQUIRE = 1;
+	static final byte RELEASE = 2;
+	static final byte GRANTED = 3;
+	static final byte REVOKED = 4;
+
+	/**
+	 * Reads the keys of a message, after its type was read.
+	 */
+	@SuppressWarnings("unchecked")
+	static List<Object> readKeys(final ObjectInputStream in) throws IOException {
+		try {
+			return (List<Object>) in.readObject();
+		} catch (final ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes and flushes a message. Calls must be synchronized by the caller.
+	 */
+	static void write(final ObjectOutputStream out, final byte type, final Collection<Object> keys)
+			throws IOException {
+		out.writeByte(type);
+		out.writeObject(new ArrayList<>(keys));
+		out.reset();
+		out.flush();
+	}
+
+	/**
+	 * Prevent instantiation.
+	 */
+	private SocketProtocol() {
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.file;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class FileKeyLockManagerTest {
+
+	private static final int NUMBER_OF_SLOTS = 64;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Holds the lock for a key in a separate process, until a line is read
+	 * from standard input.
+	 */
+	public static final class Holder {
+
+		public static void main(final String[] args) throws Exception {
+			try (FileKeyLockManager manager = new FileKeyLockManager(Paths.get(args[0]), NUMBER_OF_SLOTS, 1,
+					TimeUnit.MINUTES)) {
+				manager.executeLocked(args[1], () -> {
+					try {
+						System.out.println("locked");
+						System.out.flush();
+						new BufferedReader(new InputStreamReader(System.in)).readLine();
+					} catch (final IOException e) {
+						throw new RuntimeException(e);
+					}
+				});
+			}
+		}
+	}
+
+	private static Process startHolder(final Path lockTable, final String key) throws IOException {
+		final Process process = new ProcessBuilder(
+				System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+				"-cp", System.getProperty("java.class.path"), Holder.class.getName(), lockTable.toString(), key)
+				.redirectErrorStream(true)
+				.start();
+		assertEquals("locked", new BufferedReader(new InputStreamReader(process.getInputStream())).readLine());
+		return process;
+	}
+
+	private static void stopHolder(final Process process) throws Exception {
+		final OutputStream in = process.getOutputStream();
+		in.write('\n');
+		in.flush();
+		assertEquals(0, process.waitFor());
+	}
+
+	/**
+	 * a second process holds the lock for a key - this process times out on
+	 * the same key, but not on a key of an other slot - after the second
+	 * process releases the key, this process acquires it
+	 */
+	@Test
+	public void testLockAcrossProcesses() throws Exception {
+
+		final Path lockTable = folder.newFile().toPath();
+		final Process holder = startHolder(lockTable, "test");
+
+		try (FileKeyLockManager manager = new FileKeyLockManager(lockTable, NUMBER_OF_SLOTS, 500,
+				TimeUnit.MILLISECONDS)) {
+			try {
+				manager.executeLocked("test", () -> { });
+				fail();
+			} catch (final KeyLockManagerTimeoutException ignored) {
+			}
+
+			assertEquals(Integer.valueOf(1), manager.executeLocked("test2", () -> 1));
+
+			stopHolder(holder);
+
+			assertEquals(Integer.valueOf(2), manager.executeLocked("test", () -> 2));
+		} finally {
+			holder.destroy();
+		}
+	}
+
+	/**
+	 * one thread holds a lock on one key and a other thread of the same
+	 * process waits for the same key
+	 */
+	@Test
+	public void testLockWithOneKey() throws Exception {
+
+		try (FileKeyLockManager manager = new FileKeyLockManager(folder.newFile().toPath(), NUMBER_OF_SLOTS, 10,
+				TimeUnit.SECONDS)) {
+
+			final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+			final CountDownLatch t1SignalToExit = new CountDownLatch(1);
+			final AtomicBoolean t1Inside = new AtomicBoolean();
+			final AtomicBoolean overlap = new AtomicBoolean();
+
+			final Thread t1 = new Thread(() ->
+					manager.executeLocked("test", () -> {
+						try {
+							t1Inside.set(true);
+							t1WorkUnitEntry.countDown();
+							t1SignalToExit.await();
+							t1Inside.set(false);
+						} catch (final InterruptedException ignored) {
+						}
+					}));
+			t1.start();
+
+			t1WorkUnitEntry.await();
+
+			final Thread t2 = new Thread(() -> manager.executeLocked("test", () -> overlap.set(t1Inside.get())));
+			t2.start();
+
+			sleep(100);
+
+			t1SignalToExit.countDown();
+
+			t1.join();
+			t2.join();
+
+			assertFalse(overlap.get());
+		}
+	}
+
+	/**
+	 * one thread enters locked blocks for keys of the same slot while holding
+	 * a lock on one of them
+	 */
+	@Test
+	public void testReentrantBehavior() throws Exception {
+
+		try (FileKeyLockManager manager = new FileKeyLockManager(folder.newFile().toPath(), 1, 10, TimeUnit.SECONDS)) {
+
+			assertEquals(Integer.valueOf(20), manager.executeLocked("test", () ->
+					manager.executeLocked("test", () ->
+							manager.executeLocked("test2", () -> 20))));
+
+			assertEquals(Integer.valueOf(30), manager.executeLocked("test", () -> 30));
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.hierarchical;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class HierarchicalKeyLockManagerTest {
+
+	private void assertCleanup(final HierarchicalKeyLockManager manager) {
+		assertEquals("not all locks were released", 0, manager.activeKeyLocksCount());
+	}
+
+	private Thread holdInBackground(final HierarchicalKeyLockManager manager, final Object key, final boolean shared,
+			final CountDownLatch entered, final CountDownLatch release) {
+		final Runnable hold = () -> {
+			try {
+				entered.countDown();
+				release.await();
+			} catch (final InterruptedException ignored) {
+			}
+		};
+		final Thread result = new Thread(() -> {
+			if (shared) {
+				manager.executeShared(key, hold::run);
+			} else {
+				manager.executeLocked(key, hold::run);
+			}
+		});
+		result.start();
+		return result;
+	}
+
+	/**
+	 * one thread holds the lock on a child key - a second thread tries to lock
+	 * the parent and runs into the timeout
+	 */
+	@Test
+	public void testChildExcludesParent() throws Exception {
+
+		final HierarchicalKeyLockManager manager = new HierarchicalKeyLockManager(200, TimeUnit.MILLISECONDS);
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = holdInBackground(manager, "tenant:42:order:7", false, entered, release);
+		entered.await();
+
+		try {
+			manager.executeLocked("tenant:42", () -> fail());
+			fail();
+		} catch (final KeyLockManagerTimeoutException ignored) {
+		}
+
+		release.countDown();
+		t1.join();
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * keys are split at a custom separator and lists are used as paths as they
+	 * are
+	 */
+	@Test
+	public void testListAndSeparator() throws Exception {
+
+		final HierarchicalKeyLockManager manager = new HierarchicalKeyLockManager(200, TimeUnit.MILLISECONDS, "/");
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = holdInBackground(manager, "tenant/42", false, entered, release);
+		entered.await();
+
+		try {
+			manager.executeLocked(Arrays.asList("tenant", "42", "order"), () -> fail());
+			fail();
+		} catch (final KeyLockManagerTimeoutException ignored) {
+		}
+		assertEquals(Integer.valueOf(1), manager.executeLocked(Arrays.asList("tenant", "43", "order"), () -> 1));
+
+		release.countDown();
+		t1.join();
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread holds the lock on a parent key - a second thread tries to lock
+	 * a descendant and runs into the timeout - a key of another parent is not
+	 * blocked
+	 */
+	@Test
+	public void testParentExcludesDescendants() throws Exception {
+
+		final HierarchicalKeyLockManager manager = new HierarchicalKeyLockManager(200, TimeUnit.MILLISECONDS);
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = holdInBackground(manager, "tenant:42", false, entered, release);
+		entered.await();
+
+		try {
+			manager.executeLocked("tenant:42:order:7", () -> fail());
+			fail();
+		} catch (final KeyLockManagerTimeoutException ignored) {
+		}
+		assertEquals(Integer.valueOf(1), manager.executeLocked("tenant:43:order:7", () -> 1));
+
+		release.countDown();
+		t1.join();
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * several threads lock descendants of a parent in overlapping blocks
+	 * without a break - a thread locking the parent is not starved, because
+	 * later descendant locks queue behind it
+	 */
+	@Test
+	public void testParentNotStarvedByDescendants() throws Exception {
+
+		final HierarchicalKeyLockManager manager = new HierarchicalKeyLockManager(2, TimeUnit.SECONDS);
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final CountDownLatch running = new CountDownLatch(4);
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final String key = "tenant:42:order:" + i;
+			final long offset = 5 * i;
+			threads[i] = new Thread(() -> {
+				try {
+					// staggered, so that the blocks overlap
+					sleep(offset);
+				} catch (final InterruptedException ignored) {
+				}
+				running.countDown();
+				while (!stop.get()) {
+					manager.executeLocked(key, () -> {
+						try {
+							sleep(20);
+						} catch (final InterruptedException ignored) {
+						}
+					});
+				}
+			});
+			threads[i].start();
+		}
+		running.await();
+		sleep(100);
+
+		try {
+			assertEquals(Integer.valueOf(1), manager.executeLocked("tenant:42", () -> 1));
+		} finally {
+			stop.set(true);
+			for (final Thread thread : threads) {
+				thread.join();
+			}
+		}
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * the current thread locks a parent, its child and the parent again in
+	 * nested blocks, in exclusive and in shared mode
+	 */
+	@Test
+	public void testReentrantUse() {
+
+		final HierarchicalKeyLockManager manager = new HierarchicalKeyLockManager(1, TimeUnit.SECONDS);
+
+		final int result = manager.executeLocked("tenant:42", () -> manager.executeLocked("tenant:42:order:7",
+				() -> manager.executeShared("tenant:42", () -> manager.executeLocked("tenant", () -> 42))));
+		assertEquals(42, result);
+
+		manager.executeShared("tenant:42:order:7", () -> manager.executeLocked("tenant:42:order:7", () -> {}));
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * two threads hold shared locks on a parent and its child concurrently - an
+	 * exclusive lock on a descendant runs into the timeout
+	 */
+	@Test
+	public void testSharedLocks() throws Exception {
+
+		final HierarchicalKeyLockManager manager = new HierarchicalKeyLockManager(200, TimeUnit.MILLISECONDS);
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = holdInBackground(manager, "tenant:42", true, entered, release);
+		entered.await();
+
+		assertEquals(Integer.valueOf(1), manager.executeShared("tenant:42:order:7", () -> 1));
+		try {
+			manager.executeLocked("tenant:42:order:7", () -> fail());
+			fail();
+		} catch (final KeyLockManagerTimeoutException ignored) {
+		}
+
+		release.countDown();
+		t1.join();
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread holds the lock on a key - a second thread locks a sibling key
+	 * without waiting
+	 */
+	@Test
+	public void testSiblingsAreIndependent() throws Exception {
+
+		final HierarchicalKeyLockManager manager = new HierarchicalKeyLockManager(200, TimeUnit.MILLISECONDS);
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = holdInBackground(manager, "tenant:42:order:7", false, entered, release);
+		entered.await();
+
+		assertEquals(Integer.valueOf(1), manager.executeLocked("tenant:42:order:8", () -> 1));
+
+		release.countDown();
+		t1.join();
+
+		assertCleanup(manager);
+	}
+}
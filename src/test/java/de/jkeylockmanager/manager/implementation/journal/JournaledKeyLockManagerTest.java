@@ -0,0 +1,232 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.journal;
+
+import de.jkeylockmanager.manager.KeyLockManagers;
+import de.jkeylockmanager.manager.exception.KeyLockManagerRecoveredLeaseException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class JournaledKeyLockManagerTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Holds the lock for a key in a separate process, until the process is
+	 * killed.
+	 */
+	public static final class Holder {
+
+		public static void main(final String[] args) throws Exception {
+			final JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(),
+					Paths.get(args[0]));
+			manager.executeLocked(args[1], () -> {
+				try {
+					System.out.println("locked");
+					System.out.flush();
+					sleep(Long.MAX_VALUE);
+				} catch (final InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * the callback closes the journal and fails - the release of the lease
+	 * fails as well - the failure of the callback is thrown with the failed
+	 * release suppressed
+	 */
+	@Test
+	public void testCallbackFailureNotMasked() throws Exception {
+
+		final Path journal = folder.getRoot().toPath().resolve("journal");
+		final IllegalArgumentException failure = new IllegalArgumentException();
+
+		final JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(), journal);
+		try {
+			manager.executeLocked("test", () -> {
+				manager.close();
+				throw failure;
+			});
+			fail();
+		} catch (final IllegalArgumentException e) {
+			assertSame(failure, e);
+			assertEquals(1, e.getSuppressed().length);
+			assertTrue(e.getSuppressed()[0] instanceof IllegalStateException);
+		}
+	}
+
+	/**
+	 * a checked callback fails and primitive callbacks return their results
+	 * - the checked failure is thrown - no lease is recovered after a restart
+	 */
+	@Test
+	public void testCheckedAndPrimitiveCallbacks() throws Exception {
+
+		final Path journal = folder.getRoot().toPath().resolve("journal");
+		final IOException failure = new IOException();
+
+		try (JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(), journal)) {
+			try {
+				manager.executeLockedChecked("test", () -> {
+					throw failure;
+				});
+				fail();
+			} catch (final IOException e) {
+				assertSame(failure, e);
+			}
+			assertTrue(manager.executeLockedBoolean("test", () -> true));
+			assertEquals(1, manager.executeLockedInt("test", () -> 1));
+			assertEquals(2L, manager.executeLockedLong("test", () -> 2L));
+		}
+
+		try (JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(), journal)) {
+			assertEquals(Collections.emptySet(), manager.getRecoveredLeases());
+		}
+	}
+
+	/**
+	 * threads lock keys concurrently, while the lease of another key is held
+	 * - the small journal is compacted instead of growing - the held lease is
+	 * kept by the compactions - no lease is recovered after all are released
+	 */
+	@Test
+	public void testCompaction() throws Exception {
+
+		final Path journal = folder.getRoot().toPath().resolve("journal");
+
+		try (JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(), journal, 64)) {
+			manager.executeLocked("held", () -> {
+				final Thread[] threads = new Thread[4];
+				for (int i = 0; i < threads.length; i++) {
+					final int thread = i;
+					threads[i] = new Thread(() -> {
+						for (int j = 0; j < 1000; j++) {
+							manager.executeLocked("job" + thread, () -> manager.executeLocked("job" + thread, () -> { }));
+						}
+					});
+					threads[i].start();
+				}
+				try {
+					for (final Thread thread : threads) {
+						thread.join();
+					}
+					assertTrue(manager.journalCapacity() <= 256);
+
+					final Path copy = folder.getRoot().toPath().resolve("copy");
+					Files.copy(journal, copy);
+					try (LockJournal held = new LockJournal(copy, 64)) {
+						assertEquals(Collections.singletonMap("held", 1), held.getRecoveredLeases());
+					}
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			assertTrue(manager.journalSyncs() > 0);
+		}
+
+		try (JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(), journal, 64)) {
+			assertTrue(manager.getRecoveredLeases().isEmpty());
+		}
+	}
+
+	/**
+	 * the flush of an acquisition fails - the failure is thrown without
+	 * executing the callback - the acquisition is compensated, so its lease
+	 * is not recovered after a restart
+	 */
+	@Test
+	public void testFailedSyncNotRecovered() throws Exception {
+
+		final Path journal = folder.getRoot().toPath().resolve("journal");
+		final IllegalStateException failure = new IllegalStateException();
+
+		try (JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(), journal)) {
+			manager.failNextJournalSync(failure);
+			try {
+				manager.executeLocked("test", () -> fail());
+				fail();
+			} catch (final IllegalStateException e) {
+				assertSame(failure, e);
+			}
+		}
+
+		try (JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(), journal)) {
+			assertEquals(Collections.emptySet(), manager.getRecoveredLeases());
+		}
+	}
+
+	/**
+	 * a second process holds the lease of a key and is killed - the lease is
+	 * recovered - the key can not be locked until the recovered lease is
+	 * released
+	 */
+	@Test
+	public void testRecoveryAfterCrash() throws Exception {
+
+		final Path journal = folder.getRoot().toPath().resolve("journal");
+		final Process holder = new ProcessBuilder(
+				System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+				"-cp", System.getProperty("java.class.path"), Holder.class.getName(), journal.toString(), "job42")
+				.redirectErrorStream(true)
+				.start();
+		try {
+			assertEquals("locked", new BufferedReader(new InputStreamReader(holder.getInputStream())).readLine());
+		} finally {
+			holder.destroyForcibly().waitFor();
+		}
+
+		try (JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(), journal)) {
+			assertEquals(Collections.singleton("job42"), manager.getRecoveredLeases());
+			try {
+				manager.executeLocked("job42", () -> { });
+				fail();
+			} catch (final KeyLockManagerRecoveredLeaseException e) {
+				assertEquals("job42", e.getKey());
+			}
+			assertEquals(Integer.valueOf(1), manager.executeLocked("job43", () -> 1));
+
+			assertTrue(manager.releaseRecoveredLease("job42"));
+			assertFalse(manager.releaseRecoveredLease("job42"));
+			assertEquals(Integer.valueOf(2), manager.executeLocked("job42", () -> 2));
+		}
+
+		try (JournaledKeyLockManager manager = new JournaledKeyLockManager(KeyLockManagers.newLock(), journal)) {
+			assertTrue(manager.getRecoveredLeases().isEmpty());
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.lockstripe;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class KeyLockedMapTest {
+
+	/**
+	 * threads count the calls per key by computed values - no call is lost -
+	 * the locks are kept as long as the keys have values
+	 */
+	@Test
+	public void testCompute() throws Exception {
+
+		final KeyLockedMap<String, Integer> map = new KeyLockedMap<>(10, TimeUnit.SECONDS);
+
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					map.compute("key" + j % 3, (key, value) -> value == null ? 1 : value + 1);
+				}
+			});
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(Integer.valueOf(13336), map.get("key0"));
+		assertEquals(Integer.valueOf(13332), map.get("key1"));
+		assertEquals(Integer.valueOf(13332), map.get("key2"));
+		assertEquals(3, map.activeKeyLocksCount());
+
+		for (int i = 0; i < 3; i++) {
+			assertNull(map.compute("key" + i, (key, value) -> null));
+		}
+		assertNull(map.get("key0"));
+		assertEquals(0, map.activeKeyLocksCount());
+	}
+
+	/**
+	 * values are put, updated and removed - operations nested in a unit of
+	 * work locked by the lock manager of the map reenter the lock
+	 */
+	@Test
+	public void testPutUpdateRemove() {
+
+		final KeyLockedMap<String, String> map = new KeyLockedMap<>(1, TimeUnit.SECONDS);
+
+		assertNull(map.update("test", value -> value + "!"));
+		assertEquals(0, map.activeKeyLocksCount());
+
+		assertNull(map.put("test", "value"));
+		assertEquals("value!", map.update("test", value -> value + "!"));
+
+		map.getLockManager().executeLocked("test", () -> {
+			assertEquals("value!", map.put("test", "other"));
+			assertEquals("other", map.get("test"));
+		});
+
+		assertEquals("other", map.remove("test"));
+		assertNull(map.get("test"));
+		assertNull(map.remove("test"));
+		assertEquals(0, map.activeKeyLocksCount());
+	}
+}
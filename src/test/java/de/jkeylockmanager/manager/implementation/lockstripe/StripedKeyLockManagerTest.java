@@ -16,328 +16,504 @@
 
 package de.jkeylockmanager.manager.implementation.lockstripe;
 
-import de.jkeylockmanager.manager.exception.KeyLockManagerException;
-import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.KeyLock;
+import de.jkeylockmanager.manager.KeyLockManagerContractTest;
+import de.jkeylockmanager.manager.exception.KeyLockManagerRejectedException;
 import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Exchanger;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static java.lang.Thread.sleep;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 /**
  *
  * @author Marc-Olaf Jaschke
  *
  */
-public class StripedKeyLockManagerTest {
+public class StripedKeyLockManagerTest extends KeyLockManagerContractTest<StripedKeyLockManager> {
 
 	private static class TestException extends RuntimeException {
 		private static final long serialVersionUID = -7939021299106344924L;
 	}
 
-	private void assertCleanup(final StripedKeyLockManager lock) {
-		assertEquals("not all locks were released", 0, lock.activeKeyLocksCount());
+	@Override
+	protected int activeKeyLocksCount(final StripedKeyLockManager manager) {
+		return manager.activeKeyLocksCount();
+	}
+
+	@Override
+	protected void assertCleanup(final StripedKeyLockManager manager) {
+		super.assertCleanup(manager);
+		assertEquals("not all semaphores were released", 0, manager.activeKeySemaphoresCount());
+	}
+
+	private void assertLockedByOtherThread(final StripedKeyLockManager manager, final Object key) throws Exception {
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread t2 = new Thread(() -> {
+			try {
+				manager.executeLocked(key, () -> {
+				});
+			} catch (final Throwable e) {
+				failure.set(e);
+			}
+		});
+		t2.start();
+		t2.join();
+		assertThat(failure.get(), instanceOf(KeyLockManagerTimeoutException.class));
+	}
+
+	@Override
+	protected StripedKeyLockManager newManager(final long lockTimeout, final TimeUnit lockTimeoutUnit) {
+		return new StripedKeyLockManager(lockTimeout, lockTimeoutUnit);
+	}
+
+	@Override
+	protected int waitingThreadsCount(final StripedKeyLockManager manager) {
+		return manager.waitingThreadsCount();
 	}
 
 	/**
-	 * one thread holds a lock on one key - a second thread waits to acquire the
-	 * lock on the same key - the first thread throws an exception - the second
-	 * thread acquires the lock
+	 * the current thread acquires locks by handles in nested
+	 * try-with-resources statements - a second thread runs into the timeout
+	 * while the lock is held - closing a stale handle again does not release a
+	 * later acquisition
 	 */
 	@Test
-	public void testExceptionInWorkUnit() throws Exception {
+	public void testAcquire() throws Exception {
 
-		final StripedKeyLockManager manager = new StripedKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS);
+		final StripedKeyLockManager manager = new StripedKeyLockManager(200, TimeUnit.MILLISECONDS);
 
-		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
-		final CountDownLatch t1ThrowException = new CountDownLatch(1);
+		final KeyLock first;
+		try (KeyLock lock = manager.acquire("test")) {
+			first = lock;
+			try (KeyLock nested = manager.acquire("test"); KeyLock other = manager.acquire("test2")) {
+				assertNotSame(lock, nested);
+				assertNotSame(nested, other);
+				assertEquals(Integer.valueOf(1), manager.executeLocked("test", () -> 1));
+			}
 
-		final Thread t1 = new Thread(() -> {
-				try {
-					manager.executeLocked("test1", () -> {
-                        try {
-                            t1WorkUnitEntry.countDown();
-                            t1ThrowException.await();
-                            throw new TestException();
-                        } catch (final InterruptedException ignored) {
-                        }
-                    });
-					fail();
-				} catch (TestException ignored) {
-				}
-			});
+			assertLockedByOtherThread(manager, "test");
+		}
 
-		t1.start();
+		try (KeyLock lock = manager.acquire("test")) {
+			assertNotSame(first, lock);
+			first.close();
+			assertLockedByOtherThread(manager, "test");
+		}
 
-		t1WorkUnitEntry.await();
+		assertCleanup(manager);
+	}
 
-		// t2 should enter the work unit after t1 throws the exception
+	/**
+	 * handles may be closed in any order - a handle closed by another thread
+	 * breaks the contract
+	 */
+	@Test
+	public void testAcquireWithForeignClose() throws Exception {
 
-		final Thread t2 = new Thread(() -> 	manager.executeLocked("test1", () -> {}));
+		final StripedKeyLockManager manager = new StripedKeyLockManager(200, TimeUnit.MILLISECONDS);
 
+		final KeyLock first = manager.acquire("test1");
+		final KeyLock second = manager.acquire("test2");
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread t2 = new Thread(() -> {
+			try {
+				second.close();
+			} catch (final Throwable e) {
+				failure.set(e);
+			}
+		});
 		t2.start();
-
-		while (manager.waitingThreadsCount() < 1) {
-			sleep(10);
-		}
-
-		t1ThrowException.countDown();
-
 		t2.join();
-
-		t1.interrupt();
-		t1.join();
+		assertEquals("ContractBrokenError", failure.get().getClass().getSimpleName());
+		first.close();
+		second.close();
 
 		assertCleanup(manager);
 	}
 
 	/**
-	 * one thread holds a lock on one key -> a second thread waits on the same
-	 * key and becomes interrupted while waiting -> t2 must throw a special
-	 * exception
+	 * many threads increment an unsynchronized counter by combined callbacks on
+	 * one key - no increment is lost
 	 */
 	@Test
-	public void testInterruptReaction() throws Exception {
+	public void testCombinedUse() throws Exception {
 
-		final StripedKeyLockManager manager = new StripedKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS);
+		final StripedKeyLockManager manager = new StripedKeyLockManager(10, TimeUnit.SECONDS);
 
-		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+		final int[] counter = new int[1];
+		final Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					manager.executeCombined("test", () -> {
+						counter[0]++;
+					});
+				}
+			});
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
 
-		final Thread t1 = new Thread(() ->
-				manager.executeLocked("test", () -> {
-                    try {
-                        t1WorkUnitEntry.countDown();
-                        sleep(Long.MAX_VALUE);
-                    } catch (final InterruptedException ignored) {
-                    }
-                }));
+		assertEquals(threads.length * 10000, counter[0]);
+		assertCleanup(manager);
+	}
 
-		t1.start();
+	/**
+	 * the current thread holds a lock - combined callbacks of the current
+	 * thread are executed directly - two other threads time out, the first
+	 * waiting for the lock and the second parked behind it - exceptions of
+	 * combined callbacks are passed on to the caller
+	 */
+	@Test
+	public void testCombinedUseWithFailures() throws Exception {
 
-		t1WorkUnitEntry.await();
+		final StripedKeyLockManager manager = new StripedKeyLockManager(200, TimeUnit.MILLISECONDS);
 
-		// t2 waits for t1 before entering the work unit and gets interrupted
-		// while waiting
+		final CountDownLatch timeouts = new CountDownLatch(2);
+		try (KeyLock ignored = manager.acquire("test")) {
+			assertEquals("nested", manager.executeCombined("test", () -> "nested"));
 
-		final Exchanger<KeyLockManagerException> exchanger = new Exchanger<>();
-		final Thread t2 = new Thread(() -> {
-				try {
-					manager.executeLocked("test", () -> {});
-				} catch (final KeyLockManagerException e) {
+			for (int i = 0; i < 2; i++) {
+				new Thread(() -> {
 					try {
-						exchanger.exchange(e);
-					} catch (final InterruptedException ignored) {
+						manager.executeCombined("test", () -> {});
+					} catch (final KeyLockManagerTimeoutException e) {
+						timeouts.countDown();
 					}
-				}
-			});
-
-		t2.start();
+				}).start();
+			}
+			assertTrue(timeouts.await(10, TimeUnit.SECONDS));
+		}
 
-		while (manager.waitingThreadsCount() < 1) {
-			sleep(10);
+		try {
+			manager.executeCombined("test", () -> {
+				throw new TestException();
+			});
+			fail();
+		} catch (final TestException ignored) {
 		}
+		assertEquals(Integer.valueOf(1), manager.executeCombined("test", () -> 1));
 
-		t2.interrupt();
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread waits for the condition of a key within its locked block - a
+	 * second thread gets the lock of the key meanwhile, changes the state and
+	 * signals the condition - the lock of the key is kept while the first
+	 * thread waits - an await without signal times out
+	 */
+	@Test
+	public void testCondition() throws Exception {
 
-        assertThat(exchanger.exchange(null), instanceOf(KeyLockManagerInterruptedException.class));
+		final StripedKeyLockManager manager = new StripedKeyLockManager(10, TimeUnit.SECONDS);
 
-		t1.interrupt();
-		t1.join();
-		t2.join();
+		final boolean[] paid = new boolean[1];
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final Thread waiter = new Thread(() -> manager.executeLocked("order", () -> {
+			waiting.countDown();
+			while (!paid[0]) {
+				assertTrue(manager.getCondition("order").await(10, TimeUnit.SECONDS));
+			}
+		}));
+		waiter.start();
+		assertTrue(waiting.await(10, TimeUnit.SECONDS));
+
+		manager.executeLocked("order", () -> {
+			assertEquals(1, manager.activeKeyLocksCount());
+			paid[0] = true;
+			manager.getCondition("order").signalAll();
+		});
+		waiter.join();
+		assertTrue(paid[0]);
+
+		assertFalse(manager.executeLocked("order", () -> manager.getCondition("order").await(10,
+				TimeUnit.MILLISECONDS)));
 
 		assertCleanup(manager);
 	}
 
 	/**
-	 * one thread holds a lock on one key, a second thread on an other key must
-	 * not block
+	 * the condition of a key is requested without holding the lock of the key -
+	 * a contract error is thrown
 	 */
 	@Test
-	public void testLockWithDifferentKeys() throws Exception {
-
-		final StripedKeyLockManager manager = new StripedKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS);
+	public void testConditionOutsideLock() {
 
-		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
-		final CountDownLatch t2WorkUnitEntry = new CountDownLatch(1);
+		final StripedKeyLockManager manager = new StripedKeyLockManager(10, TimeUnit.SECONDS);
 
-		final Thread t1 = new Thread(() ->
-				manager.executeLocked("test1", () -> {
-                    try {
-                        t1WorkUnitEntry.countDown();
-                        sleep(Long.MAX_VALUE);
-                    } catch (final InterruptedException ignored) {
-                    }
-                }));
+		try {
+			manager.getCondition("test");
+			fail();
+		} catch (final Error e) {
+			assertEquals("ContractBrokenError", e.getClass().getSimpleName());
+		}
+		try (KeyLock ignored = manager.acquire("test")) {
+			manager.executeLocked("other", () -> manager.getCondition("test").signal());
+		}
+		try {
+			manager.executeLocked("other", () -> manager.getCondition("test"));
+			fail();
+		} catch (final Error e) {
+			assertEquals("ContractBrokenError", e.getClass().getSimpleName());
+		}
 
-		t1.start();
+		assertCleanup(manager);
+	}
 
-		t1WorkUnitEntry.await();
+	/**
+	 * a thread holds a lock on a key - a second thread times out on the same
+	 * key - all flight recorder events are recorded with the key
+	 */
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		assumeTrue(KeyLockEvents.AVAILABLE);
 
-		assertEquals(0, manager.waitingThreadsCount());
+		final StripedKeyLockManager manager = new StripedKeyLockManager(100, TimeUnit.MILLISECONDS);
+		final Path file = Files.createTempFile("jkeylockmanager", ".jfr");
 
-		// t2 should not wait for t1 to enter the work unit
+		try (Recording recording = new Recording()) {
+			recording.enable(KeyLockEvents.NAME_PREFIX + "KeyLockWait").withThreshold(Duration.ZERO);
+			recording.enable(KeyLockEvents.NAME_PREFIX + "KeyLockHold").withThreshold(Duration.ZERO);
+			recording.enable(KeyLockEvents.NAME_PREFIX + "KeyLockTimeout");
+			recording.start();
 
-		final Thread t2 = new Thread(() ->
-				manager.executeLocked("test2", () -> {
-                    try {
-                        t2WorkUnitEntry.countDown();
-                        Thread.sleep(Long.MAX_VALUE);
-                    } catch (final InterruptedException ignored) {
-                    }
-                }));
+			manager.executeLocked("test", () -> {
+				final Thread t2 = new Thread(() -> {
+					try {
+						manager.executeLocked("test", () -> { });
+						fail();
+					} catch (final KeyLockManagerTimeoutException ignored) {
+					}
+				});
+				t2.start();
+				try {
+					t2.join();
+				} catch (final InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			});
 
-		t2.start();
+			recording.stop();
+			recording.dump(file);
+		}
 
-		// blocks for many days, if 'test2' is blocked by 'test1'
-		t2WorkUnitEntry.await();
+		final List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+		Files.delete(file);
 
-		t1.interrupt();
-		t2.interrupt();
-		t1.join();
-		t2.join();
+		assertEquals(4, events.size());
+		for (final RecordedEvent event : events) {
+			assertEquals("test", event.getString("key"));
+			assertEquals("test".hashCode(), event.getInt("keyHash"));
+		}
+		final RecordedEvent timeoutEvent = events.stream()
+				.filter(event -> event.getEventType().getName().endsWith("KeyLockTimeout"))
+				.findFirst()
+				.orElseThrow(AssertionError::new);
+		assertEquals(Duration.ofMillis(100), timeoutEvent.getDuration("timeout"));
 
 		assertCleanup(manager);
 	}
 
 	/**
-	 * one thread holds a lock on one key and a other thread is waiting to
-	 * acquire the lock in the same key - the first thread gets interrupted and
-	 * the second can acquire the lock
+	 * the locks of idle keys are retained up to the maximum number of idle
+	 * keys - beyond it, idle keys are evicted lazily - a retained lock is
+	 * reused
 	 */
 	@Test
-	public void testLockWithOneKey() throws Exception {
+	public void testIdleKeysBound() {
 
-		final StripedKeyLockManager manager = new StripedKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS);
+		final StripedKeyLockManager manager = new StripedKeyLockManager(1, TimeUnit.SECONDS, 16,
+				StripedKeyLockManager.UNBOUNDED_WAITERS, StripedKeyLockManager.UNBOUNDED_WAITERS, 4, 1, TimeUnit.HOURS);
 
-		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+		manager.executeLocked("test", () -> {});
+		assertEquals(1, manager.activeKeyLocksCount());
+		assertEquals(1, manager.idleKeyLocksCount());
 
-		final Thread t1 = new Thread(() ->
-				manager.executeLocked("test", () -> {
-                    try {
-                        t1WorkUnitEntry.countDown();
-                        sleep(Long.MAX_VALUE);
-                    } catch (final InterruptedException ignored) {
-                    }
-                }));
+		manager.executeLocked("test", () -> assertEquals(0, manager.idleKeyLocksCount()));
+		assertEquals(1, manager.activeKeyLocksCount());
 
-		t1.start();
+		for (int i = 0; i < 100; i++) {
+			manager.executeLocked(i, () -> {});
+			assertTrue(manager.activeKeyLocksCount() <= 4);
+		}
+		assertEquals(manager.activeKeyLocksCount(), manager.idleKeyLocksCount());
+	}
 
-		t1WorkUnitEntry.await();
+	/**
+	 * the locks of idle keys are evicted lazily after the retention time
+	 */
+	@Test
+	public void testIdleKeysRetention() throws Exception {
 
-		assertEquals(0, manager.waitingThreadsCount());
+		final StripedKeyLockManager manager = new StripedKeyLockManager(1, TimeUnit.SECONDS, 16,
+				StripedKeyLockManager.UNBOUNDED_WAITERS, StripedKeyLockManager.UNBOUNDED_WAITERS, 100, 50,
+				TimeUnit.MILLISECONDS);
 
-		// t2 waits for t1 to become interrupted to enter the work unit
+		manager.executeLocked("test1", () -> {});
+		manager.executeLocked("test2", () -> {});
+		assertEquals(2, manager.activeKeyLocksCount());
 
-		final Thread t2 = new Thread(() -> {
-				try {
-					manager.executeLocked("test", () -> {});
-				} catch (final KeyLockManagerInterruptedException ignored) {
-				}
-			});
-		t2.start();
+		sleep(100);
 
-		while (manager.waitingThreadsCount() < 1) {
-			sleep(10);
-		}
+		manager.executeLocked("test3", () -> {});
+		assertEquals(1, manager.activeKeyLocksCount());
+		assertEquals(1, manager.idleKeyLocksCount());
+	}
 
-		assertEquals(1, manager.waitingThreadsCount());
+	/**
+	 * the retention time of many idle keys is over - each thread leaving a
+	 * locked block sweeps a bounded batch of keys only - the following
+	 * releases complete the sweep
+	 */
+	@Test
+	public void testIdleKeysSweptInBatches() throws Exception {
 
-		t1.interrupt();
-		t1.join();
+		final StripedKeyLockManager manager = new StripedKeyLockManager(1, TimeUnit.SECONDS, 16,
+				StripedKeyLockManager.UNBOUNDED_WAITERS, StripedKeyLockManager.UNBOUNDED_WAITERS, 10000, 50,
+				TimeUnit.MILLISECONDS);
 
-		// wait many days if the lock is not freed after interruption of t1
-		t2.join();
+		for (int i = 0; i < 1000; i++) {
+			manager.executeLocked(i, () -> {});
+		}
+		sleep(100);
 
-		assertCleanup(manager);
+		manager.executeLocked("test", () -> {});
+		assertTrue(manager.activeKeyLocksCount() > 900);
+
+		for (int i = 0; i < 100 && manager.activeKeyLocksCount() > 1; i++) {
+			manager.executeLocked("test", () -> {});
+		}
+		assertEquals(1, manager.activeKeyLocksCount());
 	}
 
 	/**
-	 * one thread holds a lock for one key while holding a lock on an other key
+	 * the current thread uses one key with one permit in nested limited units
+	 * - the nested units must not wait for a second permit
 	 */
 	@Test
-	public void testNestedUse() throws Exception {
+	public void testLimitedReentrantUse() {
 
-		final StripedKeyLockManager manager = new StripedKeyLockManager(500, TimeUnit.MILLISECONDS);
+		final StripedKeyLockManager manager = new StripedKeyLockManager(200, TimeUnit.MILLISECONDS);
 
-		final CountDownLatch workUnitEntry = new CountDownLatch(1);
-		final CountDownLatch workUnitExit = new CountDownLatch(1);
+		final int result = manager.executeLimited("test", 1, () -> manager.executeLimited("test", 1,
+				() -> manager.executeLimited("test", 1, () -> 42)));
+		assertEquals(42, result);
 
-		final Thread t1 = new Thread(() ->
-				manager.executeLocked("test", () ->
-						manager.executeLocked("test2", () -> {
-							try {
-								workUnitEntry.countDown();
-								workUnitExit.await();
-							} catch (final InterruptedException e) {
-								e.printStackTrace();
-							}
-						})));
+		assertCleanup(manager);
+	}
 
+	/**
+	 * two threads are in the limited unit of one key with two permits - a
+	 * third thread runs into the timeout - the exclusive lock and other keys
+	 * are not affected - after one thread has left, the third thread enters
+	 */
+	@Test
+	public void testLimitedUse() throws Exception {
+
+		final StripedKeyLockManager manager = new StripedKeyLockManager(200, TimeUnit.MILLISECONDS);
+
+		final CountDownLatch entered = new CountDownLatch(2);
+		final CountDownLatch t1Leave = new CountDownLatch(1);
+		final CountDownLatch t2Leave = new CountDownLatch(1);
+
+		final Thread t1 = new Thread(() -> manager.executeLimited("test", 2, () -> {
+			try {
+				entered.countDown();
+				t1Leave.await();
+			} catch (final InterruptedException ignored) {
+			}
+		}));
+		final Thread t2 = new Thread(() -> manager.executeLimited("test", 2, () -> {
+			try {
+				entered.countDown();
+				t2Leave.await();
+			} catch (final InterruptedException ignored) {
+			}
+		}));
 		t1.start();
+		t2.start();
 
-		workUnitEntry.await(); // waits many days if lock is not released
+		entered.await();
 
-		assertEquals(2, manager.activeKeyLocksCount());
-		assertEquals(0, manager.waitingThreadsCount());
+		try {
+			manager.executeLimited("test", 2, () -> fail());
+			fail();
+		} catch (final KeyLockManagerTimeoutException ignored) {
+		}
 
-		workUnitExit.countDown();
+		assertEquals(Integer.valueOf(1), manager.executeLocked("test", () -> 1));
+		assertEquals(Integer.valueOf(2), manager.executeLimited("test2", 2, () -> 2));
 
+		t1Leave.countDown();
 		t1.join();
 
+		assertEquals(Integer.valueOf(3), manager.executeLimited("test", 2, () -> 3));
+
+		t2Leave.countDown();
+		t2.join();
+
 		assertCleanup(manager);
 	}
 
 	/**
-	 * one thread enters a locked block for one key while holding a lock block
-	 * on the same key
+	 * the locks of a pool are created in advance, half of them per stripe -
+	 * keys take their locks from the pool of their stripe and give them back
+	 * when they are freed - locks beyond the pool size are dropped
 	 */
 	@Test
-	public void testReentrantBehavior() throws Exception {
-
-		final StripedKeyLockManager manager = new StripedKeyLockManager(10, TimeUnit.SECONDS);
-
-		final CountDownLatch workUnitEntry = new CountDownLatch(1);
-		final CountDownLatch workUnitExit = new CountDownLatch(1);
-
-		final Thread t1 = new Thread(() ->
-				manager.executeLocked("test", () ->
-						manager.executeLocked("test", () ->
-						{
-							try {
-								workUnitEntry.countDown();
-								workUnitExit.await();
-							} catch (final InterruptedException e) {
-								e.printStackTrace();
-							}
-						})));
+	public void testLockPool() {
 
-		t1.start();
-
-		workUnitEntry.await(); // waits 10s, if lock is not released
-
-		assertEquals(1, manager.activeKeyLocksCount());
-		assertEquals(0, manager.waitingThreadsCount());
+		final StripedKeyLockManager manager = new StripedKeyLockManager(1, TimeUnit.SECONDS, 2,
+				StripedKeyLockManager.UNBOUNDED_WAITERS, StripedKeyLockManager.UNBOUNDED_WAITERS,
+				StripedKeyLockManager.NO_IDLE_KEYS, 0, TimeUnit.NANOSECONDS, 100, 4);
+		assertEquals(4, manager.pooledKeyLocksCount());
 
-		workUnitExit.countDown();
+		manager.executeLocked(0, () -> manager.executeLocked(2, () -> {
+			assertEquals(2, manager.pooledKeyLocksCount());
+			assertEquals(2, manager.activeKeyLocksCount());
+		}));
+		assertEquals(4, manager.pooledKeyLocksCount());
 
-		t1.join();
+		manager.executeLocked(0, () -> manager.executeLocked(2, () -> manager.executeLocked(4, () -> {
+			assertEquals(2, manager.pooledKeyLocksCount());
+			assertEquals(3, manager.activeKeyLocksCount());
+		})));
+		assertEquals(4, manager.pooledKeyLocksCount());
 
 		assertCleanup(manager);
 	}
 
 	/**
-	 * one thread holds a lock on a key - a second thread waits to acquire the
-	 * lock on the same key - the seconds thread stops waiting after a timeout
+	 * one thread holds a lock on one key - a second thread waits on the same
+	 * key - a third thread must be rejected immediately, if only one waiter
+	 * per key is allowed - other keys are not affected
 	 */
 	@Test
-	public void testTimeoutReaction() throws Exception {
+	public void testRejectionPerKey() throws Exception {
 
-		final StripedKeyLockManager manager = new StripedKeyLockManager(500, TimeUnit.MILLISECONDS);
+		final StripedKeyLockManager manager = new StripedKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS, 16, 1,
+				StripedKeyLockManager.UNBOUNDED_WAITERS);
 
 		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
 
@@ -348,82 +524,176 @@ public class StripedKeyLockManagerTest {
                         sleep(Long.MAX_VALUE);
                     } catch (final InterruptedException ignored) {
                     }
-				}));
+                }));
 		t1.start();
 
 		t1WorkUnitEntry.await();
 
-		// t2 waits for t1 to enter the work unit and should timeout
-
-		final Exchanger<KeyLockManagerException> exchanger = new Exchanger<>();
-
-		final Thread t2 = new Thread(() -> {
-				try {
-					manager.executeLocked("test", () -> { });
-				} catch (final KeyLockManagerException e) {
-					try {
-						exchanger.exchange(e);
-					} catch (final InterruptedException ignored) {
-					}
-				}
-			});
+		final Thread t2 = new Thread(() -> manager.executeLocked("test", () -> { }));
 		t2.start();
 
-        assertThat(exchanger.exchange(null), instanceOf(KeyLockManagerTimeoutException.class));
+		while (manager.waitingThreadsCount() < 1) {
+			sleep(10);
+		}
+
+		try {
+			manager.executeLocked("test", () -> { });
+			fail();
+		} catch (final KeyLockManagerRejectedException e) {
+			assertEquals(1, e.getMaxWaiters());
+		}
 
-		assertEquals("lock was disposed to early", 1, manager.activeKeyLocksCount());
+		assertEquals(Integer.valueOf(1), manager.executeLocked("test2", () -> 1));
 
 		t1.interrupt();
 		t1.join();
+		t2.join();
 
 		assertCleanup(manager);
 	}
 
 	/**
-	 * one thread holds a lock on one key - a second thread waits to acquire the
-	 * lock on the same key - the first thread releases the lock - the second
-	 * thread enters the lock
+	 * two threads hold locks on two keys - a third thread waits for the first
+	 * key - a fourth thread must be rejected immediately on the second key, if
+	 * only one waiter per manager is allowed
 	 */
 	@Test
-	public void testUnlockAfterNormalWorkUnitExit() throws Exception {
+	public void testRejectionPerManager() throws Exception {
 
-		final StripedKeyLockManager manager = new StripedKeyLockManager(500, TimeUnit.MILLISECONDS);
+		final StripedKeyLockManager manager = new StripedKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS, 16,
+				StripedKeyLockManager.UNBOUNDED_WAITERS, 1);
 
-		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
-		final CountDownLatch t1SignalToExit = new CountDownLatch(1);
+		final CountDownLatch workUnitEntry = new CountDownLatch(2);
 
 		final Thread t1 = new Thread(() ->
-				manager.executeLocked("test", () -> {
-					try {
-						t1WorkUnitEntry.countDown();
-						t1SignalToExit.await();
-					} catch (final InterruptedException ignored) {
-					}
-				}));
+				manager.executeLocked("test1", () -> {
+                    try {
+                        workUnitEntry.countDown();
+                        sleep(Long.MAX_VALUE);
+                    } catch (final InterruptedException ignored) {
+                    }
+                }));
+		final Thread t2 = new Thread(() ->
+				manager.executeLocked("test2", () -> {
+                    try {
+                        workUnitEntry.countDown();
+                        sleep(Long.MAX_VALUE);
+                    } catch (final InterruptedException ignored) {
+                    }
+                }));
 		t1.start();
+		t2.start();
 
-		t1WorkUnitEntry.await();
+		workUnitEntry.await();
 
-		final Thread t2 = new Thread(() -> manager.executeLocked("test", () -> { }));
-		t2.start();
+		final Thread t3 = new Thread(() -> manager.executeLocked("test1", () -> { }));
+		t3.start();
 
 		while (manager.waitingThreadsCount() < 1) {
 			sleep(10);
 		}
 
-		t1SignalToExit.countDown();
+		try {
+			manager.executeLocked("test2", () -> { });
+			fail();
+		} catch (final KeyLockManagerRejectedException e) {
+			assertEquals(1, e.getMaxWaiters());
+		}
 
+		t1.interrupt();
+		t2.interrupt();
 		t1.join();
-		t2.join(); // t2 waits many days if lock is not released
+		t2.join();
+		t3.join();
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * a thread holding the lock for a key must never be rejected, even if no
+	 * waiters are allowed at all
+	 */
+	@Test
+	public void testRejectionWithReentrantUse() {
+
+		final StripedKeyLockManager manager = new StripedKeyLockManager(10, TimeUnit.SECONDS, 16, 0, 0);
+
+		assertEquals(Integer.valueOf(20), manager.executeLocked("test", () -> manager.executeLocked("test", () -> 20)));
 
 		assertCleanup(manager);
 	}
 
+	/**
+	 * one thread holds the lock on one key - a second thread waits for it -
+	 * the snapshot shows the owner and the waiting thread
+	 */
 	@Test
-	public void testWithReturnValueCallback() {
-		final StripedKeyLockManager manager = new StripedKeyLockManager(10, TimeUnit.SECONDS);
+	public void testSnapshot() throws Exception {
+
+		final StripedKeyLockManager manager = new StripedKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS);
+
+		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+		final CountDownLatch t1Release = new CountDownLatch(1);
+		final Thread t1 = new Thread(() -> manager.executeLocked("test", () -> {
+			try {
+				t1WorkUnitEntry.countDown();
+				t1Release.await();
+			} catch (final InterruptedException ignored) {
+			}
+		}), "owner");
+		t1.start();
+		t1WorkUnitEntry.await();
 
-		assertEquals(Integer.valueOf(20), manager.executeLocked("test", () -> 20));
+		final Thread t2 = new Thread(() -> manager.executeLocked("test", () -> {}));
+		t2.start();
+		while (manager.getWaitingThreadsCount() < 1) {
+			sleep(10);
+		}
+		sleep(20);
+
+		final List<KeyLockInfo> snapshot = manager.snapshot();
+		assertEquals(1, snapshot.size());
+		final KeyLockInfo info = snapshot.get(0);
+		assertEquals("test", info.getKey());
+		assertSame(t1, info.getOwner());
+		assertEquals(1, info.getWaitingThreads());
+		assertTrue(info.getHoldNanos() >= info.getOldestWaitNanos());
+		assertTrue(info.getOldestWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertTrue(info.toString().startsWith("\"test\" held by \"owner\""));
+
+		t1Release.countDown();
+		t1.join();
+		t2.join();
+
+		assertTrue(manager.snapshot().isEmpty());
+		assertCleanup(manager);
+	}
+
+	/**
+	 * the state of a manager is read through JMX
+	 */
+	@Test
+	public void testSnapshotByJmx() throws Exception {
+
+		final StripedKeyLockManager manager = new StripedKeyLockManager(1, TimeUnit.SECONDS);
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName("de.jkeylockmanager:name=testSnapshotByJmx");
+		server.registerMBean(manager, name);
+		try {
+			manager.executeLocked("test", () -> {
+				try {
+					assertEquals(1, server.getAttribute(name, "ActiveKeyLocksCount"));
+					assertEquals(0, server.getAttribute(name, "WaitingThreadsCount"));
+					final String[] snapshot = (String[]) server.getAttribute(name, "Snapshot");
+					assertEquals(1, snapshot.length);
+					assertTrue(snapshot[0].startsWith("\"test\" held by"));
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		} finally {
+			server.unregisterMBean(name);
+		}
 
 		assertCleanup(manager);
 	}
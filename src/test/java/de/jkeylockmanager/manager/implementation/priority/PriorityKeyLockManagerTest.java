@@ -0,0 +1,262 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.priority;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerInterruptedException;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class PriorityKeyLockManagerTest {
+
+	private void assertCleanup(final PriorityKeyLockManager lock) {
+		assertEquals("not all locks were released", 0, lock.activeKeyLocksCount());
+	}
+
+	/**
+	 * one thread holds a lock on one key - a thread with a low priority
+	 * waits for a long time - a thread with a high priority arrives - the
+	 * aged thread with the low priority enters the lock first
+	 */
+	@Test
+	public void testAging() throws Exception {
+
+		final PriorityKeyLockManager manager = new PriorityKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS, 10,
+				TimeUnit.MILLISECONDS);
+
+		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+		final CountDownLatch t1SignalToExit = new CountDownLatch(1);
+		final List<String> order = new CopyOnWriteArrayList<>();
+
+		final Thread t1 = new Thread(() ->
+				manager.executeLocked("test", () -> {
+					try {
+						t1WorkUnitEntry.countDown();
+						t1SignalToExit.await();
+					} catch (final InterruptedException ignored) {
+					}
+				}));
+		t1.start();
+
+		t1WorkUnitEntry.await();
+
+		final Thread low = new Thread(() -> manager.executeLocked("test", 0, () -> order.add("low")));
+		low.start();
+
+		while (manager.waitingThreadsCount() < 1) {
+			sleep(10);
+		}
+
+		sleep(500);
+
+		final Thread high = new Thread(() -> manager.executeLocked("test", 10, () -> order.add("high")));
+		high.start();
+
+		while (manager.waitingThreadsCount() < 2) {
+			sleep(10);
+		}
+
+		t1SignalToExit.countDown();
+
+		t1.join();
+		low.join();
+		high.join();
+
+		assertEquals(asList("low", "high"), order);
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread holds a lock on one key - a second thread waits on the same
+	 * key and becomes interrupted while waiting -> t2 must throw a special
+	 * exception
+	 */
+	@Test
+	public void testInterruptReaction() throws Exception {
+
+		final PriorityKeyLockManager manager = new PriorityKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS);
+
+		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+
+		final Thread t1 = new Thread(() ->
+				manager.executeLocked("test", () -> {
+					try {
+						t1WorkUnitEntry.countDown();
+						sleep(Long.MAX_VALUE);
+					} catch (final InterruptedException ignored) {
+					}
+				}));
+		t1.start();
+
+		t1WorkUnitEntry.await();
+
+		final Exchanger<KeyLockManagerException> exchanger = new Exchanger<>();
+		final Thread t2 = new Thread(() -> {
+				try {
+					manager.executeLocked("test", () -> {});
+				} catch (final KeyLockManagerException e) {
+					try {
+						exchanger.exchange(e);
+					} catch (final InterruptedException ignored) {
+					}
+				}
+			});
+		t2.start();
+
+		while (manager.waitingThreadsCount() < 1) {
+			sleep(10);
+		}
+
+		t2.interrupt();
+
+		assertThat(exchanger.exchange(null), instanceOf(KeyLockManagerInterruptedException.class));
+
+		t1.interrupt();
+		t1.join();
+		t2.join();
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread holds a lock on one key - threads with different priorities
+	 * wait on the same key - the waiting threads enter the lock ordered by
+	 * priority
+	 */
+	@Test
+	public void testPriorityOrder() throws Exception {
+
+		final PriorityKeyLockManager manager = new PriorityKeyLockManager(Long.MAX_VALUE, TimeUnit.SECONDS, 1,
+				TimeUnit.HOURS);
+
+		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+		final CountDownLatch t1SignalToExit = new CountDownLatch(1);
+		final List<Integer> order = new CopyOnWriteArrayList<>();
+
+		final Thread t1 = new Thread(() ->
+				manager.executeLocked("test", () -> {
+					try {
+						t1WorkUnitEntry.countDown();
+						t1SignalToExit.await();
+					} catch (final InterruptedException ignored) {
+					}
+				}));
+		t1.start();
+
+		t1WorkUnitEntry.await();
+
+		final int[] priorities = {1, 5, 3};
+		final Thread[] waiters = new Thread[priorities.length];
+		for (int i = 0; i < priorities.length; i++) {
+			final int priority = priorities[i];
+			waiters[i] = new Thread(() -> manager.executeLocked("test", priority, () -> order.add(priority)));
+			waiters[i].start();
+			while (manager.waitingThreadsCount() < i + 1) {
+				sleep(10);
+			}
+		}
+
+		t1SignalToExit.countDown();
+
+		t1.join();
+		for (final Thread waiter : waiters) {
+			waiter.join();
+		}
+
+		assertEquals(asList(5, 3, 1), order);
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread enters a locked block for one key while holding a lock block
+	 * on the same key
+	 */
+	@Test
+	public void testReentrantBehavior() {
+
+		final PriorityKeyLockManager manager = new PriorityKeyLockManager(10, TimeUnit.SECONDS);
+
+		assertEquals(Integer.valueOf(20), manager.executeLocked("test", 1, () -> manager.executeLocked("test", 2, () -> 20)));
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread holds a lock on a key - a second thread waits to acquire the
+	 * lock on the same key - the seconds thread stops waiting after a timeout
+	 */
+	@Test
+	public void testTimeoutReaction() throws Exception {
+
+		final PriorityKeyLockManager manager = new PriorityKeyLockManager(500, TimeUnit.MILLISECONDS);
+
+		final CountDownLatch t1WorkUnitEntry = new CountDownLatch(1);
+
+		final Thread t1 = new Thread(() ->
+				manager.executeLocked("test", () -> {
+					try {
+						t1WorkUnitEntry.countDown();
+						sleep(Long.MAX_VALUE);
+					} catch (final InterruptedException ignored) {
+					}
+				}));
+		t1.start();
+
+		t1WorkUnitEntry.await();
+
+		final Exchanger<KeyLockManagerException> exchanger = new Exchanger<>();
+		final Thread t2 = new Thread(() -> {
+				try {
+					manager.executeLocked("test", () -> { });
+				} catch (final KeyLockManagerException e) {
+					try {
+						exchanger.exchange(e);
+					} catch (final InterruptedException ignored) {
+					}
+				}
+			});
+		t2.start();
+
+		assertThat(exchanger.exchange(null), instanceOf(KeyLockManagerTimeoutException.class));
+
+		assertEquals("lock was disposed to early", 1, manager.activeKeyLocksCount());
+		assertEquals(0, manager.waitingThreadsCount());
+
+		t1.interrupt();
+		t1.join();
+
+		assertCleanup(manager);
+	}
+}
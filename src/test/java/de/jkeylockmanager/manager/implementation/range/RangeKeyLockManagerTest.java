@@ -0,0 +1,149 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.range;
+
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class RangeKeyLockManagerTest {
+
+	private void assertCleanup(final RangeKeyLockManager<?> manager) {
+		assertEquals("not all ranges were released", 0, manager.activeRangesCount());
+	}
+
+	private Thread holdInBackground(final RangeKeyLockManager<Integer> manager, final int lo, final int hi,
+			final CountDownLatch entered, final CountDownLatch release) {
+		final Thread result = new Thread(() -> manager.executeLocked(lo, hi, () -> {
+			try {
+				entered.countDown();
+				release.await();
+			} catch (final InterruptedException ignored) {
+			}
+		}));
+		result.start();
+		return result;
+	}
+
+	/**
+	 * one thread holds the range [10, 20) - ranges touching it at the bounds
+	 * or lying far away are locked without waiting
+	 */
+	@Test
+	public void testDisjointRanges() throws Exception {
+
+		final RangeKeyLockManager<Integer> manager = new RangeKeyLockManager<>(200, TimeUnit.MILLISECONDS);
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = holdInBackground(manager, 10, 20, entered, release);
+		entered.await();
+
+		assertEquals(Integer.valueOf(1), manager.executeLocked(0, 10, () -> 1));
+		assertEquals(Integer.valueOf(2), manager.executeLocked(20, 30, () -> 2));
+		assertEquals(Integer.valueOf(3), manager.executeLocked(-100, -50, () -> 3));
+
+		release.countDown();
+		t1.join();
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread holds the range [10, 20) - overlapping ranges, contained and
+	 * containing ranges run into the timeout
+	 */
+	@Test
+	public void testOverlappingRanges() throws Exception {
+
+		final RangeKeyLockManager<Integer> manager = new RangeKeyLockManager<>(100, TimeUnit.MILLISECONDS);
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = holdInBackground(manager, 10, 20, entered, release);
+		entered.await();
+
+		final int[][] overlapping = {{5, 11}, {19, 25}, {12, 13}, {0, 100}};
+		for (final int[] range : overlapping) {
+			try {
+				manager.executeLocked(range[0], range[1], () -> fail());
+				fail();
+			} catch (final KeyLockManagerTimeoutException ignored) {
+			}
+		}
+
+		release.countDown();
+		t1.join();
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * the current thread locks a range, a contained range and an overlapping
+	 * range in nested blocks
+	 */
+	@Test
+	public void testReentrantUse() throws Exception {
+
+		final RangeKeyLockManager<String> manager = new RangeKeyLockManager<>(100, TimeUnit.MILLISECONDS);
+
+		final int result = manager.executeLocked("b", "d", () -> manager.executeLocked("b", "c",
+				() -> manager.executeLocked("c", "f", () -> manager.executeLocked("a", "z", () -> 42))));
+		assertEquals(42, result);
+
+		assertCleanup(manager);
+	}
+
+	/**
+	 * one thread holds a range - a second thread waits for an overlapping
+	 * range and acquires it after the first thread has left its block
+	 */
+	@Test
+	public void testWaitForOverlappingRange() throws Exception {
+
+		final RangeKeyLockManager<Integer> manager = new RangeKeyLockManager<>(10, TimeUnit.SECONDS);
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = holdInBackground(manager, 10, 20, entered, release);
+		entered.await();
+
+		final CountDownLatch t2Done = new CountDownLatch(1);
+		final Thread t2 = new Thread(() -> manager.executeLocked(15, 25, t2Done::countDown));
+		t2.start();
+
+		sleep(100);
+		assertEquals(1, t2Done.getCount());
+
+		release.countDown();
+		t2.join();
+		t1.join();
+
+		assertEquals(0, t2Done.getCount());
+		assertCleanup(manager);
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.key;
+
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.KeyLockManagers;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class BinaryKeyTest {
+
+	/**
+	 * keys with the same bytes are equal - the bytes are copied - keys are
+	 * shown in hexadecimal notation
+	 */
+	@Test
+	public void testEquality() {
+
+		final byte[] bytes = {1, 2, 3};
+		final BinaryKey key = BinaryKey.of(bytes);
+		assertEquals(key, BinaryKey.wrap(new byte[] {1, 2, 3}));
+		assertEquals(key.hashCode(), BinaryKey.wrap(new byte[] {1, 2, 3}).hashCode());
+
+		bytes[0] = 0;
+		assertEquals(key, BinaryKey.wrap(new byte[] {1, 2, 3}));
+		assertNotEquals(key, BinaryKey.of(bytes));
+
+		final UUID uuid = UUID.randomUUID();
+		assertEquals(BinaryKey.of(uuid), BinaryKey.of(UUID.fromString(uuid.toString())));
+		assertEquals(uuid.toString().replace("-", ""), BinaryKey.of(uuid).toString());
+		assertEquals("00000000000000ff", BinaryKey.of(255L).toString());
+	}
+
+	/**
+	 * equal binary keys share the lock of a key manager
+	 */
+	@Test
+	public void testLockWithBinaryKeys() {
+
+		final KeyLockManager manager = KeyLockManagers.newLock();
+		final UUID uuid = UUID.randomUUID();
+
+		final int result = manager.executeLocked(BinaryKey.of(uuid),
+				() -> manager.executeLocked(BinaryKey.of(UUID.fromString(uuid.toString())), () -> 42));
+		assertEquals(42, result);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.key;
+
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.KeyLockManagers;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class PreHashedKeyTest {
+
+	/**
+	 * Key counting the calls of its hash code.
+	 */
+	private static final class CountingKey {
+
+		private final AtomicInteger hashCodeCalls = new AtomicInteger();
+
+		@Override
+		public int hashCode() {
+			hashCodeCalls.incrementAndGet();
+			return 42;
+		}
+	}
+
+	/**
+	 * wrappers of equal keys are equal and have the hash code of the key
+	 */
+	@Test
+	public void testEquality() {
+
+		assertEquals(PreHashedKey.of("test"), PreHashedKey.of("test"));
+		assertEquals("test".hashCode(), PreHashedKey.of("test").hashCode());
+		assertNotEquals(PreHashedKey.of("test"), PreHashedKey.of("test2"));
+		assertNotEquals(PreHashedKey.of("test"), "test");
+		assertEquals("test", PreHashedKey.of("test").getKey());
+	}
+
+	/**
+	 * the hash code of a wrapped key is computed once, no matter how often the
+	 * manager needs it
+	 */
+	@Test
+	public void testHashCodeComputedOnce() {
+
+		final KeyLockManager manager = KeyLockManagers.newLock();
+		final CountingKey key = new CountingKey();
+		final PreHashedKey preHashedKey = PreHashedKey.of(key);
+
+		manager.executeLocked(preHashedKey, () -> manager.executeLocked(preHashedKey, () -> {}));
+		manager.executeLocked(preHashedKey, () -> {});
+
+		assertEquals(1, key.hashCodeCalls.get());
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.ratelimit;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class KeyRateLimiterTest {
+
+	/**
+	 * a key takes its whole burst at once and is limited afterwards - after
+	 * one emission interval it takes one permit again
+	 */
+	@Test
+	public void testBurstAndRate() {
+
+		final AtomicLong clock = new AtomicLong();
+		final KeyRateLimiter limiter = new KeyRateLimiter(10, 1, TimeUnit.SECONDS, 5, clock::get);
+
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.tryAcquire("test"));
+		}
+		assertFalse(limiter.tryAcquire("test"));
+
+		clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+		assertTrue(limiter.tryAcquire("test"));
+		assertFalse(limiter.tryAcquire("test"));
+
+		clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+		assertTrue(limiter.tryAcquire("test", 2));
+		assertFalse(limiter.tryAcquire("test"));
+	}
+
+	/**
+	 * many threads take permits of one key at the same time - exactly the
+	 * burst is granted
+	 */
+	@Test
+	public void testConcurrentUse() throws Exception {
+
+		final KeyRateLimiter limiter = new KeyRateLimiter(100, 1, TimeUnit.HOURS, 100, () -> 0L);
+		final AtomicInteger granted = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		final Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (final InterruptedException ignored) {
+				}
+				for (int j = 0; j < 50; j++) {
+					if (limiter.tryAcquire("test")) {
+						granted.incrementAndGet();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(100, granted.get());
+	}
+
+	/**
+	 * keys with full buckets are evicted lazily - keys still limited are kept
+	 */
+	@Test
+	public void testEvictionOfIdleKeys() {
+
+		final AtomicLong clock = new AtomicLong();
+		final KeyRateLimiter limiter = new KeyRateLimiter(1, 10, TimeUnit.SECONDS, 1, clock::get);
+
+		assertTrue(limiter.tryAcquire("test1"));
+		assertTrue(limiter.tryAcquire("test2"));
+		assertEquals(2, limiter.activeKeysCount());
+
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+		assertTrue(limiter.tryAcquire("test3"));
+		assertEquals(3, limiter.activeKeysCount());
+
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(6));
+		assertTrue(limiter.tryAcquire("test1"));
+		assertEquals(2, limiter.activeKeysCount());
+		assertFalse(limiter.tryAcquire("test3"));
+	}
+
+	/**
+	 * many keys become idle - a call sweeps only a batch of them, the
+	 * following calls continue the sweep until all idle keys are evicted
+	 */
+	@Test
+	public void testIdleKeysSweptInBatches() {
+
+		final AtomicLong clock = new AtomicLong();
+		final KeyRateLimiter limiter = new KeyRateLimiter(1, 1, TimeUnit.SECONDS, 1, clock::get);
+
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limiter.tryAcquire(i));
+		}
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+
+		assertTrue(limiter.tryAcquire("test"));
+		assertTrue(limiter.activeKeysCount() > 900);
+
+		for (int i = 0; i < 100 && limiter.activeKeysCount() > 1; i++) {
+			limiter.tryAcquire("test");
+		}
+		assertEquals(1, limiter.activeKeysCount());
+	}
+
+	/**
+	 * a limited key does not affect other keys
+	 */
+	@Test
+	public void testKeysAreIndependent() {
+
+		final KeyRateLimiter limiter = new KeyRateLimiter(1, 1, TimeUnit.HOURS, 1, () -> 0L);
+
+		assertTrue(limiter.tryAcquire("test1"));
+		assertFalse(limiter.tryAcquire("test1"));
+		assertTrue(limiter.tryAcquire("test2"));
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.benchmark;
+
+import de.jkeylockmanager.manager.KeyLockManagerBuilder.Implementation;
+import de.jkeylockmanager.manager.KeyLockManagers;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays synthetic and recorded key traces against all implementations.
+ *
+ * Set the system property {@value LoadHarness#RESULTS_PROPERTY} to collect the results in a file.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class ContentionBenchmarkTest {
+
+	private static final int THREADS = 8;
+	private static final int OPERATIONS = 20000;
+	private static final int DISTINCT_KEYS = 64;
+	private static final long WORK_NANOS = 200;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+
+	private static void replay(final KeyTrace trace) throws InterruptedException {
+		for (final Implementation implementation : Implementation.values()) {
+			final LoadResult result = LoadHarness.run(implementation.name(),
+					KeyLockManagers.builder().implementation(implementation).timeout(1, TimeUnit.MINUTES).build(),
+					trace, THREADS, WORK_NANOS);
+			assertEquals(trace.length(), result.getOperations());
+			assertEquals(0, result.getViolations());
+			assertEquals(0, result.getTimeouts());
+		}
+	}
+
+	/**
+	 * Scenario: Every implementation replays a trace with a single hot key in bursts.
+	 */
+	@Test
+	public void testBurstyHotKey() throws InterruptedException {
+		replay(KeyTrace.burstyHotKey(DISTINCT_KEYS, OPERATIONS, 500, 2000, 42));
+	}
+
+	/**
+	 * Scenario: Every implementation replays uniformly distributed keys.
+	 */
+	@Test
+	public void testRandom() throws InterruptedException {
+		replay(KeyTrace.random(DISTINCT_KEYS, OPERATIONS, 42));
+	}
+
+	/**
+	 * Scenario: Every implementation replays a trace recorded to a file.
+	 */
+	@Test
+	public void testRecorded() throws Exception {
+		final List<String> lines = new ArrayList<>();
+		final KeyTrace zipf = KeyTrace.zipf(DISTINCT_KEYS, OPERATIONS, 1.2, 7);
+		for (int i = 0; i < zipf.length(); i++) {
+			lines.add("order:" + zipf.indexAt(i));
+		}
+		final Path file = folder.newFile("trace.txt").toPath();
+		Files.write(file, lines, StandardCharsets.UTF_8);
+
+		final KeyTrace trace = KeyTrace.read(file);
+		assertEquals(OPERATIONS, trace.length());
+		replay(trace);
+	}
+
+	/**
+	 * Scenario: Every implementation replays the keys in round robin order.
+	 */
+	@Test
+	public void testSequential() throws InterruptedException {
+		replay(KeyTrace.sequential(DISTINCT_KEYS, OPERATIONS));
+	}
+
+	/**
+	 * Scenario: Every implementation replays Zipf distributed keys, where a few keys get most of the accesses.
+	 */
+	@Test
+	public void testZipf() throws InterruptedException {
+		replay(KeyTrace.zipf(DISTINCT_KEYS, OPERATIONS, 1.2, 42));
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A sequence of keys to replay against a key lock manager.
+ *
+ * Traces are either synthetic, following a key distribution, or recorded, with one key per line of a text file. The
+ * keys are resolved in advance, so generating the trace does not distort a measurement. Every distinct key has an index
+ * from 0 to {@link #distinctKeys()} - 1.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class KeyTrace {
+
+	private final String name;
+	private final String[] keys;
+	private final int[] indexes;
+
+
+	private KeyTrace(final String name, final String[] keys, final int[] indexes) {
+		this.name = name;
+		this.keys = keys;
+		this.indexes = indexes;
+	}
+
+
+	/**
+	 * Bursty hot key: the first burstLength of every burstPeriod accesses go to key 0, the others to uniformly
+	 * distributed keys.
+	 */
+	public static KeyTrace burstyHotKey(final int distinctKeys, final int length, final int burstLength,
+			final int burstPeriod, final long seed) {
+		final Random random = new Random(seed);
+		final int[] indexes = new int[length];
+		for (int i = 0; i < length; i++) {
+			indexes[i] = i % burstPeriod < burstLength ? 0 : random.nextInt(distinctKeys);
+		}
+		return new KeyTrace("hotkey", names(distinctKeys), indexes);
+	}
+
+	/**
+	 * Uniformly distributed keys.
+	 */
+	public static KeyTrace random(final int distinctKeys, final int length, final long seed) {
+		final Random random = new Random(seed);
+		final int[] indexes = new int[length];
+		for (int i = 0; i < length; i++) {
+			indexes[i] = random.nextInt(distinctKeys);
+		}
+		return new KeyTrace("random", names(distinctKeys), indexes);
+	}
+
+	/**
+	 * Reads a recorded trace with one key per line.
+	 */
+	public static KeyTrace read(final Path path) throws IOException {
+		final List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+		final Map<String, Integer> key2index = new HashMap<>();
+		final int[] indexes = new int[lines.size()];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = key2index.computeIfAbsent(lines.get(i), k -> key2index.size());
+		}
+		final String[] keys = new String[key2index.size()];
+		key2index.forEach((key, index) -> keys[index] = key);
+		return new KeyTrace(String.valueOf(path.getFileName()), keys, indexes);
+	}
+
+	/**
+	 * The keys in ascending order, starting again after the last key.
+	 */
+	public static KeyTrace sequential(final int distinctKeys, final int length) {
+		final int[] indexes = new int[length];
+		for (int i = 0; i < length; i++) {
+			indexes[i] = i % distinctKeys;
+		}
+		return new KeyTrace("sequential", names(distinctKeys), indexes);
+	}
+
+	/**
+	 * Zipf distributed keys: the probability of the key with rank k is proportional to 1 / k^exponent.
+	 */
+	public static KeyTrace zipf(final int distinctKeys, final int length, final double exponent, final long seed) {
+		final double[] cumulative = new double[distinctKeys];
+		double sum = 0;
+		for (int k = 0; k < distinctKeys; k++) {
+			sum += 1 / Math.pow(k + 1, exponent);
+			cumulative[k] = sum;
+		}
+		final Random random = new Random(seed);
+		final int[] indexes = new int[length];
+		for (int i = 0; i < length; i++) {
+			final double value = random.nextDouble() * sum;
+			int low = 0;
+			int high = distinctKeys - 1;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (cumulative[middle] < value) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			indexes[i] = low;
+		}
+		return new KeyTrace("zipf-" + exponent, names(distinctKeys), indexes);
+	}
+
+	/**
+	 * @return the number of distinct keys
+	 */
+	public int distinctKeys() {
+		return keys.length;
+	}
+
+	/**
+	 * @return the index of the key at the given position
+	 */
+	public int indexAt(final int position) {
+		return indexes[position];
+	}
+
+	/**
+	 * @return the key with the given index
+	 */
+	public String key(final int index) {
+		return keys[index];
+	}
+
+	/**
+	 * @return the number of accesses
+	 */
+	public int length() {
+		return indexes.length;
+	}
+
+	/**
+	 * @return the name of the distribution or of the recorded file
+	 */
+	public String name() {
+		return name;
+	}
+
+
+	private static String[] names(final int distinctKeys) {
+		final String[] result = new String[distinctKeys];
+		for (int i = 0; i < distinctKeys; i++) {
+			result[i] = "key-" + i;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.benchmark;
+
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.exception.KeyLockManagerTimeoutException;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Load generator, that replays a {@link KeyTrace} against any {@link KeyLockManager}.
+ *
+ * The threads replay the trace interleaved: thread t executes the accesses t, t + threads, t + 2 * threads and so on,
+ * so bursts of the trace hit the manager concurrently. Every access locks its key and spins for the given work time
+ * in the locked block. The harness counts timeouts, accesses that find another thread in the locked block of their
+ * key, the latency of every access and, if the runtime supports it, the allocated bytes. Any other exception of a
+ * thread ends the run and is thrown by {@link #run(String, KeyLockManager, KeyTrace, int, long)}.
+ *
+ * Results are printed as one line of JSON each. If the system property {@value #RESULTS_PROPERTY} names a file, they
+ * are appended to it as well, so runs can be compared and tracked over time.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class LoadHarness {
+
+	/**
+	 * System property naming the file, the results are appended to
+	 */
+	public static final String RESULTS_PROPERTY = "jkeylockmanager.benchmark.results";
+
+
+	private LoadHarness() {
+	}
+
+
+	/**
+	 * Replays the trace against the manager.
+	 *
+	 * @param implementation
+	 *            the name of the manager for the result
+	 * @param manager
+	 *            the manager under test
+	 * @param trace
+	 *            the keys to lock
+	 * @param threads
+	 *            the number of threads replaying the trace
+	 * @param workNanos
+	 *            the time spent in every locked block
+	 *
+	 * @throws IllegalStateException
+	 *             if a thread failed - the exception of the first failing thread is its cause
+	 *
+	 * @return the result, that has been reported already
+	 */
+	public static LoadResult run(final String implementation, final KeyLockManager manager, final KeyTrace trace,
+			final int threads, final long workNanos) throws InterruptedException {
+
+		final AtomicIntegerArray inside = new AtomicIntegerArray(trace.distinctKeys());
+		final AtomicLong operations = new AtomicLong();
+		final AtomicLong timeouts = new AtomicLong();
+		final AtomicLong violations = new AtomicLong();
+		final AtomicLong allocatedBytes = new AtomicLong();
+		final long[][] latencies = new long[threads][Long.SIZE];
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		final boolean measureAllocations = threadBean instanceof com.sun.management.ThreadMXBean;
+		final CyclicBarrier start = new CyclicBarrier(threads + 1);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		final Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int first = t;
+			workers[t] = new Thread(() -> {
+				final long[] histogram = latencies[first];
+				final long allocatedBefore = allocatedBytes(threadBean, measureAllocations);
+				long completed = 0;
+				await(start);
+				for (int i = first; i < trace.length(); i += threads) {
+					final int index = trace.indexAt(i);
+					final long begin = System.nanoTime();
+					try {
+						manager.executeLocked(trace.key(index), () -> {
+							if (inside.incrementAndGet(index) != 1) {
+								violations.incrementAndGet();
+							}
+							spin(workNanos);
+							inside.decrementAndGet(index);
+						});
+					} catch (final KeyLockManagerTimeoutException e) {
+						timeouts.incrementAndGet();
+					}
+					histogram[Long.SIZE - 1 - Long.numberOfLeadingZeros(Math.max(System.nanoTime() - begin, 1))]++;
+					completed++;
+				}
+				operations.addAndGet(completed);
+				allocatedBytes.addAndGet(allocatedBytes(threadBean, measureAllocations) - allocatedBefore);
+			}, "load-" + t);
+			workers[t].setUncaughtExceptionHandler((thread, e) -> failure.compareAndSet(null, e));
+			workers[t].start();
+		}
+
+		await(start);
+		final long begin = System.nanoTime();
+		for (final Thread worker : workers) {
+			worker.join();
+		}
+		final long duration = System.nanoTime() - begin;
+		if (failure.get() != null) {
+			throw new IllegalStateException("a thread of the load harness failed", failure.get());
+		}
+
+		final long[] histogram = new long[Long.SIZE];
+		for (final long[] threadLatencies : latencies) {
+			for (int i = 0; i < histogram.length; i++) {
+				histogram[i] += threadLatencies[i];
+			}
+		}
+		final LoadResult result = new LoadResult(implementation, trace.name(), threads, operations.get(),
+				timeouts.get(), violations.get(), duration, measureAllocations ? allocatedBytes.get() : -1, histogram);
+		report(result);
+		return result;
+	}
+
+
+	private static long allocatedBytes(final ThreadMXBean threadBean, final boolean measureAllocations) {
+		return measureAllocations ? ((com.sun.management.ThreadMXBean) threadBean)
+				.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	private static void await(final CyclicBarrier barrier) {
+		try {
+			barrier.await();
+		} catch (final Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void report(final LoadResult result) {
+		System.out.println(result.toJson());
+		final String file = System.getProperty(RESULTS_PROPERTY);
+		if (file != null) {
+			try {
+				Files.write(Paths.get(file), Collections.singleton(result.toJson()), StandardCharsets.UTF_8,
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private static void spin(final long nanos) {
+		if (nanos > 0) {
+			final long end = System.nanoTime() + nanos;
+			while (System.nanoTime() < end) {
+				// busy work in the locked block
+			}
+		}
+	}
+}
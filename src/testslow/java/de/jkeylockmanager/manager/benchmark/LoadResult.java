@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.benchmark;
+
+import java.util.Locale;
+
+/**
+ * Result of replaying a {@link KeyTrace} against a key lock manager.
+ *
+ * Latencies are counted in a histogram with power of two buckets: bucket i counts operations taking at least 2^i and
+ * less than 2^(i+1) nanoseconds. Percentiles are reported as the upper bound of their bucket.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public final class LoadResult {
+
+	private final String implementation;
+	private final String trace;
+	private final int threads;
+	private final long operations;
+	private final long timeouts;
+	private final long violations;
+	private final long durationNanos;
+	private final long allocatedBytes;
+	private final long[] latencies;
+
+
+	LoadResult(final String implementation, final String trace, final int threads, final long operations,
+			final long timeouts, final long violations, final long durationNanos, final long allocatedBytes,
+			final long[] latencies) {
+		this.implementation = implementation;
+		this.trace = trace;
+		this.threads = threads;
+		this.operations = operations;
+		this.timeouts = timeouts;
+		this.violations = violations;
+		this.durationNanos = durationNanos;
+		this.allocatedBytes = allocatedBytes;
+		this.latencies = latencies;
+	}
+
+
+	/**
+	 * @return the allocated bytes per operation or -1, if the runtime does not measure allocations
+	 */
+	public double getAllocatedBytesPerOperation() {
+		return allocatedBytes < 0 ? -1 : (double) allocatedBytes / Math.max(operations, 1);
+	}
+
+	/**
+	 * @return the upper bound of the latency in nanoseconds, that the given fraction of the operations did not exceed
+	 */
+	public long getLatencyPercentile(final double fraction) {
+		final long rank = (long) Math.ceil(fraction * operations);
+		long count = 0;
+		for (int i = 0; i < latencies.length; i++) {
+			count += latencies[i];
+			if (count >= rank && count > 0) {
+				return (1L << i + 1) - 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the number of operations, including the timed out ones
+	 */
+	public long getOperations() {
+		return operations;
+	}
+
+	/**
+	 * @return the operations per second
+	 */
+	public double getThroughput() {
+		return operations * 1e9 / Math.max(durationNanos, 1);
+	}
+
+	/**
+	 * @return the number of operations, that timed out while waiting for a lock
+	 */
+	public long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * @return the number of operations, that found another thread in the locked block of their key
+	 */
+	public long getViolations() {
+		return violations;
+	}
+
+	/**
+	 * @return the result as one line of JSON
+	 */
+	public String toJson() {
+		final StringBuilder histogram = new StringBuilder();
+		for (int i = 0; i < latencies.length; i++) {
+			if (latencies[i] != 0) {
+				histogram.append(histogram.length() == 0 ? "" : ",").append('"').append(1L << i).append("\":")
+						.append(latencies[i]);
+			}
+		}
+		return String.format(Locale.ROOT,
+				"{\"implementation\":\"%s\",\"trace\":\"%s\",\"threads\":%d,\"operations\":%d,\"durationNanos\":%d,"
+						+ "\"throughput\":%.1f,\"timeouts\":%d,\"timeoutRate\":%.6f,\"violations\":%d,"
+						+ "\"allocatedBytesPerOperation\":%.1f,\"latencyNanos\":{\"p50\":%d,\"p99\":%d,\"p999\":%d,"
+						+ "\"max\":%d},\"latencyHistogram\":{%s}}",
+				implementation, trace, threads, operations, durationNanos, getThroughput(), timeouts,
+				(double) timeouts / Math.max(operations, 1), violations, getAllocatedBytesPerOperation(),
+				getLatencyPercentile(0.5), getLatencyPercentile(0.99), getLatencyPercentile(0.999),
+				getLatencyPercentile(1), histogram);
+	}
+
+	@Override
+	public String toString() {
+		return toJson();
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2009 Marc-Olaf Jaschke
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.jkeylockmanager.manager.implementation.compact;
+
+import de.jkeylockmanager.manager.KeyLockManager;
+import de.jkeylockmanager.manager.LockCallback;
+import de.jkeylockmanager.manager.ReturnValueLockCallback;
+import de.jkeylockmanager.manager.implementation.lockstripe.StripedKeyLockManager;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.*;
+
+/**
+ * Memory footprint benchmark for {@link CompactKeyLockManager} with one hundred thousand concurrently held keys.
+ *
+ * Every thread holds its keys by nesting locked blocks. The footprint of a manager is the heap used while all keys are
+ * held minus the footprint of a manager without any bookkeeping.
+ *
+ * The number of holding threads can be raised by the system property "footprint.threads", for example to 1000 for
+ * one million held keys.
+ *
+ * @author Marc-Olaf Jaschke
+ *
+ */
+public class CompactKeyLockManagerFootprintTest {
+
+	private static final int THREAD_COUNT = Integer.getInteger("footprint.threads", 100);
+	private static final int KEYS_PER_THREAD = 1000;
+	private static final long THREAD_STACK_SIZE = 4 * 1024 * 1024;
+
+
+	@Test
+	public void testFootprint() throws Exception {
+
+		final Object[][] keys = new Object[THREAD_COUNT][KEYS_PER_THREAD];
+		for (int i = 0; i < THREAD_COUNT; i++) {
+			for (int j = 0; j < KEYS_PER_THREAD; j++) {
+				keys[i][j] = "key-" + i + "-" + j;
+			}
+		}
+
+		final long baseline = footprint(new BookkeepingFreeManager(), keys);
+		final long striped = footprint(new StripedKeyLockManager(1, TimeUnit.HOURS), keys) - baseline;
+		final long compact = footprint(new CompactKeyLockManager(1, TimeUnit.HOURS), keys) - baseline;
+
+		final long heldKeys = (long) THREAD_COUNT * KEYS_PER_THREAD;
+		assertTrue("compact manager needs more than half the memory of striped manager - bytes per held key: "
+				+ compact / heldKeys + " vs. " + striped / heldKeys, 2 * compact < striped);
+	}
+
+
+	private long footprint(final KeyLockManager manager, final Object[][] keys) throws InterruptedException {
+		final CountDownLatch allKeysHeld = new CountDownLatch(THREAD_COUNT);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread[] threads = new Thread[THREAD_COUNT];
+
+		final long before = usedHeap();
+		for (int i = 0; i < THREAD_COUNT; i++) {
+			final Object[] threadKeys = keys[i];
+			threads[i] = new Thread(null, () -> hold(manager, threadKeys, 0, allKeysHeld, release), "holder-" + i,
+					THREAD_STACK_SIZE);
+			threads[i].start();
+		}
+		allKeysHeld.await();
+		final long result = usedHeap() - before;
+
+		release.countDown();
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		return result;
+	}
+
+	private static void hold(final KeyLockManager manager, final Object[] keys, final int index,
+			final CountDownLatch allKeysHeld, final CountDownLatch release) {
+		if (index == keys.length) {
+			allKeysHeld.countDown();
+			try {
+				release.await();
+			} catch (final InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+		manager.executeLocked(keys[index], () -> hold(manager, keys, index + 1, allKeysHeld, release));
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+
+	/**
+	 * Runs callbacks without any locking and bookkeeping.
+	 */
+	private static class BookkeepingFreeManager implements KeyLockManager {
+
+		@Override
+		public void executeLocked(final Object key, final LockCallback callback) {
+			callback.doInLock();
+		}
+
+		@Override
+		public <R> R executeLocked(final Object key, final ReturnValueLockCallback<R> callback) {
+			return callback.doInLock();
+		}
+	}
+}